@@ -17,6 +17,7 @@ import ciir.umass.edu.learning.neuralnet.ListNet;
 import ciir.umass.edu.learning.neuralnet.Neuron;
 import ciir.umass.edu.learning.neuralnet.RankNet;
 import ciir.umass.edu.learning.tree.LambdaMART;
+import ciir.umass.edu.learning.tree.QuickScorer;
 import ciir.umass.edu.learning.tree.RFRanker;
 import ciir.umass.edu.metric.CSDCGScorer;
 import ciir.umass.edu.metric.ERRScorer;
@@ -24,6 +25,7 @@ import ciir.umass.edu.metric.METRIC;
 import ciir.umass.edu.metric.MetricScorer;
 import ciir.umass.edu.metric.MetricScorerFactory;
 import ciir.umass.edu.metric.PCSDCGScorer;
+import ciir.umass.edu.metric.SensitivityStore;
 import ciir.umass.edu.utilities.*;
 
 import java.io.*;
@@ -113,6 +115,10 @@ public class Evaluator {
 			System.out.println(
 					"\t[ -qrel <file> ]\tTREC-style relevance judgment file. It only affects MAP and NDCG (default=unspecified)");
 			System.out.println("\t[ -silent ]\t\tDo not print progress messages (which are printed by default)");
+			System.out.println(
+					"\t[ -cache <dir> ]\tKeep a binary copy of each feature file in <dir>, which is memory-mapped instead of parsing the file next time");
+			System.out.println(
+					"\t[ -offheap ]\t\tStore the data read in direct buffers instead of the Java heap (their size is limited by -XX:MaxDirectMemorySize)");
 
 			System.out.println("");
 			// System.out.println(" Use the entire specified training data");
@@ -124,6 +130,8 @@ public class Evaluator {
 					"\t[ -tvs <x \\in [0..1]> ]\tIf you don't have separate validation data, use this to set train-validation split to be (x)(1.0-x)");
 
 			System.out.println("\t[ -save <model> ]\tSave the model learned (default=not-save)");
+			System.out.println(
+					"\t[ -binary ]\t\tSave MART/LambdaMART/Random Forests models in the binary format (loaded faster than XML)");
 
 			System.out.println("");
 			System.out.println(
@@ -205,6 +213,8 @@ public class Evaluator {
 			System.out.println("\t[ -tree <t> ]\t\tNumber of trees (default=" + LambdaMART.nTrees + ")");
 			System.out.println(
 					"\t[ -leaf <l> ]\t\tNumber of leaves for each tree (default=" + LambdaMART.nTreeLeaves + ")");
+			System.out.println(
+					"\t[ -depth <d> ]\t\tMaximum depth of each tree. -1 for no limit (default=" + LambdaMART.maxDepth + ")");
 			System.out.println(
 					"\t[ -shrinkage <factor> ]\tShrinkage, or learning rate (default=" + LambdaMART.learningRate + ")");
 			System.out.println(
@@ -216,6 +226,18 @@ public class Evaluator {
 			System.out.println(
 					"\t[ -estop <e> ]\t\tStop early when no improvement is observed on validaton data in e consecutive rounds (default="
 							+ LambdaMART.nRoundToStopEarly + ")");
+			System.out.println(
+					"\t[ -gtop <a> ]\t\tGOSS: fraction of docs with the largest |lambda| that each tree is fitted on. 1 to turn GOSS off (default="
+							+ LambdaMART.gossTopRate + ")");
+			System.out.println(
+					"\t[ -gother <b> ]\tGOSS: fraction of docs drawn at random from the others and added to them (default="
+							+ LambdaMART.gossOtherRate + ")");
+			System.out.println(
+					"\t[ -qrate <r> ]\t\tFraction of the training queries (drawn at random) each tree is fitted on (default="
+							+ LambdaMART.querySamplingRate + ")");
+			System.out.println(
+					"\t[ -qrefresh <n> ]\tWith -qrate < 1, bring the model's scores on all queries up to date every n rounds (default="
+							+ LambdaMART.queryRefreshRate + ")");
 
 			System.out.println("");
 			System.out.println("    [-] ListNet-specific parameters");
@@ -235,6 +257,8 @@ public class Evaluator {
 			System.out.println("\t[ -tree <t> ]\t\tNumber of trees in each bag (default=" + RFRanker.nTrees + ")");
 			System.out.println(
 					"\t[ -leaf <l> ]\t\tNumber of leaves for each tree (default=" + RFRanker.nTreeLeaves + ")");
+			System.out.println(
+					"\t[ -depth <d> ]\t\tMaximum depth of each tree. -1 for no limit (default=" + RFRanker.maxDepth + ")");
 			System.out.println(
 					"\t[ -shrinkage <factor> ]\tShrinkage, or learning rate (default=" + RFRanker.learningRate + ")");
 			System.out.println(
@@ -270,6 +294,14 @@ public class Evaluator {
 			System.out.println(
 					"\t[ -idv <file> ]\t\tSave model performance (in test metric) on individual ranked lists (has to be used with -test)");
 			System.out.println("\t[ -norm ]\t\tNormalize feature vectors (similar to -norm for training/tuning)");
+			System.out.println("\t[ -cache <dir> ]\tKeep a binary copy of each feature file in <dir> (similar to -cache for training)");
+			System.out.println("\t[ -offheap ]\t\tStore the data read in direct buffers instead of the Java heap (similar to -offheap for training)");
+			System.out.println(
+					"\t[ -qs ]\t\t\tScore MART/LambdaMART/Random Forests models with QuickScorer (same scores, faster on large ensembles)");
+			System.out.println(
+					"\t[ -qscheck ]\t\tSame as -qs, but also check every score against the one obtained by walking the trees");
+			System.out.println(
+					"\t[ -compile ]\t\tCompile MART/LambdaMART/Random Forests models into bytecode before scoring (requires Java 15+)");
 			// System.out.println("\t[ -sparse ]\t\tUse sparse representation for all
 			// feature vectors (default=dense)");
 
@@ -319,6 +351,12 @@ public class Evaluator {
 				useSparseRepresentation = true;
 			else if (args[i].compareTo("-save") == 0)
 				Evaluator.modelFile = args[++i];
+			else if (args[i].compareTo("-binary") == 0)
+				binaryModel = true;
+			else if (args[i].compareTo("-cache") == 0)
+				FeatureManager.cacheDir = args[++i];
+			else if (args[i].compareTo("-offheap") == 0)
+				FeatureManager.offHeap = true;
 			else if (args[i].compareTo("-kcvmd") == 0)
 				kcvModelDir = args[++i];
 			else if (args[i].compareTo("-kcvmn") == 0)
@@ -387,6 +425,9 @@ public class Evaluator {
 			} else if (args[i].compareTo("-leaf") == 0) {
 				LambdaMART.nTreeLeaves = Integer.parseInt(args[++i]);
 				RFRanker.nTreeLeaves = Integer.parseInt(args[i]);
+			} else if (args[i].compareTo("-depth") == 0) {
+				LambdaMART.maxDepth = Integer.parseInt(args[++i]);
+				RFRanker.maxDepth = LambdaMART.maxDepth;
 			} else if (args[i].compareTo("-shrinkage") == 0) {
 				LambdaMART.learningRate = Float.parseFloat(args[++i]);
 				RFRanker.learningRate = Float.parseFloat(args[i]);
@@ -395,6 +436,22 @@ public class Evaluator {
 				RFRanker.minLeafSupport = LambdaMART.minLeafSupport;
 			} else if (args[i].compareTo("-estop") == 0)
 				LambdaMART.nRoundToStopEarly = Integer.parseInt(args[++i]);
+			else if (args[i].compareTo("-gtop") == 0)
+				LambdaMART.gossTopRate = Float.parseFloat(args[++i]);
+			else if (args[i].compareTo("-gother") == 0)
+				LambdaMART.gossOtherRate = Float.parseFloat(args[++i]);
+			else if (args[i].compareTo("-qrate") == 0)
+				LambdaMART.querySamplingRate = Float.parseFloat(args[++i]);
+			else if (args[i].compareTo("-qrefresh") == 0)
+				LambdaMART.queryRefreshRate = Integer.parseInt(args[++i]);
+			else if (args[i].compareTo("-compile") == 0)
+				compileModel = true;
+			else if (args[i].compareTo("-qs") == 0)
+				LambdaMART.useQuickScorer = true;
+			else if (args[i].compareTo("-qscheck") == 0) {
+				LambdaMART.useQuickScorer = true;
+				QuickScorer.checkAgainstTrees = true;
+			}
 			// for debugging
 			else if (args[i].compareTo("-gcc") == 0)
 				LambdaMART.gcCycle = Integer.parseInt(args[++i]);
@@ -440,6 +497,10 @@ public class Evaluator {
 				PCSDCGScorer.SENSITIVITY_CONSTANT = Integer.parseInt(args[++i]);
 			} else if (args[i].compareTo("-applysensepred") == 0) {
 				applySensitivityPredictions = true;
+			} else if (args[i].compareTo("-sensebin") == 0) {
+				SensitivityStore.useBinaryCache = true;
+			} else if (args[i].compareTo("-docidfield") == 0) {
+				DataPoint.DOCID_FIELD = Integer.parseInt(args[++i]);
 			} else {
 				throw RankLibError.create("Unknown command-line parameter: " + args[i]);
 			}
@@ -595,6 +656,8 @@ public class Evaluator {
 	// main settings
 	public static boolean mustHaveRelDoc = false;
 	public static boolean useSparseRepresentation = false;
+	public static boolean compileModel = false;// compile loaded tree ensembles into bytecode
+	public static boolean binaryModel = false;// save tree ensembles in the binary model format
 	public static boolean normalize = false;
 	public static Normalizer nml = new SumNormalizor();
 	public static String modelFile = "";
@@ -744,7 +807,7 @@ public class Evaluator {
 		}
 		if (modelFile.compareTo("") != 0) {
 			System.out.println("");
-			ranker.save(modelFile);
+			ranker.save(modelFile, binaryModel);
 			System.out.println("Model saved to: " + modelFile);
 		}
 	}
@@ -777,7 +840,7 @@ public class Evaluator {
 		System.out.println(testScorer.name() + " on test data: " + SimpleMath.round(rankScore, 4));
 		if (modelFile.compareTo("") != 0) {
 			System.out.println("");
-			ranker.save(modelFile);
+			ranker.save(modelFile, binaryModel);
 			System.out.println("Model saved to: " + modelFile);
 		}
 	}
@@ -812,7 +875,7 @@ public class Evaluator {
 		}
 		if (modelFile.compareTo("") != 0) {
 			System.out.println("");
-			ranker.save(modelFile);
+			ranker.save(modelFile, binaryModel);
 			System.out.println("Model saved to: " + modelFile);
 		}
 	}
@@ -893,7 +956,7 @@ public class Evaluator {
 			scores[i][1] = s2;
 
 			if (modelDir.compareTo("") != 0) {
-				ranker.save(FileUtils.makePathStandard(modelDir) + "f" + (i + 1) + "." + modelFile);
+				ranker.save(FileUtils.makePathStandard(modelDir) + "f" + (i + 1) + "." + modelFile, binaryModel);
 				System.out.println("Fold-" + (i + 1) + " model saved to: " + modelFile);
 			}
 		}
@@ -954,7 +1017,7 @@ public class Evaluator {
 	 *                  each of the ranked list. These won't be saved if prpFile="".
 	 */
 	public void test(String modelFile, String testFile, String prpFile) {
-		Ranker ranker = rFact.loadRankerFromFile(modelFile);
+		Ranker ranker = rFact.loadRankerFromFile(modelFile, compileModel);
 		int[] features = ranker.getFeatures();
 		List<RankList> test = readInput(testFile);
 		if (normalize)
@@ -1005,7 +1068,7 @@ public class Evaluator {
 		List<Double> scores = new ArrayList<Double>();
 		for (int f = 0; f < nFold; f++) {
 			List<RankList> test = testData.get(f);
-			Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f));
+			Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f), compileModel);
 			int[] features = ranker.getFeatures();
 			if (normalize)
 				normalize(test, features);
@@ -1043,7 +1106,7 @@ public class Evaluator {
 		List<Double> scores = new ArrayList<Double>();
 		for (int f = 0; f < nFold; f++) {
 			List<RankList> test = FeatureManager.readInput(testFiles.get(f));
-			Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f));
+			Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f), compileModel);
 			int[] features = ranker.getFeatures();
 			if (normalize)
 				normalize(test, features);
@@ -1110,22 +1173,11 @@ public class Evaluator {
 	 * @param outputFile Output file
 	 */
 	public void score(String modelFile, String testFile, String outputFile) {
-		Ranker ranker = rFact.loadRankerFromFile(modelFile);
+		Ranker ranker = rFact.loadRankerFromFile(modelFile, compileModel);
 		int[] features = ranker.getFeatures();
-		List<RankList> test = readInput(testFile);
-		if (normalize)
-			normalize(test, features);
-
-		try {
-			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));
-			for (int i = 0; i < test.size(); i++) {
-				RankList l = test.get(i);
-				for (int j = 0; j < l.size(); j++) {
-					out.write(l.getID() + "\t" + j + "\t" + ranker.eval(l.get(j)) + "");
-					out.newLine();
-				}
-			}
-			out.close();
+		try (BufferedWriter out = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"))) {
+			score(ranker, features, testFile, mustHaveRelDoc, useSparseRepresentation, out, SCORES);
 		} catch (IOException ex) {
 			throw RankLibError.create("Error in Evaluator::rank(): ", ex);
 		}
@@ -1153,7 +1205,7 @@ public class Evaluator {
 			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));
 			for (int f = 0; f < nFold; f++) {
 				List<RankList> test = testData.get(f);
-				Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f));
+				Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f), compileModel);
 				int[] features = ranker.getFeatures();
 				if (normalize)
 					normalize(test, features);
@@ -1183,23 +1235,54 @@ public class Evaluator {
 		try (BufferedWriter out = new BufferedWriter(
 				new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"))) {
 			for (int f = 0; f < nFold; f++) {
-				List<RankList> test = FeatureManager.readInput(testFiles.get(f));
-				Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f));
-				int[] features = ranker.getFeatures();
-				if (normalize)
-					normalize(test, features);
-				for (RankList l : test) {
-					for (int j = 0; j < l.size(); j++) {
-						out.write(l.getID() + "\t" + j + "\t" + ranker.eval(l.get(j)) + "");
-						out.newLine();
-					}
-				}
+				Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f), compileModel);
+				score(ranker, ranker.getFeatures(), testFiles.get(f), false, false, out, SCORES);
 			}
 		} catch (IOException ex) {
 			throw RankLibError.create("Error in Evaluator::score(): ", ex);
 		}
 	}
 
+	// output of -score: "<qid> <index in the list> <score>" for each object
+	private static final ScoringPipeline.Output SCORES = (l, scores, out) -> {
+		for (int j = 0; j < l.size(); j++) {
+			out.write(l.getID() + "\t" + j + "\t" + scores[j] + "");
+			out.newLine();
+		}
+	};
+
+	// output of -indri: the objects of each list, sorted by decreasing score, in indri's run format
+	private static final ScoringPipeline.Output INDRI = (l, scores, out) -> {
+		int[] idx = MergeSorter.sort(scores, false);
+		for (int j = 0; j < idx.length; j++) {
+			int k = idx[j];
+			String str = l.getID() + " Q0 " + l.get(k).getDescription().replace("#", "").trim() + " " + (j + 1) + " "
+					+ SimpleMath.round(scores[k], 5) + " indri";
+			out.write(str);
+			out.newLine();
+		}
+	};
+
+	/**
+	 * Score the rankings of a test file with a model, and write the scores to
+	 * @out. The file is streamed through a {@link ScoringPipeline}, so that it is
+	 * never entirely in memory, unless feature files are cached (see -cache): the
+	 * cached copy is then mapped and scored in place.
+	 */
+	private void score(Ranker ranker, int[] features, String testFile, boolean mustHaveRelDoc,
+			boolean useSparseRepresentation, BufferedWriter out, ScoringPipeline.Output output) throws IOException {
+		if (FeatureManager.cacheDir == null) {
+			ScoringPipeline.run(testFile, mustHaveRelDoc, useSparseRepresentation, ranker, normalize ? nml : null,
+					features, out, output);
+			return;
+		}
+		List<RankList> test = FeatureManager.readInput(testFile, mustHaveRelDoc, useSparseRepresentation);
+		if (normalize)
+			normalize(test, features);
+		for (RankList l : test)
+			output.write(l, ranker.eval(l), out);
+	}
+
 	/**
 	 * Use a pre-trained model to re-rank the test rankings. Save the output ranking
 	 * in indri's run format
@@ -1209,28 +1292,11 @@ public class Evaluator {
 	 * @param indriRanking
 	 */
 	public void rank(String modelFile, String testFile, String indriRanking) {
-		Ranker ranker = rFact.loadRankerFromFile(modelFile);
+		Ranker ranker = rFact.loadRankerFromFile(modelFile, compileModel);
 		int[] features = ranker.getFeatures();
-		List<RankList> test = readInput(testFile);
-		if (normalize)
-			normalize(test, features);
-		try {
-			BufferedWriter out = new BufferedWriter(
-					new OutputStreamWriter(new FileOutputStream(indriRanking), "UTF-8"));
-			for (RankList l : test) {
-				double[] scores = new double[l.size()];
-				for (int j = 0; j < l.size(); j++)
-					scores[j] = ranker.eval(l.get(j));
-				int[] idx = MergeSorter.sort(scores, false);
-				for (int j = 0; j < idx.length; j++) {
-					int k = idx[j];
-					String str = l.getID() + " Q0 " + l.get(k).getDescription().replace("#", "").trim() + " " + (j + 1)
-							+ " " + SimpleMath.round(scores[k], 5) + " indri";
-					out.write(str);
-					out.newLine();
-				}
-			}
-			out.close();
+		try (BufferedWriter out = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(indriRanking), "UTF-8"))) {
+			score(ranker, features, testFile, mustHaveRelDoc, useSparseRepresentation, out, INDRI);
 		} catch (IOException ex) {
 			throw RankLibError.create("Error in Evaluator::rank(): ", ex);
 		}
@@ -1285,7 +1351,7 @@ public class Evaluator {
 					new OutputStreamWriter(new FileOutputStream(indriRanking), "UTF-8"));
 			for (int f = 0; f < nFold; f++) {
 				List<RankList> test = testData.get(f);
-				Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f));
+				Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f), compileModel);
 				int[] features = ranker.getFeatures();
 				if (normalize)
 					normalize(test, features);
@@ -1320,31 +1386,12 @@ public class Evaluator {
 	 */
 	public void rank(List<String> modelFiles, List<String> testFiles, String indriRanking) {
 		int nFold = modelFiles.size();
-		try {
-			BufferedWriter out = new BufferedWriter(
-					new OutputStreamWriter(new FileOutputStream(indriRanking), "UTF-8"));
+		try (BufferedWriter out = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(indriRanking), "UTF-8"))) {
 			for (int f = 0; f < nFold; f++) {
-				List<RankList> test = FeatureManager.readInput(testFiles.get(f));
-				Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f));
-				int[] features = ranker.getFeatures();
-				if (normalize)
-					normalize(test, features);
-
-				for (RankList l : test) {
-					double[] scores = new double[l.size()];
-					for (int j = 0; j < l.size(); j++)
-						scores[j] = ranker.eval(l.get(j));
-					int[] idx = MergeSorter.sort(scores, false);
-					for (int j = 0; j < idx.length; j++) {
-						int k = idx[j];
-						String str = l.getID() + " Q0 " + l.get(k).getDescription().replace("#", "").trim() + " "
-								+ (j + 1) + " " + SimpleMath.round(scores[k], 5) + " indri";
-						out.write(str);
-						out.newLine();
-					}
-				}
+				Ranker ranker = rFact.loadRankerFromFile(modelFiles.get(f), compileModel);
+				score(ranker, ranker.getFeatures(), testFiles.get(f), false, false, out, INDRI);
 			}
-			out.close();
 		} catch (IOException ex) {
 			throw RankLibError.create("Error in Evaluator::rank(): ", ex);
 		}
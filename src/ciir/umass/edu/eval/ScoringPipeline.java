@@ -0,0 +1,163 @@
+/*===============================================================================
+ * Copyright (c) 2010-2015 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.eval;
+
+import ciir.umass.edu.features.Normalizer;
+import ciir.umass.edu.features.RankListReader;
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.learning.RankList;
+import ciir.umass.edu.learning.Ranker;
+import ciir.umass.edu.utilities.RankLibError;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Scores a feature file with a ranker without loading the whole file. Ranked lists are read in batches by one thread, normalized and
+ * scored by the calling thread, and written out by a third thread, so that reading, scoring and writing overlap. At most
+ * {@link #queueSize} batches wait between two stages, so memory use does not depend on the size of the file.
+ */
+public class ScoringPipeline {
+
+	// minimum number of data points in a batch (a batch is made of whole ranked lists)
+	public static int batchSize = 10000;
+	// maximum number of batches waiting to be scored, and waiting to be written
+	public static int queueSize = 4;
+
+	/**
+	 * Writes the scores of a ranked list.
+	 */
+	public interface Output {
+		void write(RankList l, double[] scores, BufferedWriter out) throws IOException;
+	}
+
+	private static class Batch {
+		List<RankList> lists = new ArrayList<RankList>();
+		double[][] scores = null;
+		int size = 0;
+	}
+
+	// marks the end of the stream
+	private static final Batch END = new Batch();
+
+	private final BlockingQueue<Batch> toScore = new ArrayBlockingQueue<Batch>(queueSize);
+	private final BlockingQueue<Batch> toWrite = new ArrayBlockingQueue<Batch>(queueSize);
+	private volatile Exception error = null;
+
+	/**
+	 * Score every ranked list of @inputFile with @ranker, and write the scores to @out with @output, in the order of the file.
+	 *
+	 * @param nml Normalizer applied to each ranked list before scoring it (null for none)
+	 * @param features Features to normalize
+	 */
+	public static void run(String inputFile, boolean mustHaveRelDoc, boolean useSparseRepresentation, Ranker ranker,
+			Normalizer nml, int[] features, BufferedWriter out, Output output) {
+		new ScoringPipeline().score(inputFile, mustHaveRelDoc, useSparseRepresentation, ranker, nml, features, out, output);
+	}
+
+	private void score(String inputFile, boolean mustHaveRelDoc, boolean useSparseRepresentation, Ranker ranker,
+			Normalizer nml, int[] features, BufferedWriter out, Output output) {
+		// the feature count only grows as lines are read: make sure the features of the model are valid from the first line on,
+		// even if the file only uses them later (sparse data points reject features above the count)
+		for (int fid : ranker.getFeatures())
+			DataPoint.updateFeatureCount(fid);
+		RankListReader in;
+		try {
+			in = new RankListReader(inputFile, mustHaveRelDoc, useSparseRepresentation);
+		} catch (IOException ex) {
+			throw RankLibError.create("Error in ScoringPipeline::score(): ", ex);
+		}
+		Thread reader = new Thread(() -> read(in), "ScoringPipeline-reader");
+		Thread writer = new Thread(() -> write(out, output), "ScoringPipeline-writer");
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		System.out.print("Scoring feature file [" + inputFile + "]... ");
+		reader.start();
+		writer.start();
+		try {
+			for (Batch b = toScore.take(); b != END && error == null; b = toScore.take()) {
+				b.scores = new double[b.lists.size()][];
+				for (int i = 0; i < b.lists.size(); i++) {
+					RankList l = b.lists.get(i);
+					if (nml != null)
+						nml.normalize(l, features);
+					b.scores[i] = ranker.eval(l);
+				}
+				toWrite.put(b);
+			}
+			toWrite.put(END);
+			writer.join();
+		} catch (Exception ex) {
+			if (error == null)
+				error = ex;
+		} finally {
+			reader.interrupt();
+			writer.interrupt();
+			try {
+				in.close();
+			} catch (IOException ex) {
+				if (error == null)
+					error = ex;
+			}
+		}
+		if (error != null)
+			throw RankLibError.create("Error in ScoringPipeline::score(): ", error);
+		System.out.println("[Done.]");
+		System.out.println("(" + in.listCount() + " ranked lists, " + in.entryCount() + " entries scored)");
+	}
+
+	private void read(RankListReader in) {
+		try {
+			Batch b = new Batch();
+			for (RankList l = in.next(); l != null && error == null; l = in.next()) {
+				b.lists.add(l);
+				b.size += l.size();
+				if (b.size >= batchSize) {
+					toScore.put(b);
+					b = new Batch();
+				}
+			}
+			if (b.size > 0)
+				toScore.put(b);
+		} catch (InterruptedException ex) {
+			return;
+		} catch (Exception ex) {
+			error = ex;
+		}
+		try {
+			toScore.put(END);
+		} catch (InterruptedException ex) {
+		}
+	}
+
+	private void write(BufferedWriter out, Output output) {
+		try {
+			for (Batch b = toWrite.take(); b != END; b = toWrite.take()) {
+				// after an error, batches are still taken so that the scoring thread never waits for this one
+				for (int i = 0; i < b.lists.size() && error == null; i++) {
+					try {
+						output.write(b.lists.get(i), b.scores[i], out);
+					} catch (Exception ex) {
+						error = ex;
+					}
+				}
+			}
+			if (error == null)
+				out.flush();
+		} catch (InterruptedException ex) {
+		} catch (IOException ex) {
+			error = ex;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.features;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.learning.DataStore;
+import ciir.umass.edu.learning.RankList;
+import ciir.umass.edu.utilities.FileUtils;
+
+/**
+ * Binary copies of feature files, written the first time a file is read and memory-mapped on later reads, instead of parsing the
+ * text again. A cache file holds (big-endian):
+ * <pre>
+ * int      magic (0x524C4443, "RLDC")
+ * int      format version (1)
+ * int      DataPoint.DOCID_FIELD used to extract the docids
+ * int      0
+ * long     size of the feature file, in bytes
+ * long     last modification time of the feature file
+ * ...      the ranked lists of the file (all of them, whatever mustHaveRelDoc), in the layout of {@link DataStore}
+ * </pre>
+ * A cache file is only used if its feature file still has the same size and modification time.
+ */
+public class DatasetCache {
+
+	public static final int MAGIC = 0x524C4443;
+	public static final int VERSION = 1;
+
+	/**
+	 * @return The cache file of @inputFile in @cacheDir. Dense and sparse representations are cached separately, and files with the
+	 * same name in different directories do not share their cache.
+	 */
+	public static String cacheFile(String cacheDir, String inputFile, boolean useSparseRepresentation)
+	{
+		File f = new File(inputFile).getAbsoluteFile();
+		return FileUtils.makePathStandard(cacheDir) + f.getName() + "." + Integer.toHexString(f.getPath().hashCode())
+				+ (useSparseRepresentation ? ".sparse" : ".dense") + ".rlc";
+	}
+
+	/**
+	 * Read @inputFile from its cache file.
+	 * @return The ranked lists (views on the mapped cache file), or null if there is no valid cache file for @inputFile.
+	 */
+	public static List<RankList> read(String cacheDir, String inputFile, boolean mustHaveRelDoc, boolean useSparseRepresentation)
+	{
+		File cache = new File(cacheFile(cacheDir, inputFile, useSparseRepresentation));
+		File input = new File(inputFile);
+		if(!cache.isFile())
+			return null;
+		try (RandomAccessFile raf = new RandomAccessFile(cache, "rw"); FileChannel ch = raf.getChannel()) {
+			ByteBuffer header = ByteBuffer.allocate(32);
+			while(header.hasRemaining() && ch.read(header) >= 0);
+			header.flip();
+			if(header.remaining() < 32 || header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != DataPoint.DOCID_FIELD)
+				return null;
+			header.getInt();
+			if(header.getLong() != input.length() || header.getLong() != input.lastModified())
+				return null;
+			//the mappings stay valid once the channel is closed
+			DataStore ds = DataStore.map(ch, 32);
+			if(ds.isSparse() != useSparseRepresentation)
+				return null;
+			List<RankList> samples = ds.rankLists(mustHaveRelDoc);
+			System.out.println("Reading feature file [" + inputFile + "] from [" + cache.getPath() + "]... [Done.]");
+			System.out.println("(" + samples.size() + " ranked lists, " + ds.size() + " entries read)");
+			return samples;
+		}
+		catch(IOException ex)
+		{
+			System.out.println("Cannot read the cache file [" + cache.getPath() + "] (" + ex.getMessage() + "): it will be written again.");
+			return null;
+		}
+	}
+
+	/**
+	 * Write the cache file of @inputFile, whose ranked lists are @samples. The file is written under a temporary name, then renamed,
+	 * so that concurrent runs never see a partial cache file. Failing to write it is not an error: the feature file will simply be
+	 * parsed again next time.
+	 */
+	public static void write(String cacheDir, String inputFile, boolean useSparseRepresentation, List<RankList> samples)
+	{
+		File cache = new File(cacheFile(cacheDir, inputFile, useSparseRepresentation));
+		File input = new File(inputFile);
+		File tmp = null;
+		try {
+			cache.getParentFile().mkdirs();
+			tmp = File.createTempFile(cache.getName(), ".tmp", cache.getParentFile());
+			long length = input.length();
+			long lastModified = input.lastModified();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(DataPoint.DOCID_FIELD);
+				out.writeInt(0);
+				out.writeLong(length);
+				out.writeLong(lastModified);
+				DataStore.write(out, samples, useSparseRepresentation);
+			}
+			Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			System.out.println("Feature file [" + inputFile + "] cached in [" + cache.getPath() + "]");
+		}
+		catch(IOException ex)
+		{
+			System.out.println("Cannot write the cache file [" + cache.getPath() + "] (" + ex.getMessage() + ").");
+			if(tmp != null)
+				tmp.delete();
+		}
+	}
+}
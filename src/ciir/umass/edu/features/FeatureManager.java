@@ -10,19 +10,29 @@
 package ciir.umass.edu.features;
 
 import ciir.umass.edu.learning.DataPoint;
-import ciir.umass.edu.learning.DenseDataPoint;
+import ciir.umass.edu.learning.DataPointParser;
+import ciir.umass.edu.learning.DataStore;
 import ciir.umass.edu.learning.RankList;
-import ciir.umass.edu.learning.SparseDataPoint;
 import ciir.umass.edu.utilities.FileUtils;
+import ciir.umass.edu.utilities.MyThreadPool;
 import ciir.umass.edu.utilities.RankLibError;
+import ciir.umass.edu.utilities.WorkerThread;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 public class FeatureManager {
 
+	//with more than one thread, files are read in chunks of at least this many bytes, in parallel
+	public static long minChunkSize = 1 << 22;
+	//directory of the binary copies of feature files (see DatasetCache), or null to always parse the text files
+	public static String cacheDir = null;
+	//keep the feature values, labels and descriptions read in direct buffers instead of the heap (see DataStore)
+	public static boolean offHeap = false;
+
 	/**
 	 * @param args
 	 */
@@ -40,6 +50,7 @@ public class FeatureManager {
 			System.out.println("Params:");
 			System.out.println("\t-input <file>\t\tSource data (ranked lists)");
 			System.out.println("\t-output <dir>\t\tThe output directory");
+			System.out.println("\t[ -cache <dir> ]\tKeep a binary copy of each input file in <dir>, which is memory-mapped instead of parsing the file next time");
 			
 			System.out.println("");
 			System.out.println("  [+] Shuffling");
@@ -69,6 +80,8 @@ public class FeatureManager {
 				tvs = Float.parseFloat(args[++i]);
 			else if(args[i].compareTo("-output")==0)
 				outputDir = FileUtils.makePathStandard(args[++i]);
+			else if(args[i].compareTo("-cache")==0)
+				cacheDir = args[++i];
 		}		
 	
 		if(shuffle || nFold > 0)
@@ -137,49 +150,46 @@ public class FeatureManager {
 	 */
 	public static List<RankList> readInput(String inputFile, boolean mustHaveRelDoc, boolean useSparseRepresentation)	
 	{
-		List<RankList> samples = new ArrayList<RankList>();
-		int countRL = 0;
-		int countEntries = 0;
-		try {
-			String content = "";
-			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), "ASCII"));
-			
-			String lastID = "";
-			boolean hasRel = false;
-			List<DataPoint> rl = new ArrayList<DataPoint>();
-			while((content = in.readLine()) != null)
+		if(cacheDir != null)
+		{
+			List<RankList> samples = DatasetCache.read(cacheDir, inputFile, mustHaveRelDoc, useSparseRepresentation);
+			if(samples != null)
+				return samples;
+			//the cache holds every ranked list, whatever mustHaveRelDoc
+			samples = parseInput(inputFile, false, useSparseRepresentation);
+			DatasetCache.write(cacheDir, inputFile, useSparseRepresentation, samples);
+			if(!mustHaveRelDoc)
+				return samples;
+			List<RankList> withRel = new ArrayList<RankList>();
+			for(int i=0;i<samples.size();i++)
 			{
-				content = content.trim();
-				if(content.length() == 0)
-					continue;
-				if(content.indexOf("#")==0)
-					continue;
-				
-				if(countEntries % 10000 == 0)
-					System.out.print("\rReading feature file [" + inputFile + "]: " + countRL + "... ");
-				
-				DataPoint qp = null;
-				if(useSparseRepresentation)
-					qp = new SparseDataPoint(content);
-				else
-					qp = new DenseDataPoint(content);
-
-				if(lastID.compareTo("")!=0 && lastID.compareTo(qp.getID())!=0)
-				{
-					if(!mustHaveRelDoc || hasRel)
-						samples.add(new RankList(rl));
-					rl = new ArrayList<DataPoint>();
-					hasRel = false;
-				}
-				
-				if(qp.getLabel() > 0)
-					hasRel = true;
-				lastID = qp.getID();
-				rl.add(qp);
-				countEntries++;
+				RankList rl = samples.get(i);
+				boolean hasRel = false;
+				for(int j=0;j<rl.size() && !hasRel;j++)
+					hasRel = rl.get(j).getLabel() > 0;
+				if(hasRel)
+					withRel.add(rl);
 			}
-			if(rl.size() > 0 && (!mustHaveRelDoc || hasRel))
-				samples.add(new RankList(rl));
+			return withRel;
+		}
+		return parseInput(inputFile, mustHaveRelDoc, useSparseRepresentation);
+	}
+	/**
+	 * Parse the text of a feature file (see readInput(String, boolean, boolean)).
+	 */
+	private static List<RankList> parseInput(String inputFile, boolean mustHaveRelDoc, boolean useSparseRepresentation)
+	{
+		if(MyThreadPool.getInstance().size() > 1 && new File(inputFile).length() >= 2 * minChunkSize)
+		{
+			List<String> files = new ArrayList<String>();
+			files.add(inputFile);
+			return readInputInParallel(files, mustHaveRelDoc, useSparseRepresentation).get(0);
+		}
+		List<RankList> samples = new ArrayList<RankList>();
+		try {
+			//blank lines and comment lines are skipped by the parser
+			DataPointParser in = new DataPointParser(new FileInputStream(inputFile), useSparseRepresentation);
+			int countEntries = readRankLists(in, mustHaveRelDoc, useSparseRepresentation, samples, inputFile);
 			in.close();
 			System.out.println("\rReading feature file [" + inputFile + "]... [Done.]            ");
 			System.out.println("(" + samples.size() + " ranked lists, " + countEntries + " entries read)");
@@ -190,6 +200,58 @@ public class FeatureManager {
 		}
 		return samples;
 	}
+	/**
+	 * Group the data points read by @in into ranked lists (one per run of consecutive points with the same id), and add them to 
+	 * @samples. With offHeap, the data points are copied to a DataStore, and the ranked lists are made of views on it.
+	 * @param inputFile Name of the file to show progress messages for, or null for none.
+	 * @return The number of data points read.
+	 */
+	private static int readRankLists(DataPointParser in, boolean mustHaveRelDoc, boolean useSparseRepresentation, List<RankList> samples, 
+			String inputFile) throws IOException
+	{
+		if(offHeap)
+		{
+			DataStore.Builder store = new DataStore.Builder(useSparseRepresentation);
+			DataPoint qp = null;
+			for(int countEntries=0;(qp = in.next()) != null;countEntries++)
+			{
+				if(inputFile != null && countEntries % 10000 == 0)
+					System.out.print("\rReading feature file [" + inputFile + "]: " + countEntries + "... ");
+				store.add(qp);
+			}
+			DataStore ds = store.build();
+			samples.addAll(ds.rankLists(mustHaveRelDoc));
+			return ds.size();
+		}
+		int countRL = 0;
+		int countEntries = 0;
+		String lastID = "";
+		boolean hasRel = false;
+		List<DataPoint> rl = new ArrayList<DataPoint>();
+		DataPoint qp = null;
+		while((qp = in.next()) != null)
+		{
+			if(inputFile != null && countEntries % 10000 == 0)
+				System.out.print("\rReading feature file [" + inputFile + "]: " + countRL + "... ");
+
+			if(lastID.compareTo("")!=0 && lastID.compareTo(qp.getID())!=0)
+			{
+				if(!mustHaveRelDoc || hasRel)
+					samples.add(new RankList(rl));
+				rl = new ArrayList<DataPoint>();
+				hasRel = false;
+			}
+			
+			if(qp.getLabel() > 0)
+				hasRel = true;
+			lastID = qp.getID();
+			rl.add(qp);
+			countEntries++;
+		}
+		if(rl.size() > 0 && (!mustHaveRelDoc || hasRel))
+			samples.add(new RankList(rl));
+		return countEntries;
+	}
 	/**
 	 * Read sets of rankings from multiple files. Then merge them altogether into a single ranking.
 	 * @param inputFiles
@@ -198,6 +260,13 @@ public class FeatureManager {
 	public static List<RankList> readInput(List<String> inputFiles)	
 	{
 		List<RankList> samples = new ArrayList<RankList>();
+		if(cacheDir == null && MyThreadPool.getInstance().size() > 1)
+		{
+			List<List<RankList>> s = readInputInParallel(inputFiles, false, false);
+			for(int i=0;i<s.size();i++)
+				samples.addAll(s.get(i));
+			return samples;
+		}
 		for(int i=0;i<inputFiles.size();i++)
 		{
 			List<RankList> s = readInput(inputFiles.get(i), false, false);
@@ -205,6 +274,94 @@ public class FeatureManager {
 		}
 		return samples;
 	}
+	/**
+	 * Read several files at once on the thread pool. Each file is cut into chunks of at least minChunkSize bytes, whose boundaries 
+	 * are moved forward to the next change of query id so that no ranked list spans two chunks. The chunks of all files are parsed 
+	 * concurrently, and their ranked lists are put back together in order: the result is the same as reading each file with 
+	 * readInput(file, mustHaveRelDoc, useSparseRepresentation).
+	 * @return The ranked lists of each file.
+	 */
+	public static List<List<RankList>> readInputInParallel(List<String> inputFiles, boolean mustHaveRelDoc, boolean useSparseRepresentation)
+	{
+		MyThreadPool p = MyThreadPool.getInstance();
+		FileChannel[] channels = new FileChannel[inputFiles.size()];
+		try {
+			//cut the files into chunks
+			List<long[]> chunks = new ArrayList<long[]>();//{file, start, end}
+			for(int i=0;i<inputFiles.size();i++)
+			{
+				channels[i] = new RandomAccessFile(inputFiles.get(i), "r").getChannel();
+				long size = channels[i].size();
+				long nChunks = Math.max(1, Math.min(size / minChunkSize, p.size() * MyThreadPool.CHUNKS_PER_THREAD));
+				long start = 0;
+				for(long c=1;c<=nChunks && start<size;c++)
+				{
+					long end = (c == nChunks) ? size : alignToQuery(channels[i], size * c / nChunks, size);
+					if(end > start)
+					{
+						chunks.add(new long[]{i, start, end});
+						start = end;
+					}
+				}
+			}
+			
+			//parse them
+			long[] cost = new long[chunks.size()];
+			for(int c=0;c<chunks.size();c++)
+				cost[c] = chunks.get(c)[2] - chunks.get(c)[1];
+			ChunkReader reader = new ChunkReader(chunks, channels, mustHaveRelDoc, useSparseRepresentation);
+			p.execute(reader, cost);
+			if(reader.error != null)
+				throw reader.error;
+			
+			//put the ranked lists back together
+			List<List<RankList>> samples = new ArrayList<List<RankList>>();
+			int[] countEntries = new int[inputFiles.size()];
+			for(int i=0;i<inputFiles.size();i++)
+				samples.add(new ArrayList<RankList>());
+			for(int c=0;c<chunks.size();c++)
+			{
+				int i = (int)chunks.get(c)[0];
+				samples.get(i).addAll(reader.samples.get(c));
+				countEntries[i] += reader.countEntries[c];
+			}
+			for(int i=0;i<inputFiles.size();i++)
+			{
+				channels[i].close();
+				System.out.println("Reading feature file [" + inputFiles.get(i) + "]... [Done.]            ");
+				System.out.println("(" + samples.get(i).size() + " ranked lists, " + countEntries[i] + " entries read)");
+			}
+			return samples;
+		}
+		catch(Exception ex)
+		{
+			for(int i=0;i<channels.length;i++)
+				try {
+					if(channels[i] != null)
+						channels[i].close();
+				}
+				catch(IOException e)
+				{
+				}
+			throw RankLibError.create("Error in FeatureManager::readInput(): ", ex);
+		}
+	}
+	/**
+	 * @return The offset of the first line after @pos that starts a new ranked list, i.e. whose id is not the one of the first data 
+	 * line starting at or after @pos (or the end of the file if there is none).
+	 */
+	private static long alignToQuery(FileChannel channel, long pos, long size) throws IOException
+	{
+		DataPointParser in = new DataPointParser(channel, pos, size, false);
+		DataPoint first = in.next();
+		if(first == null)
+			return size;
+		DataPoint qp = null;
+		while((qp = in.next()) != null)
+			if(qp.getID().compareTo(first.getID()) != 0)
+				return in.lineOffset();
+		return size;
+	}
 	/**
 	 * Read features specified in an input feature file. Expecting one feature per line. 
 	 * @param featureDefFile
@@ -406,4 +563,52 @@ public class FeatureManager {
 			out.newLine();
 		}
 	}
+	
+	static class ChunkReader extends WorkerThread {
+		List<long[]> chunks = null;
+		FileChannel[] channels = null;
+		boolean mustHaveRelDoc = false;
+		boolean useSparseRepresentation = false;
+		//results, shared by all clones (each chunk is set by the one clone reading it)
+		List<List<RankList>> samples = null;
+		int[] countEntries = null;
+		volatile Exception error = null;
+		ChunkReader parent = null;
+		
+		public ChunkReader(List<long[]> chunks, FileChannel[] channels, boolean mustHaveRelDoc, boolean useSparseRepresentation)
+		{
+			this.chunks = chunks;
+			this.channels = channels;
+			this.mustHaveRelDoc = mustHaveRelDoc;
+			this.useSparseRepresentation = useSparseRepresentation;
+			samples = new ArrayList<List<RankList>>(Collections.nCopies(chunks.size(), (List<RankList>)null));
+			countEntries = new int[chunks.size()];
+			parent = this;
+		}
+		public void run()
+		{
+			try {
+				for(int c=start;c<=end;c++)
+				{
+					long[] chunk = chunks.get(c);
+					DataPointParser in = new DataPointParser(channels[(int)chunk[0]], chunk[1], chunk[2], useSparseRepresentation);
+					List<RankList> s = new ArrayList<RankList>();
+					countEntries[c] = readRankLists(in, mustHaveRelDoc, useSparseRepresentation, s, null);
+					samples.set(c, s);
+				}
+			}
+			catch(Exception ex)
+			{
+				parent.error = ex;
+			}
+		}
+		public WorkerThread clone()
+		{
+			ChunkReader r = new ChunkReader(chunks, channels, mustHaveRelDoc, useSparseRepresentation);
+			r.samples = samples;
+			r.countEntries = countEntries;
+			r.parent = parent;
+			return r;
+		}
+	}
 }
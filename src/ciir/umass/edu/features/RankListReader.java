@@ -0,0 +1,91 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.features;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.learning.DataPointParser;
+import ciir.umass.edu.learning.RankList;
+
+/**
+ * Reads the ranked lists of a feature file one at a time, in the order of the file, instead of loading all of them: it returns the
+ * same ranked lists as FeatureManager.readInput(), while only the current one is kept in memory.
+ */
+public class RankListReader implements Closeable {
+
+	private DataPointParser in = null;
+	private boolean mustHaveRelDoc = false;
+	private DataPoint pending = null;//first data point of the next ranked list
+	private int countLists = 0;
+	private long countEntries = 0;
+
+	public RankListReader(String inputFile, boolean mustHaveRelDoc, boolean useSparseRepresentation) throws IOException
+	{
+		in = new DataPointParser(new FileInputStream(inputFile), useSparseRepresentation);
+		this.mustHaveRelDoc = mustHaveRelDoc;
+		pending = in.next();
+	}
+
+	/**
+	 * @return The next ranked list, or null at the end of the file.
+	 */
+	public RankList next() throws IOException
+	{
+		while(pending != null)
+		{
+			String lastID = "";
+			boolean hasRel = false;
+			List<DataPoint> rl = new ArrayList<DataPoint>();
+			DataPoint qp = pending;
+			pending = null;
+			do {
+				if(lastID.compareTo("")!=0 && lastID.compareTo(qp.getID())!=0)
+				{
+					pending = qp;
+					break;
+				}
+				if(qp.getLabel() > 0)
+					hasRel = true;
+				lastID = qp.getID();
+				rl.add(qp);
+			} while((qp = in.next()) != null);
+			countEntries += rl.size();
+			if(!mustHaveRelDoc || hasRel)
+			{
+				countLists++;
+				return new RankList(rl);
+			}
+		}
+		return null;
+	}
+	/**
+	 * @return The number of ranked lists returned so far.
+	 */
+	public int listCount()
+	{
+		return countLists;
+	}
+	/**
+	 * @return The number of data points read so far (including those of the ranked lists left out because of mustHaveRelDoc).
+	 */
+	public long entryCount()
+	{
+		return countEntries;
+	}
+	public void close() throws IOException
+	{
+		in.close();
+	}
+}
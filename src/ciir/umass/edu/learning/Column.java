@@ -0,0 +1,172 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.learning;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A column of fixed-size values (bytes, ints, floats or longs) stored outside of the Java heap, either in buffers memory-mapped from
+ * a file or in direct buffers. Values are addressed by their index in the column, and the column is split into pages of 2^30 bytes
+ * so that it can be larger than a single ByteBuffer.
+ */
+public class Column {
+
+	public static final int PAGE_BITS = 30;
+
+	protected ByteBuffer[] pages = null;
+	protected long size = 0;//number of values
+	protected int valueBits = 0;//log2 of the size of a value, in bytes
+	protected int indexBits = 0;//log2 of the number of values per page
+	protected int indexMask = 0;
+
+	protected Column(long size, int valueBytes)
+	{
+		this.size = size;
+		valueBits = Integer.numberOfTrailingZeros(valueBytes);
+		indexBits = PAGE_BITS - valueBits;
+		indexMask = (1 << indexBits) - 1;
+		pages = new ByteBuffer[(int)((size + indexMask) >>> indexBits)];
+	}
+
+	/**
+	 * Map @size values of @valueBytes bytes each, starting at @position in the file. The mapping is private: values can be modified,
+	 * but changes are never written back to the file (@channel must still be open for writing).
+	 */
+	public static Column map(FileChannel channel, long position, long size, int valueBytes) throws IOException
+	{
+		Column c = new Column(size, valueBytes);
+		long bytes = size << c.valueBits;
+		for(int p=0;p<c.pages.length;p++)
+		{
+			long start = (long)p << PAGE_BITS;
+			c.pages[p] = channel.map(FileChannel.MapMode.PRIVATE, position + start, Math.min(1L << PAGE_BITS, bytes - start));
+		}
+		return c;
+	}
+
+	/**
+	 * Allocate a column of @size values (all bits 0) in direct buffers. Direct buffers are not part of the heap, but their total size
+	 * is limited by -XX:MaxDirectMemorySize (which defaults to the maximum heap size).
+	 */
+	public static Column allocate(long size, int valueBytes)
+	{
+		Column c = new Column(0, valueBytes);
+		c.ensureCapacity(size);
+		return c;
+	}
+	/**
+	 * Make the column (allocated with {@link #allocate(long, int)}) hold at least @size values, keeping its current values. The
+	 * column grows by at least half of its size, so that filling it value by value takes amortized constant time.
+	 */
+	public void ensureCapacity(long size)
+	{
+		if(size <= this.size)
+			return;
+		size = Math.max(size, this.size + (this.size >>> 1));
+		long bytes = size << valueBits;
+		int nPages = (int)((bytes + (1L << PAGE_BITS) - 1) >>> PAGE_BITS);
+		pages = Arrays.copyOf(pages, nPages);
+		for(int p=0;p<nPages;p++)
+		{
+			int pageBytes = (int)Math.min(1L << PAGE_BITS, bytes - ((long)p << PAGE_BITS));
+			if(pages[p] != null && pages[p].capacity() >= pageBytes)
+				continue;
+			ByteBuffer page = ByteBuffer.allocateDirect(pageBytes);
+			if(pages[p] != null)
+			{
+				ByteBuffer old = pages[p].duplicate();
+				old.clear();
+				page.put(old);
+				page.clear();
+			}
+			pages[p] = page;
+		}
+		this.size = size;
+	}
+
+	/**
+	 * @return The number of values in the column.
+	 */
+	public long size()
+	{
+		return size;
+	}
+	/**
+	 * @return The number of bytes taken by the column.
+	 */
+	public long bytes()
+	{
+		return size << valueBits;
+	}
+
+	public byte getByte(long i)
+	{
+		return pages[(int)(i >>> indexBits)].get((int)i & indexMask);
+	}
+	public int getInt(long i)
+	{
+		return pages[(int)(i >>> indexBits)].getInt(((int)i & indexMask) << 2);
+	}
+	public float getFloat(long i)
+	{
+		return pages[(int)(i >>> indexBits)].getFloat(((int)i & indexMask) << 2);
+	}
+	public long getLong(long i)
+	{
+		return pages[(int)(i >>> indexBits)].getLong(((int)i & indexMask) << 3);
+	}
+	public void putByte(long i, byte v)
+	{
+		pages[(int)(i >>> indexBits)].put((int)i & indexMask, v);
+	}
+	public void putInt(long i, int v)
+	{
+		pages[(int)(i >>> indexBits)].putInt(((int)i & indexMask) << 2, v);
+	}
+	public void putFloat(long i, float v)
+	{
+		pages[(int)(i >>> indexBits)].putFloat(((int)i & indexMask) << 2, v);
+	}
+	public void putLong(long i, long v)
+	{
+		pages[(int)(i >>> indexBits)].putLong(((int)i & indexMask) << 3, v);
+	}
+	/**
+	 * Copy @length bytes starting at @from to @dst (this is a column of bytes).
+	 */
+	public void get(long from, byte[] dst, int length)
+	{
+		for(int i=0;i<length;)
+		{
+			ByteBuffer page = pages[(int)((from + i) >>> indexBits)].duplicate();
+			page.position((int)(from + i) & indexMask);
+			int n = Math.min(length - i, page.remaining());
+			page.get(dst, i, n);
+			i += n;
+		}
+	}
+	/**
+	 * Copy @length bytes of @src to the column (of bytes), starting at @to.
+	 */
+	public void put(long to, byte[] src, int length)
+	{
+		for(int i=0;i<length;)
+		{
+			ByteBuffer page = pages[(int)((to + i) >>> indexBits)].duplicate();
+			page.position((int)(to + i) & indexMask);
+			int n = Math.min(length - i, page.remaining());
+			page.put(src, i, n);
+			i += n;
+		}
+	}
+}
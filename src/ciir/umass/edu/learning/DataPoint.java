@@ -27,10 +27,14 @@ public abstract class DataPoint {
 	
 	protected static float UNKNOWN = Float.NaN;
 	
+	//position of the numeric docid in the comment part of a line, e.g. "#docid = 1234" (tokens separated by " ")
+	public static int DOCID_FIELD = 2;
+	
 	//attributes
 	protected float label = 0.0f;//[ground truth] the real label of the data point (e.g. its degree of relevance according to the relevance judgment)
 	protected String id = "";//id of this data point (e.g. query-id)
 	protected String description = "";
+	protected int docid = -1;//numeric docid extracted from @description at load time (-1 if there is none)
 	protected float[] fVals = null; //fVals[0] is un-used. Feature id MUST start from 1
 	
 	//helper attributes
@@ -51,6 +55,43 @@ public abstract class DataPoint {
 	{
 		return pair.substring(pair.lastIndexOf(":")+1);
 	}	
+	/**
+	 * Extract the numeric docid from the comment part of a line. This is equivalent to
+	 * Integer.parseInt(description.split(" ")[DOCID_FIELD]), without the regex split and the intermediate Strings.
+	 * @param description
+	 * @return The docid, or -1 if the field is missing or is not an int (getDocID() then fails the way Integer.parseInt does).
+	 */
+	protected static int parseDocID(String description)
+	{
+		int start = 0;
+		for(int f=0;f<DOCID_FIELD;f++)
+		{
+			start = description.indexOf(' ', start) + 1;
+			if(start == 0)
+				return -1;
+		}
+		int end = description.indexOf(' ', start);
+		if(end == -1)
+			end = description.length();
+		boolean negative = false;
+		if(start < end && (description.charAt(start) == '-' || description.charAt(start) == '+'))
+			negative = (description.charAt(start++) == '-');
+		if(end == start)
+			return -1;
+		long v = 0;
+		for(int i=start;i<end;i++)
+		{
+			char c = description.charAt(i);
+			if(c < '0' || c > '9')
+				return -1;
+			v = v * 10 + (c - '0');
+			if(v > 1L + Integer.MAX_VALUE)
+				return -1;
+		}
+		if(negative)
+			v = -v;
+		return (v > Integer.MAX_VALUE) ? -1 : (int)v;
+	}
 	
 	/**
 	 * Parse the given line of text to construct a dense array of feature values and reset metadata.
@@ -67,6 +108,7 @@ public abstract class DataPoint {
 			if(idx != -1)
 			{
 				description = text.substring(idx);
+				docid = parseDocID(description);
 				text = text.substring(0, idx).trim();//remove the comment part at the end of the line
 			}
 			String[] fs = text.split("\\s+");
@@ -177,6 +219,35 @@ public abstract class DataPoint {
 	public void setDescription(String description)
 	{
 		this.description = description;
+		docid = parseDocID(description);
+	}
+	/**
+	 * @return The numeric docid found in the description (see {@link #DOCID_FIELD}).
+	 * @throws RankLibError If the description has no such field, or if it is not an int.
+	 */
+	public int getDocID()
+	{
+		int d = storedDocID();
+		if(d != -1)
+			return d;
+		//either the docid is -1, or there is none: find out (and fail) the way the docid used to be read
+		String[] fields = getDescription().split(" ");
+		if(DOCID_FIELD >= fields.length)
+			throw RankLibError.create("Error in DataPoint::getDocID(): no docid (field " + DOCID_FIELD + ") in \"" + getDescription() + "\"");
+		try {
+			return Integer.parseInt(fields[DOCID_FIELD]);
+		}
+		catch(NumberFormatException ex)
+		{
+			throw RankLibError.create("Error in DataPoint::getDocID(): invalid docid in \"" + getDescription() + "\"", ex);
+		}
+	}
+	/**
+	 * @return The docid extracted when the data point was read: -1 if there is none or it is not an int.
+	 */
+	int storedDocID()
+	{
+		return docid;
 	}
 	public void setCached(double c)
 	{
@@ -195,16 +266,24 @@ public abstract class DataPoint {
 	public String toString()
 	{
 		float[] fVals = getFeatureVector();
-		String output = ((int)label) + " " + "qid:" + id + " ";
+		String output = ((int)getLabel()) + " " + "qid:" + getID() + " ";
 		for(int i=1;i<fVals.length;i++)
 			if(!isUnknown(fVals[i]))
 				output += i + ":" + fVals[i] + ((i==fVals.length-1)?"":" ");
-		output += " " + description;
+		output += " " + getDescription();
 		return output;
 	}
 	
 	public static int getFeatureCount()
 	{
 		return featureCount;
-	}	
+	}
+	/**
+	 * Raise the number of features to @f if it is lower (data points may be read by several threads at once).
+	 */
+	public static synchronized void updateFeatureCount(int f)
+	{
+		if(f > featureCount)
+			featureCount = f;
+	}
 }
\ No newline at end of file
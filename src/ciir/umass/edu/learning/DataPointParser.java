@@ -0,0 +1,405 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.learning;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import ciir.umass.edu.utilities.RankLibError;
+
+/**
+ * Reads data points (SVMlight/LETOR format: "label qid:id fid:value ... #description") from a stream, one line at a time, straight
+ * from the bytes of a window over the input: labels, feature ids and values are parsed in place, without splitting the line into
+ * Strings, and the buffers used for a line are reused for the next one. The only Strings created are the query id (once per query,
+ * as long as the lines of a query are contiguous) and the description.
+ *
+ * Blank lines and lines starting with "#" are skipped. Otherwise, the data points are the same as the ones built from each line by
+ * the DenseDataPoint(String) and SparseDataPoint(String) constructors.
+ *
+ * Several parsers can read different byte ranges of the same file at once (see DataPointParser(FileChannel, long, long, boolean)).
+ */
+public class DataPointParser implements Closeable {
+
+	public static int BUFFER_SIZE = 1 << 20;//initial size of the window (grown if a line does not fit)
+
+	private static final double[] POW10 = new double[23];
+	static
+	{
+		POW10[0] = 1;
+		for(int i=1;i<POW10.length;i++)
+			POW10[i] = POW10[i-1] * 10;
+	}
+
+	private InputStream in = null;
+	//or: the lines of @channel starting in [@base, @end) (@base moves along as the window does)
+	private FileChannel channel = null;
+	private long base = 0;
+	private long end = 0;
+	private boolean sparse = false;
+
+	private byte[] buf = null;
+	private int pos = 0;//start of the next line in @buf
+	private int limit = 0;//end of the data in @buf
+	private boolean eof = false;
+	private long lineOffset = -1;//offset in the file of the line of the last data point returned (channel only)
+	private int maxFeature = 0;//largest feature id seen by this parser
+
+	//scratch buffers: feature values indexed by feature id (UNKNOWN except while a line is being parsed), and the ids seen on the line
+	private float[] fVals = null;
+	private int[] fids = new int[64];
+	private String lastID = "";
+
+	public DataPointParser(InputStream in, boolean sparse)
+	{
+		this.in = in;
+		this.sparse = sparse;
+		buf = new byte[BUFFER_SIZE];
+		fVals = new float[DataPoint.MAX_FEATURE];
+		Arrays.fill(fVals, DataPoint.UNKNOWN);
+	}
+	/**
+	 * Read the lines of @channel that start in [@start, @end): if @start is in the middle of a line, that line is left to the parser
+	 * of the range before. The channel is only read at explicit positions, so several parsers can share it.
+	 */
+	public DataPointParser(FileChannel channel, long start, long end, boolean sparse) throws IOException
+	{
+		this.channel = channel;
+		this.end = end;
+		this.sparse = sparse;
+		buf = new byte[BUFFER_SIZE];
+		fVals = new float[DataPoint.MAX_FEATURE];
+		Arrays.fill(fVals, DataPoint.UNKNOWN);
+		if(start > 0)
+		{
+			//start from the previous byte: a line starts at @start iff it is a line break
+			base = start - 1;
+			fill();
+			while(true)
+			{
+				while(pos < limit && buf[pos] != '\n' && buf[pos] != '\r')
+					pos++;
+				if(pos < limit || eof)
+					break;
+				fill();
+			}
+			if(pos < limit)
+				pos++;
+		}
+		else
+			base = start;
+	}
+
+	/**
+	 * @return The next data point, or null at the end of the input.
+	 */
+	public DataPoint next() throws IOException
+	{
+		while(true)
+		{
+			//find the end of the next line, reading more input if needed
+			int end = pos;
+			while(true)
+			{
+				while(end < limit && buf[end] != '\n' && buf[end] != '\r')
+					end++;
+				if(end < limit || eof)
+					break;
+				end -= pos;
+				fill();
+				end += pos;
+			}
+			if(pos == limit && eof)
+				return null;
+			int start = pos;
+			pos = (end < limit) ? end + 1 : end;
+			if(channel != null)
+			{
+				lineOffset = base + start;
+				if(lineOffset >= this.end)//this line belongs to the next range
+				{
+					eof = true;
+					limit = pos = start;
+					return null;
+				}
+			}
+
+			//trim
+			while(start < end && (buf[start] & 0xFF) <= ' ')
+				start++;
+			while(end > start && (buf[end-1] & 0xFF) <= ' ')
+				end--;
+			if(start == end || buf[start] == '#')
+				continue;
+			return parse(start, end);
+		}
+	}
+	/**
+	 * Move what is left of the window to its beginning, and read more input after it.
+	 */
+	private void fill() throws IOException
+	{
+		if(pos > 0)
+		{
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			base += pos;
+			limit -= pos;
+			pos = 0;
+		}
+		if(limit == buf.length)
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		int n = (channel == null) ? in.read(buf, limit, buf.length - limit) : channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit), base + limit);
+		if(n == -1)
+			eof = true;
+		else
+			limit += n;
+	}
+	/**
+	 * @return The offset in the file of the line of the last data point returned by next() (only when reading from a channel).
+	 */
+	public long lineOffset()
+	{
+		return lineOffset;
+	}
+
+	/**
+	 * Parse the (trimmed, non-empty) line in buf[start, end).
+	 */
+	private DataPoint parse(int start, int end)
+	{
+		DataPoint dp = sparse ? new SparseDataPoint() : new DenseDataPoint();
+		int lastFeature = -1;
+		int n = 0;
+		try {
+			for(int i=start;i<end;i++)
+				if(buf[i] == '#')
+				{
+					dp.description = new String(buf, i, end - i, StandardCharsets.US_ASCII);
+					dp.docid = DataPoint.parseDocID(dp.description);
+					end = i;
+					while(end > start && (buf[end-1] & 0xFF) <= ' ')
+						end--;
+					break;
+				}
+
+			//label
+			int t = start;
+			int e = tokenEnd(t, end);
+			dp.label = parseFloat(t, e);
+			if(dp.label < 0)
+			{
+				System.out.println("Relevance label cannot be negative. System will now exit.");
+				System.exit(1);
+			}
+
+			//query id: what follows the last ':' of the second token
+			t = skipSpaces(e, end);
+			if(t == end)
+				throw RankLibError.create("Missing query id.");
+			e = tokenEnd(t, end);
+			dp.id = queryID(lastColon(t, e) + 1, e);
+
+			//features
+			for(t=skipSpaces(e, end);t<end;t=skipSpaces(e, end))
+			{
+				e = tokenEnd(t, end);
+				dp.knownFeatures++;
+				int colon = t;
+				while(colon < e && buf[colon] != ':')
+					colon++;
+				if(colon == e)
+					throw RankLibError.create("Invalid feature: " + new String(buf, t, e - t, StandardCharsets.US_ASCII));
+				int f = parseInt(t, colon);
+				if(f <= 0) throw RankLibError.create("Cannot use feature numbering less than or equal to zero. Start your features at 1.");
+				if(f >= fVals.length)
+				{
+					while(f >= DataPoint.MAX_FEATURE)
+						DataPoint.MAX_FEATURE += DataPoint.FEATURE_INCREASE;
+					int size = fVals.length;
+					fVals = Arrays.copyOf(fVals, Math.max(DataPoint.MAX_FEATURE, f+1));
+					Arrays.fill(fVals, size, fVals.length, DataPoint.UNKNOWN);
+				}
+				float v = parseFloat(lastColon(t, e) + 1, e);
+				if(DataPoint.isUnknown(fVals[f]))
+				{
+					if(n == fids.length)
+						fids = Arrays.copyOf(fids, n * 2);
+					fids[n++] = f;
+				}
+				fVals[f] = v;
+
+				if(f > maxFeature)//#feature will be the max_id observed
+				{
+					maxFeature = f;
+					DataPoint.updateFeatureCount(f);
+				}
+
+				if(f > lastFeature)
+					lastFeature = f;
+			}
+
+			if(sparse)
+			{
+				//same as SparseDataPoint.setFeatureVector(), from the ids seen instead of all ids up to the largest one
+				SparseDataPoint sdp = (SparseDataPoint)dp;
+				Arrays.sort(fids, 0, n);
+				sdp.fIds = new int[sdp.knownFeatures];
+				sdp.fVals = new float[sdp.knownFeatures];
+				int k = 0;
+				for(int i=0;i<n;i++)
+				{
+					if(DataPoint.isUnknown(fVals[fids[i]]) || (i > 0 && fids[i] == fids[i-1]))//"NaN" values are unknown
+						continue;
+					sdp.fIds[k] = fids[i];
+					sdp.fVals[k++] = fVals[fids[i]];
+				}
+			}
+			else
+				dp.setFeatureVector(Arrays.copyOf(fVals, lastFeature+1));
+		}
+		catch(Exception ex)
+		{
+			throw RankLibError.create("Error in DataPoint::parse()", ex);
+		}
+		finally {
+			for(int i=0;i<n;i++)
+				fVals[fids[i]] = DataPoint.UNKNOWN;
+		}
+		return dp;
+	}
+
+	private static boolean isSpace(byte b)
+	{
+		return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+	}
+	private int skipSpaces(int i, int end)
+	{
+		while(i < end && isSpace(buf[i]))
+			i++;
+		return i;
+	}
+	private int tokenEnd(int i, int end)
+	{
+		while(i < end && !isSpace(buf[i]))
+			i++;
+		return i;
+	}
+	/**
+	 * @return The position of the last ':' in buf[start, end), or start-1 if there is none.
+	 */
+	private int lastColon(int start, int end)
+	{
+		int i = end - 1;
+		while(i >= start && buf[i] != ':')
+			i--;
+		return i;
+	}
+	/**
+	 * The query id in buf[start, end), which is the same as the one of the previous line most of the time.
+	 */
+	private String queryID(int start, int end)
+	{
+		int len = end - start;
+		boolean same = (lastID.length() == len);
+		for(int i=0;i<len && same;i++)
+			same = (lastID.charAt(i) == buf[start+i]);
+		if(!same)
+			lastID = new String(buf, start, len, StandardCharsets.US_ASCII);
+		return lastID;
+	}
+
+	/**
+	 * Same as Integer.parseInt() on buf[start, end).
+	 */
+	private int parseInt(int start, int end)
+	{
+		if(end == start || end - start > 9)
+			return Integer.parseInt(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+		int v = 0;
+		for(int i=start;i<end;i++)
+		{
+			int d = buf[i] - '0';
+			if(d < 0 || d > 9)
+				return Integer.parseInt(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+			v = v * 10 + d;
+		}
+		return v;
+	}
+	/**
+	 * Same as Float.parseFloat() on buf[start, end). Plain decimal numbers ([sign] digits [. digits] [e [sign] digits]) with at most
+	 * 18 significant digits and a small exponent are parsed in place: m * 10^exp is then rounded exactly once to a double, which gives
+	 * the correctly rounded float unless it lies exactly half-way between two floats. Anything else goes through Float.parseFloat().
+	 */
+	private float parseFloat(int start, int end)
+	{
+		int i = start;
+		boolean negative = false;
+		if(i < end && (buf[i] == '-' || buf[i] == '+'))
+			negative = (buf[i++] == '-');
+		long m = 0;
+		int digits = 0;//significant digits in @m
+		int exp = 0;
+		boolean any = false;
+		for(;i<end && buf[i] >= '0' && buf[i] <= '9';i++)
+		{
+			any = true;
+			m = m * 10 + (buf[i] - '0');
+			if(m != 0)
+				digits++;
+		}
+		if(i < end && buf[i] == '.')
+			for(i++;i<end && buf[i] >= '0' && buf[i] <= '9';i++)
+			{
+				any = true;
+				m = m * 10 + (buf[i] - '0');
+				exp--;
+				if(m != 0)
+					digits++;
+			}
+		if(any && i < end && (buf[i] == 'e' || buf[i] == 'E'))
+		{
+			i++;
+			boolean negativeExp = false;
+			if(i < end && (buf[i] == '-' || buf[i] == '+'))
+				negativeExp = (buf[i++] == '-');
+			int x = 0;
+			int n = 0;
+			for(;i<end && buf[i] >= '0' && buf[i] <= '9' && n < 4;i++, n++)
+				x = x * 10 + (buf[i] - '0');
+			if(n == 0)
+				any = false;
+			exp += negativeExp ? -x : x;
+		}
+		if(any && i == end && digits <= 18)
+		{
+			if(m == 0)
+				return negative ? -0.0f : 0.0f;
+			if(m < (1L << 53) && exp >= -22 && exp <= 22)
+			{
+				double d = (exp < 0) ? m / POW10[-exp] : m * POW10[exp];
+				long bits = Double.doubleToRawLongBits(d);
+				//not half-way between two (normal) floats: rounding it to a float gives the same as rounding the decimal value
+				if(d >= Float.MIN_NORMAL && (bits & 0x1FFFFFFFL) != 0x10000000L)
+					return (float)(negative ? -d : d);
+			}
+		}
+		return Float.parseFloat(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+	}
+
+	public void close() throws IOException
+	{
+		if(in != null)
+			in.close();
+	}
+}
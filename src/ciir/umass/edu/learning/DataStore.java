@@ -0,0 +1,724 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.learning;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ciir.umass.edu.utilities.RankLibError;
+
+/**
+ * A dataset stored column by column outside of the Java heap, in buffers memory-mapped from a file (see {@link #map(FileChannel, long)})
+ * or in direct buffers (see {@link Builder}). Its data points (see {@link #get(int)}) are views on one row of the columns: apart from
+ * their query id, none of their attributes is kept on the heap. The layout of the columns in a file is (all values big-endian, each
+ * section padded to a multiple of 8 bytes):
+ * <pre>
+ * int      number of rows N
+ * int      number of ranked lists L
+ * int      1 if the feature vectors are sparse, 0 if they are dense
+ * int      largest feature id
+ * int      width W of the dense feature columns (0 if sparse)
+ * int      0
+ * long     number of stored feature values V (0 if dense)
+ * long     total length of the query ids, in bytes
+ * long     total length of the descriptions, in bytes
+ * int[L+1] first row of each ranked list
+ * int[L+1] offset of the query id of each ranked list, followed by the query ids (UTF-8)
+ * float[N] labels
+ * int[N]   numeric docids
+ * long[N+1] offset of the description of each row, followed by the descriptions (UTF-8)
+ * dense:   int[N] length of the feature vector of each row, then for each feature id f in [1..W-1], float[N] values of f (NaN if
+ *          unknown)
+ * sparse:  long[N+1] offset of the feature values of each row, int[V] feature ids, float[V] feature values
+ * </pre>
+ */
+public class DataStore {
+
+	protected int nRows = 0;
+	protected boolean sparse = false;
+	protected int featureCount = 0;
+	protected int[] listStart = null;
+	protected String[] listIDs = null;
+
+	protected Column labels = null;
+	protected Column docids = null;
+	protected Column descOffsets = null;
+	protected Column descBytes = null;
+	//dense: length of each feature vector, and one column per feature id (features[0] is unused)
+	protected Column lengths = null;
+	protected Column[] features = null;
+	//sparse: compressed sparse rows
+	protected Column rowStart = null;
+	protected Column ids = null;
+	protected Column values = null;
+
+	/**
+	 * Write the columns of @samples to @out.
+	 */
+	public static void write(DataOutputStream out, List<RankList> samples, boolean sparse) throws IOException
+	{
+		int nRows = 0;
+		int width = 0;
+		int featureCount = 0;
+		long nValues = 0;
+		long qidBytes = 0;
+		long descBytes = 0;
+		for(int i=0;i<samples.size();i++)
+		{
+			RankList rl = samples.get(i);
+			qidBytes += utf8(rl.getID()).length;
+			for(int j=0;j<rl.size();j++)
+			{
+				DataPoint dp = rl.get(j);
+				descBytes += utf8(dp.getDescription()).length;
+				if(sparse)
+				{
+					SparseDataPoint sdp = (SparseDataPoint)dp;
+					int n = sdp.getKnownFeatureCount();
+					nValues += n;
+					if(n > 0)
+						featureCount = Math.max(featureCount, sdp.getKnownFeatureId(n-1));
+				}
+				else
+					width = Math.max(width, vectorLength(dp));
+			}
+			nRows += rl.size();
+		}
+		if(!sparse)
+			featureCount = Math.max(0, width - 1);
+
+		out.writeInt(nRows);
+		out.writeInt(samples.size());
+		out.writeInt(sparse ? 1 : 0);
+		out.writeInt(featureCount);
+		out.writeInt(sparse ? 0 : width);
+		out.writeInt(0);
+		out.writeLong(nValues);
+		out.writeLong(qidBytes);
+		out.writeLong(descBytes);
+
+		//ranked lists
+		int row = 0;
+		for(int i=0;i<samples.size();i++)
+		{
+			out.writeInt(row);
+			row += samples.get(i).size();
+		}
+		out.writeInt(row);
+		pad(out, 4L * (samples.size() + 1));
+		long offset = 0;
+		for(int i=0;i<samples.size();i++)
+		{
+			out.writeInt((int)offset);
+			offset += utf8(samples.get(i).getID()).length;
+		}
+		out.writeInt((int)offset);
+		pad(out, 4L * (samples.size() + 1));
+		for(int i=0;i<samples.size();i++)
+			out.write(utf8(samples.get(i).getID()));
+		pad(out, qidBytes);
+
+		//labels, docids and descriptions
+		for(int i=0;i<samples.size();i++)
+			for(int j=0;j<samples.get(i).size();j++)
+				out.writeFloat(samples.get(i).get(j).getLabel());
+		pad(out, 4L * nRows);
+		for(int i=0;i<samples.size();i++)
+			for(int j=0;j<samples.get(i).size();j++)
+				out.writeInt(samples.get(i).get(j).storedDocID());
+		pad(out, 4L * nRows);
+		offset = 0;
+		for(int i=0;i<samples.size();i++)
+			for(int j=0;j<samples.get(i).size();j++)
+			{
+				out.writeLong(offset);
+				offset += utf8(samples.get(i).get(j).getDescription()).length;
+			}
+		out.writeLong(offset);
+		pad(out, 8L * (nRows + 1));
+		for(int i=0;i<samples.size();i++)
+			for(int j=0;j<samples.get(i).size();j++)
+				out.write(utf8(samples.get(i).get(j).getDescription()));
+		pad(out, descBytes);
+
+		//feature values
+		if(sparse)
+		{
+			offset = 0;
+			for(int i=0;i<samples.size();i++)
+				for(int j=0;j<samples.get(i).size();j++)
+				{
+					out.writeLong(offset);
+					offset += ((SparseDataPoint)samples.get(i).get(j)).getKnownFeatureCount();
+				}
+			out.writeLong(offset);
+			pad(out, 8L * (nRows + 1));
+			for(int i=0;i<samples.size();i++)
+				for(int j=0;j<samples.get(i).size();j++)
+				{
+					SparseDataPoint sdp = (SparseDataPoint)samples.get(i).get(j);
+					for(int k=0;k<sdp.getKnownFeatureCount();k++)
+						out.writeInt(sdp.getKnownFeatureId(k));
+				}
+			pad(out, 4L * nValues);
+			for(int i=0;i<samples.size();i++)
+				for(int j=0;j<samples.get(i).size();j++)
+				{
+					SparseDataPoint sdp = (SparseDataPoint)samples.get(i).get(j);
+					for(int k=0;k<sdp.getKnownFeatureCount();k++)
+						out.writeFloat(sdp.getKnownFeatureValue(k));
+				}
+			pad(out, 4L * nValues);
+		}
+		else
+		{
+			for(int i=0;i<samples.size();i++)
+				for(int j=0;j<samples.get(i).size();j++)
+					out.writeInt(vectorLength(samples.get(i).get(j)));
+			pad(out, 4L * nRows);
+			for(int f=1;f<width;f++)
+			{
+				for(int i=0;i<samples.size();i++)
+					for(int j=0;j<samples.get(i).size();j++)
+						out.writeFloat(storedValue(samples.get(i).get(j), f));
+				pad(out, 4L * nRows);
+			}
+		}
+	}
+	/**
+	 * @return The length of the feature vector of a dense data point (without copying the vector of a view).
+	 */
+	private static int vectorLength(DataPoint dp)
+	{
+		if(dp instanceof DenseRow)
+			return ((DenseRow)dp).store.lengths.getInt(((DenseRow)dp).row);
+		return dp.getFeatureVector().length;
+	}
+	/**
+	 * @return The value of feature @f in the feature vector of a dense data point, UNKNOWN if @f is beyond its end.
+	 */
+	private static float storedValue(DataPoint dp, int f)
+	{
+		if(dp instanceof DenseRow)
+		{
+			DenseRow r = (DenseRow)dp;
+			return (f < r.store.lengths.getInt(r.row)) ? r.store.features[f].getFloat(r.row) : DataPoint.UNKNOWN;
+		}
+		float[] fVals = dp.getFeatureVector();
+		return (f < fVals.length) ? fVals[f] : DataPoint.UNKNOWN;
+	}
+	private static byte[] utf8(String s)
+	{
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+	/**
+	 * Pad a section of @bytes bytes to a multiple of 8 bytes.
+	 */
+	private static void pad(DataOutputStream out, long bytes) throws IOException
+	{
+		for(long i=bytes;i<padded(bytes);i++)
+			out.writeByte(0);
+	}
+	private static long padded(long bytes)
+	{
+		return (bytes + 7) & ~7L;
+	}
+
+	/**
+	 * Map the columns written by {@link #write(DataOutputStream, List, boolean)} at @position in the file of @channel (which must be
+	 * open for reading and writing, though the file is never modified). As when a feature file is parsed, the number of features
+	 * (see DataPoint.getFeatureCount()) is raised to the largest feature id of the dataset.
+	 */
+	public static DataStore map(FileChannel channel, long position) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(48);
+		while(header.hasRemaining())
+			if(channel.read(header, position + header.position()) < 0)
+				throw RankLibError.create("Error in DataStore::map(): unexpected end of file.");
+		header.flip();
+		DataStore ds = new DataStore();
+		ds.nRows = header.getInt();
+		int nLists = header.getInt();
+		ds.sparse = header.getInt() != 0;
+		ds.featureCount = header.getInt();
+		int width = header.getInt();
+		header.getInt();
+		long nValues = header.getLong();
+		long qidBytes = header.getLong();
+		long descBytes = header.getLong();
+		long pos = position + 48;
+
+		//ranked lists are small: they are read into the heap
+		Column c = Column.map(channel, pos, nLists + 1, 4);
+		ds.listStart = new int[nLists + 1];
+		for(int i=0;i<=nLists;i++)
+			ds.listStart[i] = c.getInt(i);
+		pos += padded(c.bytes());
+		Column qidOffsets = Column.map(channel, pos, nLists + 1, 4);
+		pos += padded(qidOffsets.bytes());
+		Column qids = Column.map(channel, pos, qidBytes, 1);
+		pos += padded(qids.bytes());
+		ds.listIDs = new String[nLists];
+		for(int i=0;i<nLists;i++)
+		{
+			byte[] b = new byte[qidOffsets.getInt(i+1) - qidOffsets.getInt(i)];
+			qids.get(qidOffsets.getInt(i), b, b.length);
+			ds.listIDs[i] = new String(b, StandardCharsets.UTF_8);
+		}
+
+		ds.labels = Column.map(channel, pos, ds.nRows, 4);
+		pos += padded(ds.labels.bytes());
+		ds.docids = Column.map(channel, pos, ds.nRows, 4);
+		pos += padded(ds.docids.bytes());
+		ds.descOffsets = Column.map(channel, pos, ds.nRows + 1L, 8);
+		pos += padded(ds.descOffsets.bytes());
+		ds.descBytes = Column.map(channel, pos, descBytes, 1);
+		pos += padded(ds.descBytes.bytes());
+		if(ds.sparse)
+		{
+			ds.rowStart = Column.map(channel, pos, ds.nRows + 1L, 8);
+			pos += padded(ds.rowStart.bytes());
+			ds.ids = Column.map(channel, pos, nValues, 4);
+			pos += padded(ds.ids.bytes());
+			ds.values = Column.map(channel, pos, nValues, 4);
+		}
+		else
+		{
+			ds.lengths = Column.map(channel, pos, ds.nRows, 4);
+			pos += padded(ds.lengths.bytes());
+			ds.features = new Column[width];
+			for(int f=1;f<width;f++)
+			{
+				ds.features[f] = Column.map(channel, pos, ds.nRows, 4);
+				pos += padded(ds.features[f].bytes());
+			}
+		}
+		DataPoint.updateFeatureCount(ds.featureCount);
+		return ds;
+	}
+
+	public int size()
+	{
+		return nRows;
+	}
+	public boolean isSparse()
+	{
+		return sparse;
+	}
+	/**
+	 * @return The largest feature id in the dataset.
+	 */
+	public int getFeatureCount()
+	{
+		return featureCount;
+	}
+	/**
+	 * @return A data point backed by the @row-th row of the columns.
+	 */
+	public DataPoint get(int row)
+	{
+		return sparse ? new SparseRow(this, row) : new DenseRow(this, row);
+	}
+	/**
+	 * @return The ranked lists of the dataset, made of views on its rows. The views of a list are only created when the list is first
+	 * used, and then kept by it.
+	 * @param mustHaveRelDoc Leave out the lists without any relevant (label > 0) data point.
+	 */
+	public List<RankList> rankLists(boolean mustHaveRelDoc)
+	{
+		List<RankList> samples = new ArrayList<RankList>();
+		for(int i=0;i<listIDs.length;i++)
+		{
+			boolean hasRel = false;
+			for(int row=listStart[i];row<listStart[i+1] && !hasRel;row++)
+				if(labels.getFloat(row) > 0)
+					hasRel = true;
+			if(listStart[i+1] > listStart[i] && (!mustHaveRelDoc || hasRel))
+				samples.add(new StoredList(this, i));
+		}
+		return samples;
+	}
+
+	protected String getDescription(int row)
+	{
+		long from = descOffsets.getLong(row);
+		byte[] b = new byte[(int)(descOffsets.getLong(row + 1) - from)];
+		descBytes.get(from, b, b.length);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Builds a DataStore in direct buffers, one data point at a time, in the order of the feature file: as in
+	 * FeatureManager.readInput(), consecutive data points with the same id make a ranked list. The data points added are copied, so
+	 * they can be dropped right away.
+	 */
+	public static class Builder {
+
+		protected DataStore ds = new DataStore();
+		protected long capacity = 0;//number of rows the columns can hold
+		protected int nLists = 0;
+		protected String lastID = "";
+		protected int width = 0;//dense: length of the longest feature vector
+		protected long nValues = 0;//sparse: number of feature values
+		protected long nDescBytes = 0;
+
+		public Builder(boolean sparse)
+		{
+			ds.sparse = sparse;
+			ds.listStart = new int[16];
+			ds.listIDs = new String[16];
+			ds.labels = Column.allocate(0, 4);
+			ds.docids = Column.allocate(0, 4);
+			ds.descOffsets = Column.allocate(1, 8);
+			ds.descBytes = Column.allocate(0, 1);
+			if(sparse)
+			{
+				ds.rowStart = Column.allocate(1, 8);
+				ds.ids = Column.allocate(0, 4);
+				ds.values = Column.allocate(0, 4);
+			}
+			else
+			{
+				ds.lengths = Column.allocate(0, 4);
+				ds.features = new Column[0];
+			}
+		}
+
+		public void add(DataPoint dp)
+		{
+			int row = ds.nRows;
+			if(row == 0 || (lastID.compareTo("")!=0 && lastID.compareTo(dp.getID())!=0))
+			{
+				if(nLists + 1 == ds.listStart.length)
+				{
+					ds.listStart = Arrays.copyOf(ds.listStart, 2 * ds.listStart.length);
+					ds.listIDs = Arrays.copyOf(ds.listIDs, 2 * ds.listIDs.length);
+				}
+				ds.listStart[nLists] = row;
+				ds.listIDs[nLists++] = dp.getID();
+			}
+			lastID = dp.getID();
+			if(row == capacity)
+				grow(row + 1);
+
+			ds.labels.putFloat(row, dp.getLabel());
+			ds.docids.putInt(row, dp.storedDocID());
+			byte[] desc = utf8(dp.getDescription());
+			ds.descBytes.ensureCapacity(nDescBytes + desc.length);
+			ds.descBytes.put(nDescBytes, desc, desc.length);
+			nDescBytes += desc.length;
+			ds.descOffsets.putLong(row + 1, nDescBytes);
+
+			if(ds.sparse)
+			{
+				SparseDataPoint sdp = (SparseDataPoint)dp;
+				int n = sdp.getKnownFeatureCount();
+				ds.ids.ensureCapacity(nValues + n);
+				ds.values.ensureCapacity(nValues + n);
+				for(int i=0;i<n;i++)
+				{
+					ds.ids.putInt(nValues + i, sdp.getKnownFeatureId(i));
+					ds.values.putFloat(nValues + i, sdp.getKnownFeatureValue(i));
+				}
+				if(n > 0)
+					ds.featureCount = Math.max(ds.featureCount, sdp.getKnownFeatureId(n-1));
+				nValues += n;
+				ds.rowStart.putLong(row + 1, nValues);
+			}
+			else
+			{
+				float[] fVals = dp.getFeatureVector();
+				if(fVals.length > width)
+					widen(fVals.length);
+				ds.lengths.putInt(row, fVals.length);
+				for(int f=1;f<width;f++)
+					ds.features[f].putFloat(row, (f < fVals.length) ? fVals[f] : DataPoint.UNKNOWN);
+			}
+			ds.nRows++;
+		}
+		/**
+		 * Make the columns of rows hold at least @rows rows.
+		 */
+		private void grow(long rows)
+		{
+			ds.labels.ensureCapacity(rows);
+			capacity = ds.labels.size();
+			ds.docids.ensureCapacity(capacity);
+			ds.descOffsets.ensureCapacity(capacity + 1);
+			if(ds.sparse)
+				ds.rowStart.ensureCapacity(capacity + 1);
+			else
+			{
+				ds.lengths.ensureCapacity(capacity);
+				for(int f=1;f<width;f++)
+					ds.features[f].ensureCapacity(capacity);
+			}
+		}
+		/**
+		 * Add the columns of the feature ids in [width, @newWidth), unknown in all the rows added so far.
+		 */
+		private void widen(int newWidth)
+		{
+			ds.features = Arrays.copyOf(ds.features, newWidth);
+			for(int f=Math.max(1, width);f<newWidth;f++)
+			{
+				ds.features[f] = Column.allocate(capacity, 4);
+				for(int row=0;row<ds.nRows;row++)
+					ds.features[f].putFloat(row, DataPoint.UNKNOWN);
+			}
+			width = newWidth;
+		}
+
+		/**
+		 * @return The store of all the data points added (the builder must not be used anymore).
+		 */
+		public DataStore build()
+		{
+			ds.listStart = Arrays.copyOf(ds.listStart, nLists + 1);
+			ds.listStart[nLists] = ds.nRows;
+			ds.listIDs = Arrays.copyOf(ds.listIDs, nLists);
+			if(!ds.sparse)
+				ds.featureCount = Math.max(0, width - 1);
+			return ds;
+		}
+	}
+
+	/**
+	 * A ranked list made of the rows listStart[list]..listStart[list+1]-1 of a {@link DataStore}.
+	 */
+	protected static class StoredList extends RankList {
+
+		protected final DataStore store;
+		protected final int list;
+		private volatile DataPoint[] rows = null;
+
+		protected StoredList(DataStore store, int list)
+		{
+			this.store = store;
+			this.list = list;
+		}
+
+		public int size()
+		{
+			return store.listStart[list+1] - store.listStart[list];
+		}
+		public String getID()
+		{
+			return store.listIDs[list];
+		}
+		protected DataPoint[] points()
+		{
+			DataPoint[] p = rows;
+			if(p == null)
+				p = createRows();
+			return p;
+		}
+		private synchronized DataPoint[] createRows()
+		{
+			if(rows == null)
+			{
+				DataPoint[] p = new DataPoint[size()];
+				for(int i=0;i<p.length;i++)
+				{
+					p[i] = store.get(store.listStart[list] + i);
+					p[i].id = store.listIDs[list];
+				}
+				rows = p;
+			}
+			return rows;
+		}
+	}
+
+	/**
+	 * A dense data point stored in a row of a {@link DataStore}. Its description, once set, is kept on the heap.
+	 */
+	public static class DenseRow extends DenseDataPoint {
+
+		protected final DataStore store;
+		protected final int row;
+
+		protected DenseRow(DataStore store, int row)
+		{
+			this.store = store;
+			this.row = row;
+			description = null;
+		}
+
+		public float getLabel()
+		{
+			return store.labels.getFloat(row);
+		}
+		public void setLabel(float label)
+		{
+			store.labels.putFloat(row, label);
+		}
+		public String getDescription()
+		{
+			return (description != null) ? description : store.getDescription(row);
+		}
+		int storedDocID()
+		{
+			return (description != null) ? docid : store.docids.getInt(row);
+		}
+
+		public float getFeatureValue(int fid)
+		{
+			if(fid <= 0 || fid >= store.lengths.getInt(row))
+				throw RankLibError.create("Error in DenseDataPoint::getFeatureValue(): requesting unspecified feature, fid=" + fid);
+			float v = store.features[fid].getFloat(row);
+			if(isUnknown(v))//value for unspecified feature is 0
+				return 0;
+			return v;
+		}
+		public void setFeatureValue(int fid, float fval)
+		{
+			if(fid <= 0 || fid >= store.lengths.getInt(row))
+				throw RankLibError.create("Error in DenseDataPoint::setFeatureValue(): feature (id=" + fid + ") not found.");
+			store.features[fid].putFloat(row, fval);
+		}
+		public void setFeatureVector(float[] dfVals)
+		{
+			if(dfVals.length != store.lengths.getInt(row))
+				throw RankLibError.create("Error in DataStore.DenseRow::setFeatureVector(): the length of a stored feature vector cannot change.");
+			for(int f=1;f<dfVals.length;f++)
+				store.features[f].putFloat(row, dfVals[f]);
+		}
+		/**
+		 * @return A copy of the feature vector (changing it does not change the data point).
+		 */
+		public float[] getFeatureVector()
+		{
+			float[] fVals = new float[store.lengths.getInt(row)];
+			if(fVals.length > 0)
+				fVals[0] = UNKNOWN;
+			for(int f=1;f<fVals.length;f++)
+				fVals[f] = store.features[f].getFloat(row);
+			return fVals;
+		}
+	}
+
+	/**
+	 * A sparse data point stored in a row of a {@link DataStore}. Its description, once set, is kept on the heap.
+	 */
+	public static class SparseRow extends SparseDataPoint {
+
+		protected final DataStore store;
+		protected final int row;
+		protected final long start;//offset of the values of the row in the columns of feature ids and values
+
+		protected SparseRow(DataStore store, int row)
+		{
+			this.store = store;
+			this.row = row;
+			start = store.rowStart.getLong(row);
+			knownFeatures = (int)(store.rowStart.getLong(row + 1) - start);
+			description = null;
+		}
+
+		public float getLabel()
+		{
+			return store.labels.getFloat(row);
+		}
+		public void setLabel(float label)
+		{
+			store.labels.putFloat(row, label);
+		}
+		public String getDescription()
+		{
+			return (description != null) ? description : store.getDescription(row);
+		}
+		int storedDocID()
+		{
+			return (description != null) ? docid : store.docids.getInt(row);
+		}
+
+		private long locate(int fid)
+		{
+			long lo = start;
+			long hi = start + knownFeatures - 1;
+			while(lo <= hi)
+			{
+				long mid = (lo + hi) >>> 1;
+				int id = store.ids.getInt(mid);
+				if(id < fid)
+					lo = mid + 1;
+				else if(id > fid)
+					hi = mid - 1;
+				else
+					return mid;
+			}
+			return -1;
+		}
+		public float getFeatureValue(int fid)
+		{
+			if(fid <= 0 || fid > getFeatureCount())
+			{
+				System.out.println("Error in SparseDataPoint::getFeatureValue(): requesting invalid feature, fid=" + fid);
+				System.exit(1);
+			}
+			long pos = locate(fid);
+			if(pos >= 0)
+				return store.values.getFloat(pos);
+			return 0;
+		}
+		public void setFeatureValue(int fid, float fval)
+		{
+			if(fid <= 0 || fid > getFeatureCount())
+			{
+				System.out.println("Error in SparseDataPoint::setFeatureValue(): feature (id=" + fid + ") out of range.");
+				System.exit(1);
+			}
+			long pos = locate(fid);
+			if(pos >= 0)
+				store.values.putFloat(pos, fval);
+			else
+			{
+				System.err.println("Error in SparseDataPoint::setFeatureValue(): feature (id=" + fid + ") not found.");
+				System.exit(1);
+			}
+		}
+		public void setFeatureVector(float[] dfVals)
+		{
+			for(int i=0;i<knownFeatures;i++)
+			{
+				int fid = getKnownFeatureId(i);
+				if(fid >= dfVals.length || isUnknown(dfVals[fid]))
+					throw RankLibError.create("Error in DataStore.SparseRow::setFeatureVector(): the set of stored features cannot change.");
+				store.values.putFloat(start + i, dfVals[fid]);
+			}
+		}
+		public int getKnownFeatureCount()
+		{
+			return knownFeatures;
+		}
+		public int getKnownFeatureId(int i)
+		{
+			return store.ids.getInt(start + i);
+		}
+		public float getKnownFeatureValue(int i)
+		{
+			return store.values.getFloat(start + i);
+		}
+		public float[] getFeatureVector()
+		{
+			float[] dfVals = new float[(knownFeatures > 0) ? getKnownFeatureId(knownFeatures-1) + 1 : 1];
+			Arrays.fill(dfVals, UNKNOWN);
+			for(int i=0;i<knownFeatures;i++)
+				dfVals[getKnownFeatureId(i)] = getKnownFeatureValue(i);
+			return dfVals;
+		}
+	}
+}
@@ -7,12 +7,16 @@ public class DenseDataPoint extends DataPoint {
 	public DenseDataPoint(String text) {
 		super(text);
 	}
+
+	DenseDataPoint() {
+	}
 	
 	public DenseDataPoint(DenseDataPoint dp)
 	{
 		label = dp.label;
 		id = dp.id;
 		description = dp.description;
+		docid = dp.docid;
 		cached = dp.cached;
 		fVals = new float[dp.fVals.length];
 		System.arraycopy(dp.fVals, 0, fVals, 0, dp.fVals.length);
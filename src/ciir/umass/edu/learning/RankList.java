@@ -9,9 +9,9 @@
 
 package ciir.umass.edu.learning;
 
-import java.util.Hashtable;
 import java.util.List;
 
+import ciir.umass.edu.metric.SensitivityStore;
 import ciir.umass.edu.utilities.Sorter;
 
 /**
@@ -23,6 +23,17 @@ import ciir.umass.edu.utilities.Sorter;
 public class RankList {
 
 	protected DataPoint[] rl = null;
+	// labels of the *original* list, shared (never copied) by every permuted view of it
+	protected Labels labels = null;
+	// position in this list --> index in @labels (null if this list is in the original order)
+	protected int[] order = null;
+
+	/**
+	 * For subclasses whose objects are only created on first use (see
+	 * {@link #points()}).
+	 */
+	protected RankList() {
+	}
 
 	public RankList(List<DataPoint> rl) {
 		this.rl = new DataPoint[rl.size()];
@@ -34,18 +45,28 @@ public class RankList {
 		this.rl = new DataPoint[rl.size()];
 		for (int i = 0; i < rl.size(); i++)
 			this.rl[i] = rl.get(i);
+		labels = rl.getLabels();
+		order = rl.order;
 	}
 
 	public RankList(RankList rl, int[] idx) {
 		this.rl = new DataPoint[rl.size()];
-		for (int i = 0; i < idx.length; i++)
+		labels = rl.getLabels();
+		order = new int[rl.size()];
+		for (int i = 0; i < this.rl.length; i++) {
 			this.rl[i] = rl.get(idx[i]);
+			order[i] = rl.orig(idx[i]);
+		}
 	}
 
 	public RankList(RankList rl, int[] idx, int offset) {
 		this.rl = new DataPoint[rl.size()];
-		for (int i = 0; i < idx.length; i++)
+		labels = rl.getLabels();
+		order = new int[rl.size()];
+		for (int i = 0; i < this.rl.length; i++) {
 			this.rl[i] = rl.get(idx[i] - offset);
+			order[i] = rl.orig(idx[i] - offset);
+		}
 	}
 
 	public String getID() {
@@ -57,14 +78,128 @@ public class RankList {
 	}
 
 	public DataPoint get(int k) {
-		return rl[k];
+		return points()[k];
 	}
 
 	public void set(int k, DataPoint p) {
-		rl[k] = p;
+		points()[k] = p;
+		// this list no longer matches the one its labels were computed from
+		labels = null;
+		order = null;
+	}
+
+	/**
+	 * @return The label arrays of the original list this list is a view of.
+	 *         They are computed once and shared by all views.
+	 */
+	public Labels getLabels() {
+		if (labels == null)
+			labels = new Labels(points());
+		return labels;
+	}
+
+	/**
+	 * @param k Position in this list.
+	 * @return Index of the same object in the original list.
+	 */
+	protected int orig(int k) {
+		return (order == null) ? k : order[k];
+	}
+
+	/**
+	 * @param k Position in this list.
+	 * @return The (integer) relevance label of the k-th object.
+	 */
+	public int getRelevance(int k) {
+		return getLabels().relevance[orig(k)];
+	}
+
+	/**
+	 * @param k Position in this list.
+	 * @return The true sensitivity label of the k-th object.
+	 */
+	public double getSensitivity(int k) {
+		return getLabels().sensitivity()[orig(k)];
+	}
+
+	/**
+	 * @param k Position in this list.
+	 * @return The predicted probability that the k-th object is sensitive.
+	 */
+	public double getPredictedSensitivity(int k) {
+		return getLabels().predictedSensitivity()[orig(k)];
+	}
+
+	/**
+	 * Immutable per-query labels in the original order of the list. Relevance
+	 * labels are read from the data points; sensitivity labels are looked up in
+	 * the {@link SensitivityStore} on first use (datasets without sensitivity
+	 * judgments never touch it).
+	 */
+	public static class Labels {
+		protected final int[] relevance;
+		private final DataPoint[] points;
+		private volatile int[] docids = null;
+		private volatile double[] sensitivity = null;
+		private volatile double[] predictedSensitivity = null;
+
+		protected Labels(DataPoint[] rl) {
+			relevance = new int[rl.length];
+			for (int i = 0; i < rl.length; i++)
+				relevance[i] = (int) rl[i].getLabel();
+			points = rl.clone();
+		}
+
+		// docids are only needed (and so only have to be valid) for sensitivity lookups
+		protected int[] docids() {
+			int[] d = docids;
+			if (d == null) {
+				d = new int[points.length];
+				for (int i = 0; i < points.length; i++)
+					d[i] = points[i].getDocID();
+				docids = d;
+			}
+			return d;
+		}
+
+		public int size() {
+			return relevance.length;
+		}
+
+		protected double[] sensitivity() {
+			double[] s = sensitivity;
+			if (s == null) {
+				int[] docids = docids();
+				s = new double[docids.length];
+				for (int i = 0; i < docids.length; i++)
+					s[i] = SensitivityStore.getTrueLabel(docids[i]);
+				sensitivity = s;
+			}
+			return s;
+		}
+
+		protected double[] predictedSensitivity() {
+			double[] s = predictedSensitivity;
+			if (s == null) {
+				int[] docids = docids();
+				s = new double[docids.length];
+				for (int i = 0; i < docids.length; i++)
+					s[i] = SensitivityStore.getPredictedProb(docids[i]);
+				predictedSensitivity = s;
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * @return The objects of this list (not a copy).
+	 */
+	protected DataPoint[] points() {
+		return rl;
 	}
 
 	public RankList getCorrectRanking() {
+		DataPoint[] rl = points();
 		double[] score = new double[rl.length];
 		for (int i = 0; i < rl.length; i++)
 			score[i] = rl[i].getLabel();
@@ -73,6 +208,7 @@ public class RankList {
 	}
 
 	public RankList getRanking(short fid) {
+		DataPoint[] rl = points();
 		double[] score = new double[rl.length];
 		for (int i = 0; i < rl.length; i++)
 			score[i] = rl[i].getFeatureValue(fid);
@@ -80,12 +216,13 @@ public class RankList {
 		return new RankList(this, idx);
 	}
 
-	public String toString(int topK, Hashtable<Integer, Double> ht) {
+	public String toString(int topK) {
+		DataPoint[] rl = points();
 		String result = "";
 		for (int i = 0; i < topK; i++) {
-			int docid = Integer.parseInt(rl[i].getDescription().split(" ")[2]);
+			int docid = rl[i].getDocID();
 			result += "ID: " + rl[i].getID() + ", rank: " + i + ", label: " + rl[i].getLabel() + ", pred_sense: "
-					+ ht.get(docid) + ", description: " + rl[i].getDescription() + "\n";
+					+ SensitivityStore.getPredictedLabel(docid) + ", description: " + rl[i].getDescription() + "\n";
 		}
 		return result;
 	}
@@ -11,22 +11,23 @@
 package ciir.umass.edu.learning;
 
 import ciir.umass.edu.metric.MetricScorer;
+import ciir.umass.edu.metric.SensitivityStore;
 import ciir.umass.edu.utilities.FileUtils;
 import ciir.umass.edu.utilities.MergeSorter;
+import ciir.umass.edu.utilities.RankLibError;
 
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Hashtable;
 import java.util.List;
 
 import java.util.Set;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
 //- Some Java 7 file utilities for creating directories
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -53,44 +54,15 @@ public abstract class Ranker {
 	protected double bestScoreOnValidationData = Double.NEGATIVE_INFINITY;
 
 	protected List<RankList> validationSamples = null;
-
-	protected static Hashtable<Integer, Integer> predictedLabels;
+	protected boolean silent = false;// no progress messages from this ranker, whatever @verbose says (e.g. a bag of a Random Forest)
 
 	protected Ranker() {
-		predictedLabels = loadSensitivityPredictions("judged-docs-with_predictions.txt");
-
 	}
 
 	protected Ranker(List<RankList> samples, int[] features, MetricScorer scorer) {
 		this.samples = samples;
 		this.features = features;
 		this.scorer = scorer;
-		predictedLabels = loadSensitivityPredictions("judged-docs-with_predictions.txt");
-	}
-
-	private Hashtable<Integer, Integer> loadSensitivityPredictions(String filename) {
-		Hashtable<Integer, Integer> result = new Hashtable<Integer, Integer>();
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(new File(filename)));
-			// skip the header file
-			String line = br.readLine();
-			line = br.readLine();
-			while (line != null) {
-				String[] tokens = line.split("\t");
-				int docid = Integer.parseInt(tokens[0]);
-				int prediction = Integer.parseInt(tokens[3]);
-				result.put(docid, prediction);
-				line = br.readLine();
-			}
-			br.close();
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		return result;
 	}
 
 	// Utility functions
@@ -107,6 +79,10 @@ public abstract class Ranker {
 		this.validationSamples = samples;
 	}
 
+	public void setSilent(boolean silent) {
+		this.silent = silent;
+	}
+
 	public void setMetricScorer(MetricScorer scorer) {
 		this.scorer = scorer;
 	}
@@ -124,12 +100,11 @@ public abstract class Ranker {
 	}
 
 	public RankList rank(RankList rl, boolean applySensitivityPredictions) {
-		double[] scores = new double[rl.size()];
+		double[] scores = eval(rl);
 		for (int i = 0; i < rl.size(); i++) {
-			scores[i] = eval(rl.get(i));
 			if (applySensitivityPredictions) {
-				int docid = Integer.parseInt(rl.get(i).getDescription().split(" ")[2]);
-				if (predictedLabels.get(docid) != 0.0) {
+				int docid = rl.get(i).getDocID();
+				if (SensitivityStore.getPredictedLabel(docid) != 0) {
 					scores[i] += Double.NEGATIVE_INFINITY;
 				}
 			}
@@ -143,13 +118,20 @@ public abstract class Ranker {
 		for (int i = 0; i < l.size(); i++) {
 			ll.add(rank(l.get(i), applySensitivityPredictions));
 			//System.out.println("Ranklist: " + i);
-			//System.out.println(ll.get(ll.size()-1).toString(10, predictedLabels));
+			//System.out.println(ll.get(ll.size()-1).toString(10));
 		}
 		return ll;
 	}
 
 	// - Create the model file directory to write models into if not already there
 	public void save(String modelFile) {
+		save(modelFile, false);
+	}
+
+	/**
+	 * @param binary If true, save the model in the binary format (see BinaryModel). Only tree ensembles support it.
+	 */
+	public void save(String modelFile, boolean binary) {
 		// Determine if the directory to write to exists. If not, create it.
 		Path parentPath = Paths.get(modelFile).toAbsolutePath().getParent();
 
@@ -164,21 +146,41 @@ public abstract class Ranker {
 			}
 		}
 
-		FileUtils.write(modelFile, "ASCII", model());
+		if (binary) {
+			saveBinary(modelFile);
+			return;
+		}
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(modelFile), "ASCII"))) {
+			writeModel(out);
+		} catch (IOException e) {
+			throw RankLibError.create("Error in Ranker::save(): ", e);
+		}
+	}
+
+	/**
+	 * Write the model (the text returned by model()) to @out. Rankers with large models override it to avoid building the whole
+	 * text in memory.
+	 */
+	public void writeModel(Writer out) throws IOException {
+		out.write(model());
+	}
+
+	protected void saveBinary(String modelFile) {
+		throw RankLibError.create("Error in Ranker::save(): " + name() + " models cannot be saved in the binary format.");
 	}
 
 	protected void PRINT(String msg) {
-		if (verbose)
+		if (verbose && !silent)
 			System.out.print(msg);
 	}
 
 	protected void PRINTLN(String msg) {
-		if (verbose)
+		if (verbose && !silent)
 			System.out.println(msg);
 	}
 
 	protected void PRINT(int[] len, String[] msgs) {
-		if (verbose) {
+		if (verbose && !silent) {
 			for (int i = 0; i < msgs.length; i++) {
 				String msg = msgs[i];
 				if (msg.length() > len[i])
@@ -218,6 +220,16 @@ public abstract class Ranker {
 
 	public abstract void learn();
 
+	/**
+	 * Scores of all the objects in @rl, in order. Rankers that can score several objects at once more efficiently override this.
+	 */
+	public double[] eval(RankList rl) {
+		double[] scores = new double[rl.size()];
+		for (int i = 0; i < rl.size(); i++)
+			scores[i] = eval(rl.get(i));
+		return scores;
+	}
+
 	public double eval(DataPoint p) {
 		return -1.0;
 	}
@@ -14,6 +14,7 @@ import ciir.umass.edu.learning.boosting.RankBoost;
 import ciir.umass.edu.learning.neuralnet.LambdaRank;
 import ciir.umass.edu.learning.neuralnet.ListNet;
 import ciir.umass.edu.learning.neuralnet.RankNet;
+import ciir.umass.edu.learning.tree.BinaryModel;
 import ciir.umass.edu.learning.tree.LambdaMART;
 import ciir.umass.edu.learning.tree.MART;
 import ciir.umass.edu.learning.tree.RFRanker;
@@ -97,9 +98,44 @@ public class RankerFactory {
 	}
 
 	public Ranker loadRankerFromFile(String modelFile) {
+		if (BinaryModel.isBinary(modelFile))
+			return loadBinaryRanker(modelFile);
 		return loadRankerFromString(FileUtils.read(modelFile, "ASCII"));
 	}
 
+	/**
+	 * Load a tree ensemble saved in the binary format (see BinaryModel).
+	 */
+	protected Ranker loadBinaryRanker(String modelFile) {
+		BinaryModel model = BinaryModel.read(modelFile);
+		String content = model.header.substring(0, Math.max(model.header.indexOf('\n'), 0));
+		content = content.replace("## ", "").trim();
+		System.out.println("Model:\t\t" + content);
+		Ranker r = createRanker(map.get(content.toUpperCase()));
+		if (r instanceof LambdaMART)
+			((LambdaMART) r).setEnsemble(model.header, model.ensembles[0]);
+		else if (r instanceof RFRanker)
+			((RFRanker) r).setEnsembles(model.header, model.ensembles);
+		else
+			throw RankLibError.create("Error in RankerFactory::loadRankerFromFile(): " + content + " models cannot be read from the binary format.");
+		return r;
+	}
+
+	/**
+	 * @param compile If true, tree ensembles (MART, LambdaMART, Random Forests) are compiled into bytecode and scored with it. Other
+	 *                models are loaded as usual.
+	 */
+	public Ranker loadRankerFromFile(String modelFile, boolean compile) {
+		Ranker r = loadRankerFromFile(modelFile);
+		if (compile) {
+			if (r instanceof LambdaMART)
+				((LambdaMART) r).compileToBytecode();
+			else if (r instanceof RFRanker)
+				((RFRanker) r).compileToBytecode();
+		}
+		return r;
+	}
+
 	public Ranker loadRankerFromString(String fullText) {
 		try (BufferedReader in = new BufferedReader(new StringReader(fullText))) {
 			Ranker r;
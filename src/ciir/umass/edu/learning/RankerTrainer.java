@@ -31,6 +31,7 @@ public class RankerTrainer {
 		ranker.init();
 		ranker.learn();
 		trainingTime = System.nanoTime() - start;
+		scorer.clearCaches();
 		//printTrainingTime();
 		return ranker;
 	}
@@ -42,6 +43,7 @@ public class RankerTrainer {
 		ranker.init();
 		ranker.learn();
 		trainingTime = System.nanoTime() - start;
+		scorer.clearCaches();
 		//printTrainingTime();
 		return ranker;
 	}
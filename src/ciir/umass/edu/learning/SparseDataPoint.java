@@ -39,11 +39,15 @@ public class SparseDataPoint extends DataPoint {
 		super(text);
 	}
 
+	SparseDataPoint() {
+	}
+
 	public SparseDataPoint(SparseDataPoint dp)
  	{
 		label = dp.label;
 		id = dp.id;
 		description = dp.description;
+		docid = dp.docid;
 		cached = dp.cached;
 		fIds = new int[dp.fIds.length];
 		fVals = new float[dp.fVals.length];
@@ -131,6 +135,25 @@ public class SparseDataPoint extends DataPoint {
 		assert(pos == knownFeatures);
 	}	
 	
+	/**
+	 * Number of feature values actually stored by this data point (any other feature is 0).
+	 */
+	public int getKnownFeatureCount()
+	{
+		return knownFeatures;
+	}
+	/**
+	 * @return The id of the i-th stored feature value (ids are in ascending order).
+	 */
+	public int getKnownFeatureId(int i)
+	{
+		return fIds[i];
+	}
+	public float getKnownFeatureValue(int i)
+	{
+		return fVals[i];
+	}
+	
 	@Override
 	public float[] getFeatureVector()
 	{
@@ -0,0 +1,241 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.learning.tree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import ciir.umass.edu.learning.Ranker;
+import ciir.umass.edu.learning.RankerFactory;
+import ciir.umass.edu.utilities.RankLibError;
+
+/**
+ * Binary model file for tree ensembles (MART, LambdaMART, Random Forests): the same content as the XML model, stored as flat
+ * arrays so that it can be memory-mapped and loaded without any parsing. All values are big-endian:
+ * <pre>
+ * int      magic (0x524C4D42, "RLMB")
+ * int      format version (1)
+ * int      length L of the header, in bytes
+ * byte[L]  header: the "## ..." lines of the XML model (UTF-8), the first one being the name of the ranker
+ *          zero padding up to a multiple of 8 bytes (from the beginning of the file)
+ * int      number of ensembles E (1, or the number of bags of a Random Forests model)
+ * int      0
+ * E times:
+ *   int       number of trees T
+ *   int       number of nodes N (internal nodes and leaves of all trees)
+ *   float[T]  weight of each tree
+ *   int[T]    root node of each tree
+ *   int[N]    feature id of each node (-1 for a leaf)
+ *   float[N]  threshold (0 for a leaf)
+ *   int[N]    left child (-1 for a leaf)
+ *   int[N]    right child (-1 for a leaf)
+ *   float[N]  output of a leaf (0 for an internal node)
+ * </pre>
+ * Nodes are stored tree after tree, each tree in pre-order. Leaf outputs are floats, as they are read from XML models, so a model
+ * scores the same whichever format it was loaded from.
+ */
+public class BinaryModel {
+
+	public static final int MAGIC = 0x524C4D42;
+	public static final int VERSION = 1;
+
+	public String header = "";
+	public Ensemble[] ensembles = null;
+
+	public BinaryModel(String header, Ensemble[] ensembles)
+	{
+		this.header = header;
+		this.ensembles = ensembles;
+	}
+
+	/**
+	 * @return true if @file starts like a binary model.
+	 */
+	public static boolean isBinary(String file)
+	{
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		}
+		catch(IOException ex)
+		{
+			return false;
+		}
+	}
+
+	public void write(String file)
+	{
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			byte[] h = header.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(h.length);
+			out.write(h);
+			for(int i=(12 + h.length) % 8;i>0 && i<8;i++)
+				out.writeByte(0);
+			out.writeInt(ensembles.length);
+			out.writeInt(0);
+			for(int e=0;e<ensembles.length;e++)
+				write(out, ensembles[e]);
+		}
+		catch(IOException ex)
+		{
+			throw RankLibError.create("Error in BinaryModel::write(): ", ex);
+		}
+	}
+	private void write(DataOutputStream out, Ensemble ens) throws IOException
+	{
+		int nTrees = ens.treeCount();
+		int nNodes = 0;
+		for(int t=0;t<nTrees;t++)
+			nNodes += 2 * ens.getTree(t).leaves().size() - 1;
+		int[] feature = new int[nNodes];
+		float[] threshold = new float[nNodes];
+		int[] left = new int[nNodes];
+		int[] right = new int[nNodes];
+		float[] output = new float[nNodes];
+		int[] root = new int[nTrees];
+		int[] next = new int[1];
+		for(int t=0;t<nTrees;t++)
+			root[t] = flatten(ens.getTree(t).root, next, feature, threshold, left, right, output);
+
+		out.writeInt(nTrees);
+		out.writeInt(nNodes);
+		for(int t=0;t<nTrees;t++)
+			out.writeFloat(ens.getWeight(t));
+		for(int t=0;t<nTrees;t++)
+			out.writeInt(root[t]);
+		for(int n=0;n<nNodes;n++)
+			out.writeInt(feature[n]);
+		for(int n=0;n<nNodes;n++)
+			out.writeFloat(threshold[n]);
+		for(int n=0;n<nNodes;n++)
+			out.writeInt(left[n]);
+		for(int n=0;n<nNodes;n++)
+			out.writeInt(right[n]);
+		for(int n=0;n<nNodes;n++)
+			out.writeFloat(output[n]);
+	}
+	private int flatten(Split s, int[] next, int[] feature, float[] threshold, int[] left, int[] right, float[] output)
+	{
+		int n = next[0]++;
+		feature[n] = s.getFeatureID();
+		left[n] = -1;
+		right[n] = -1;
+		if(s.getFeatureID() == -1)
+			output[n] = (float)s.getOutput();
+		else
+		{
+			threshold[n] = s.getThreshold();
+			left[n] = flatten(s.getLeft(), next, feature, threshold, left, right, output);
+			right[n] = flatten(s.getRight(), next, feature, threshold, left, right, output);
+		}
+		return n;
+	}
+
+	/**
+	 * Load a binary model through a memory mapping of the file.
+	 */
+	public static BinaryModel read(String file)
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+			ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			if(buf.getInt() != MAGIC)
+				throw RankLibError.create("Error in BinaryModel::read(): " + file + " is not a binary model.");
+			int version = buf.getInt();
+			if(version != VERSION)
+				throw RankLibError.create("Error in BinaryModel::read(): unsupported format version " + version + " in " + file + ".");
+			byte[] h = new byte[buf.getInt()];
+			buf.get(h);
+			buf.position((buf.position() + 7) / 8 * 8);
+			Ensemble[] ensembles = new Ensemble[buf.getInt()];
+			buf.getInt();
+			for(int e=0;e<ensembles.length;e++)
+				ensembles[e] = read(buf);
+			return new BinaryModel(new String(h, StandardCharsets.UTF_8), ensembles);
+		}
+		catch(IOException ex)
+		{
+			throw RankLibError.create("Error in BinaryModel::read(): ", ex);
+		}
+	}
+	private static Ensemble read(ByteBuffer buf)
+	{
+		int nTrees = buf.getInt();
+		int nNodes = buf.getInt();
+		float[] weight = new float[nTrees];
+		int[] root = new int[nTrees];
+		int[] feature = new int[nNodes];
+		float[] threshold = new float[nNodes];
+		int[] left = new int[nNodes];
+		int[] right = new int[nNodes];
+		float[] output = new float[nNodes];
+		buf.asFloatBuffer().get(weight);
+		buf.position(buf.position() + 4 * nTrees);
+		buf.asIntBuffer().get(root);
+		buf.position(buf.position() + 4 * nTrees);
+		buf.asIntBuffer().get(feature);
+		buf.position(buf.position() + 4 * nNodes);
+		buf.asFloatBuffer().get(threshold);
+		buf.position(buf.position() + 4 * nNodes);
+		buf.asIntBuffer().get(left);
+		buf.position(buf.position() + 4 * nNodes);
+		buf.asIntBuffer().get(right);
+		buf.position(buf.position() + 4 * nNodes);
+		buf.asFloatBuffer().get(output);
+		buf.position(buf.position() + 4 * nNodes);
+
+		//rebuild the trees (children always come after their parent)
+		Split[] nodes = new Split[nNodes];
+		for(int n=nNodes-1;n>=0;n--)
+		{
+			if(feature[n] == -1)
+			{
+				nodes[n] = new Split();
+				nodes[n].setOutput(output[n]);
+			}
+			else
+			{
+				nodes[n] = new Split(feature[n], threshold[n], 0);
+				nodes[n].setLeft(nodes[left[n]]);
+				nodes[n].setRight(nodes[right[n]]);
+			}
+		}
+		Ensemble ens = new Ensemble();
+		for(int t=0;t<nTrees;t++)
+			ens.add(new RegressionTree(nodes[root[t]]), weight[t]);
+		return ens;
+	}
+
+	/**
+	 * Convert a model between the XML and the binary formats.
+	 * Usage: BinaryModel -toBinary <XML model> <binary model>
+	 *        BinaryModel -toXML <binary model> <XML model>
+	 */
+	public static void main(String[] args)
+	{
+		if(args.length < 3 || (args[0].compareTo("-toBinary") != 0 && args[0].compareTo("-toXML") != 0))
+		{
+			System.out.println("Usage: java -cp bin/RankLib.jar ciir.umass.edu.learning.tree.BinaryModel -toBinary <XML model> <binary model>");
+			System.out.println("       java -cp bin/RankLib.jar ciir.umass.edu.learning.tree.BinaryModel -toXML <binary model> <XML model>");
+			return;
+		}
+		Ranker r = new RankerFactory().loadRankerFromFile(args[1]);
+		r.save(args[2], args[0].compareTo("-toBinary") == 0);
+		System.out.println("Model saved to: " + args[2]);
+	}
+}
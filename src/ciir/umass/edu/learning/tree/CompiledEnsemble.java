@@ -0,0 +1,569 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.learning.tree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.utilities.RankLibError;
+
+/**
+ * An {@link Ensemble} compiled into JVM bytecode: each tree becomes nested if/else code with its features, thresholds and
+ * (weighted) leaf outputs inlined as constants, so that the JIT can optimize the whole model as straight-line code. The code is
+ * defined as hidden classes (MethodHandles.Lookup.defineHiddenClass), without any bytecode library.
+ *
+ * Trees are packed into static methods of at most @methodSizeLimit bytes of code (HotSpot does not JIT-compile larger methods),
+ * and methods into classes until their constant pool is nearly full. Each generated class implements {@link Part} and adds the
+ * outputs of its trees, in order, to the score so far. A tree whose code does not fit in one method (from about 90 leaves) has
+ * subtrees moved into methods of their own, which the tree's code calls in place of the subtree. Scores are exactly those of
+ * Ensemble.eval().
+ */
+public class CompiledEnsemble implements EnsembleScorer {
+
+	//bytes of code per generated method (HotSpot skips methods over 8000 bytes, and C2 optimizes much smaller ones far better)
+	public static int methodSizeLimit = 2000;
+
+	/**
+	 * A generated class: a consecutive range of trees of the model.
+	 */
+	public interface Part {
+		/**
+		 * @return @s plus the outputs of the trees of this part, added one after the other (in float, as in Ensemble.eval()).
+		 */
+		float score(float[] denseFeatures, float s);
+	}
+
+	private Part[] parts = null;
+	private int[] fids = null;//features used by the model
+	private int maxFid = 0;
+
+	public CompiledEnsemble(Ensemble e)
+	{
+		TreeSet<Integer> used = new TreeSet<Integer>();
+		List<Part> list = new ArrayList<Part>();
+		ClassWriter cw = new ClassWriter();
+		for(int t=0;t<e.treeCount();t++)
+		{
+			Split root = e.getTree(t).root;
+			float weight = e.getWeight(t);
+			List<Split> subtrees = outline(root);
+			//at most two constant pool entries per node (feature id and threshold) or leaf (output), and a few per subtree method
+			int constants = 4 * e.getTree(t).leaves().size() + 8 * subtrees.size();
+			if(!cw.fits(constants))
+			{
+				list.add(cw.define());
+				cw = new ClassWriter();
+			}
+			IdentityHashMap<Split, Integer> calls = new IdentityHashMap<Split, Integer>();
+			for(Split s : subtrees)
+				calls.put(s, cw.newSubtree());
+			Code code = new Code(cw, calls);
+			code.tree(root, weight, used);
+			cw.add(code);
+			for(Split s : subtrees)
+			{
+				Code sub = new Code(cw, calls);
+				sub.tree(s, weight, used);
+				cw.setSubtree(calls.get(s), sub);
+			}
+		}
+		list.add(cw.define());
+		parts = list.toArray(new Part[list.size()]);
+		fids = new int[used.size()];
+		int i = 0;
+		for(Integer fid : used)
+			fids[i++] = fid;
+		maxFid = (fids.length > 0) ? fids[fids.length-1] : 0;
+	}
+
+	/**
+	 * @return The subtrees of the tree rooted at @root to compile as methods of their own (each one may call the ones below it), so
+	 * that the code of the tree and of each subtree fits in a method. The largest subtree that fits is taken each time.
+	 */
+	private static List<Split> outline(Split root)
+	{
+		int limit = Math.min(methodSizeLimit, Short.MAX_VALUE) - 2;//branch offsets are 16-bit signed; fload/freturn at the end
+		List<Split> subtrees = new ArrayList<Split>();
+		IdentityHashMap<Split, Integer> called = new IdentityHashMap<Split, Integer>();
+		while(true)
+		{
+			IdentityHashMap<Split, Integer> size = new IdentityHashMap<Split, Integer>();
+			if(codeSize(root, true, called, size) <= limit)
+				break;
+			//any node over the limit has a child of half its size, at least: this always makes progress
+			Split s = root;
+			while(true)
+			{
+				Split c = (size.get(s.getLeft()) >= size.get(s.getRight())) ? s.getLeft() : s.getRight();
+				if(size.get(c) <= limit)
+				{
+					subtrees.add(c);
+					called.put(c, 0);
+					break;
+				}
+				s = c;
+			}
+		}
+		return subtrees;
+	}
+	/**
+	 * @return The number of bytes of code generated by Code.node() for @s (see below), and the same for every node below in @size.
+	 */
+	private static int codeSize(Split s, boolean top, IdentityHashMap<Split, Integer> called, IdentityHashMap<Split, Integer> size)
+	{
+		int n;
+		if(!top && called.containsKey(s))
+			n = 9;
+		else if(s.getFeatureID() == -1)
+			n = 11;
+		else
+		{
+			int fid = s.getFeatureID();
+			n = 9 + ((fid <= 5) ? 1 : ((fid <= Byte.MAX_VALUE) ? 2 : 3));
+			n += codeSize(s.getLeft(), false, called, size) + codeSize(s.getRight(), false, called, size);
+		}
+		size.put(s, n);
+		return n;
+	}
+
+	public float score(float[] denseFeatures)
+	{
+		float s = 0;
+		for(int i=0;i<parts.length;i++)
+			s = parts[i].score(denseFeatures, s);
+		return s;
+	}
+	public float eval(DataPoint dp)
+	{
+		float[] x = new float[maxFid+1];
+		for(int i=0;i<fids.length;i++)
+			x[fids[i]] = dp.getFeatureValue(fids[i]);
+		return score(x);
+	}
+	public int[] getFeatures()
+	{
+		return fids;
+	}
+
+	//JVM opcodes
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int LDC2_W = 0x14;
+	private static final int FLOAD_1 = 0x23;
+	private static final int FLOAD_2 = 0x24;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int FALOAD = 0x30;
+	private static final int FSTORE_1 = 0x44;
+	private static final int FSTORE_2 = 0x45;
+	private static final int DADD = 0x63;
+	private static final int F2D = 0x8d;
+	private static final int D2F = 0x90;
+	private static final int FCMPG = 0x96;
+	private static final int IFGT = 0x9d;
+	private static final int GOTO = 0xa7;
+	private static final int FRETURN = 0xae;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC = 0xb8;
+
+	/**
+	 * Code of one tree, as a sequence of instructions of a static method float m(float[] f, float s) that adds the output of
+	 * the tree to s (local 1). Every branch target has the same frame as the method entry (locals f and s, empty stack). Subtrees
+	 * in @calls are replaced by a call to their method: s = sub(f, s).
+	 */
+	private static class Code {
+		ClassWriter cw = null;
+		IdentityHashMap<Split, Integer> calls = null;//subtree -> constant of its method
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		List<Integer> targets = new ArrayList<Integer>();
+		List<Integer> gotos = new ArrayList<Integer>();
+		List<Integer> branches = new ArrayList<Integer>();//pairs (position of an ifgt, its target)
+		byte[] bytes = null;
+
+		Code(ClassWriter cw, IdentityHashMap<Split, Integer> calls)
+		{
+			this.cw = cw;
+			this.calls = calls;
+		}
+		void tree(Split root, float weight, TreeSet<Integer> used)
+		{
+			node(root, weight, used, true);
+			bytes = out.toByteArray();
+			for(int i=0;i<branches.size();i+=2)
+				patch(branches.get(i), branches.get(i+1) - branches.get(i));
+			//every leaf jumps to the end of the tree
+			for(int pos : gotos)
+				patch(pos, bytes.length - pos);
+			if(gotos.size() > 0)
+				targets.add(bytes.length);
+		}
+		private void node(Split s, float weight, TreeSet<Integer> used, boolean top)
+		{
+			if(!top && calls.containsKey(s))
+			{
+				//s = sub(f, s)
+				out.write(ALOAD_0);
+				out.write(FLOAD_1);
+				u1u2(INVOKESTATIC, calls.get(s));
+				out.write(FSTORE_1);
+				gotos.add(out.size());
+				u1u2(GOTO, 0);
+				return;
+			}
+			if(s.getFeatureID() == -1)
+			{
+				//s = (float)(s + output*weight)
+				out.write(FLOAD_1);
+				out.write(F2D);
+				u1u2(LDC2_W, cw.doubleConstant(s.getOutput() * weight));
+				out.write(DADD);
+				out.write(D2F);
+				out.write(FSTORE_1);
+				gotos.add(out.size());
+				u1u2(GOTO, 0);
+				return;
+			}
+			//if(!(f[fid] <= threshold)) goto right (NaN goes right, as in Split.eval())
+			int fid = s.getFeatureID();
+			used.add(fid);
+			out.write(ALOAD_0);
+			if(fid <= 5)
+				out.write(ICONST_0 + fid);
+			else if(fid <= Byte.MAX_VALUE)
+			{
+				out.write(BIPUSH);
+				out.write(fid);
+			}
+			else if(fid <= Short.MAX_VALUE)
+				u1u2(SIPUSH, fid);
+			else
+				u1u2(LDC_W, cw.intConstant(fid));
+			out.write(FALOAD);
+			u1u2(LDC_W, cw.floatConstant(s.getThreshold()));
+			out.write(FCMPG);
+			int branch = out.size();
+			u1u2(IFGT, 0);
+			node(s.getLeft(), weight, used, false);
+			branches.add(branch);
+			branches.add(out.size());
+			targets.add(out.size());
+			node(s.getRight(), weight, used, false);
+		}
+		private void patch(int pos, int offset)
+		{
+			bytes[pos+1] = (byte)(offset >> 8);
+			bytes[pos+2] = (byte)offset;
+		}
+		private void u1u2(int op, int v)
+		{
+			out.write(op);
+			out.write(v >> 8);
+			out.write(v);
+		}
+		int size()
+		{
+			return bytes.length;
+		}
+	}
+
+	/**
+	 * Minimal class file writer for a generated Part.
+	 */
+	private static class ClassWriter {
+		static final String NAME = "ciir/umass/edu/learning/tree/CompiledEnsemblePart";
+
+		ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		DataOutputStream cp = new DataOutputStream(pool);
+		int poolSize = 1;//index of the next constant
+		HashMap<String, Integer> constants = new HashMap<String, Integer>();
+
+		//methods holding the trees
+		List<byte[]> methods = new ArrayList<byte[]>();
+		List<TreeSet<Integer>> frames = new ArrayList<TreeSet<Integer>>();
+		ByteArrayOutputStream current = null;
+		TreeSet<Integer> currentFrames = null;
+		//methods holding subtrees (see Code)
+		List<Code> subtrees = new ArrayList<Code>();
+		HashMap<Integer, Integer> subtreeIndex = new HashMap<Integer, Integer>();//constant of a subtree method -> its index
+
+		int utf8(String s)
+		{
+			Integer idx = constants.get("U" + s);
+			if(idx == null)
+			{
+				idx = poolSize++;
+				try {
+					cp.writeByte(1);
+					cp.writeUTF(s);
+				}
+				catch(IOException ex)
+				{
+					throw RankLibError.create(ex);
+				}
+				constants.put("U" + s, idx);
+			}
+			return idx;
+		}
+		int intConstant(int v)
+		{
+			return constant("I" + v, 3, v, 1);
+		}
+		int floatConstant(float v)
+		{
+			return constant("F" + Float.floatToIntBits(v), 4, Float.floatToIntBits(v), 1);
+		}
+		int doubleConstant(double v)
+		{
+			return constant("D" + Double.doubleToLongBits(v), 6, Double.doubleToLongBits(v), 2);
+		}
+		int classRef(String name)
+		{
+			return ref("C" + name, 7, utf8(name), -1);
+		}
+		int methodRef(String owner, String name, String desc)
+		{
+			int c = classRef(owner);
+			int nt = ref("N" + name + desc, 12, utf8(name), utf8(desc));
+			return ref("M" + owner + "." + name + desc, 10, c, nt);
+		}
+		private int constant(String key, int tag, long v, int slots)
+		{
+			Integer idx = constants.get(key);
+			if(idx == null)
+			{
+				idx = poolSize;
+				poolSize += slots;
+				try {
+					cp.writeByte(tag);
+					if(slots == 2)
+						cp.writeLong(v);
+					else
+						cp.writeInt((int)v);
+				}
+				catch(IOException ex)
+				{
+					throw RankLibError.create(ex);
+				}
+				constants.put(key, idx);
+			}
+			return idx;
+		}
+		private int ref(String key, int tag, int a, int b)
+		{
+			Integer idx = constants.get(key);
+			if(idx == null)
+			{
+				idx = poolSize++;
+				try {
+					cp.writeByte(tag);
+					cp.writeShort(a);
+					if(b >= 0)
+						cp.writeShort(b);
+				}
+				catch(IOException ex)
+				{
+					throw RankLibError.create(ex);
+				}
+				constants.put(key, idx);
+			}
+			return idx;
+		}
+
+		/**
+		 * @return true if this class is empty or if @constants more constants still fit in its pool (at most 65535 entries, including
+		 * the ones needed by write()).
+		 */
+		boolean fits(int constants)
+		{
+			if(current == null)
+				return true;
+			return poolSize + constants + 4 * (methods.size() + 2) + 32 <= 0xFFFF;
+		}
+		/**
+		 * Declare a new subtree method, whose code is given later by setSubtree().
+		 * @return The constant pool entry to call it.
+		 */
+		int newSubtree()
+		{
+			int ref = methodRef(NAME, "sub" + subtrees.size(), "([FF)F");
+			subtreeIndex.put(ref, subtrees.size());
+			subtrees.add(null);
+			return ref;
+		}
+		void setSubtree(int ref, Code code)
+		{
+			subtrees.set(subtreeIndex.get(ref), code);
+		}
+		void add(Code code)
+		{
+			if(current == null || current.size() + code.size() > methodSizeLimit - 2)
+				closeMethod();
+			int base = current.size();
+			current.write(code.bytes, 0, code.bytes.length);
+			for(int target : code.targets)
+				currentFrames.add(base + target);
+		}
+		private void closeMethod()
+		{
+			if(current != null)
+			{
+				current.write(FLOAD_1);
+				current.write(FRETURN);
+				methods.add(current.toByteArray());
+				frames.add(currentFrames);
+			}
+			current = new ByteArrayOutputStream();
+			currentFrames = new TreeSet<Integer>();
+		}
+
+		Part define()
+		{
+			closeMethod();
+			try {
+				byte[] bytes = write();
+				MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+				return (Part)lookup.lookupClass().getDeclaredConstructor().newInstance();
+			}
+			catch(Exception ex)
+			{
+				throw RankLibError.create("Error in CompiledEnsemble: cannot define the generated class.", ex);
+			}
+		}
+		private byte[] write() throws IOException
+		{
+			int thisClass = classRef(NAME);
+			int superClass = classRef("java/lang/Object");
+			int iface = classRef("ciir/umass/edu/learning/tree/CompiledEnsemble$Part");
+			int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+			int codeAttr = utf8("Code");
+			int frameAttr = utf8("StackMapTable");
+			int treesDesc = utf8("([FF)F");
+			int[] treesName = new int[methods.size()];
+			int[] treesRef = new int[methods.size()];
+			for(int m=0;m<methods.size();m++)
+			{
+				treesName[m] = utf8("trees" + m);
+				treesRef[m] = methodRef(NAME, "trees" + m, "([FF)F");
+			}
+			int[] subName = new int[subtrees.size()];
+			for(int m=0;m<subtrees.size();m++)
+				subName[m] = utf8("sub" + m);
+			int initName = utf8("<init>");
+			int initDesc = utf8("()V");
+			int scoreName = utf8("score");
+			cp.flush();
+
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(buffer);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(52);//Java 8 class file
+			out.writeShort(poolSize);
+			pool.writeTo(out);
+			out.writeShort(0x0011);//public final
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(iface);
+			out.writeShort(0);//fields
+			out.writeShort(2 + methods.size() + subtrees.size());
+
+			//constructor
+			byte[] init = new byte[]{(byte)ALOAD_0, (byte)INVOKESPECIAL, (byte)(objectInit >> 8), (byte)objectInit, (byte)RETURN};
+			method(out, 0x0001, initName, initDesc, codeAttr, frameAttr, 1, 1, init, null);
+
+			//score(f, s): s = trees0(f, s); s = trees1(f, s); ...
+			ByteArrayOutputStream score = new ByteArrayOutputStream();
+			for(int m=0;m<methods.size();m++)
+			{
+				score.write(ALOAD_1);
+				score.write(FLOAD_2);
+				score.write(INVOKESTATIC);
+				score.write(treesRef[m] >> 8);
+				score.write(treesRef[m]);
+				score.write(FSTORE_2);
+			}
+			score.write(FLOAD_2);
+			score.write(FRETURN);
+			method(out, 0x0001, scoreName, treesDesc, codeAttr, frameAttr, 2, 3, score.toByteArray(), null);
+
+			for(int m=0;m<methods.size();m++)
+				method(out, 0x000A, treesName[m], treesDesc, codeAttr, frameAttr, 4, 2, methods.get(m), frames.get(m));//private static
+			for(int m=0;m<subtrees.size();m++)
+			{
+				Code sub = subtrees.get(m);
+				byte[] code = new byte[sub.size() + 2];
+				System.arraycopy(sub.bytes, 0, code, 0, sub.size());
+				code[sub.size()] = (byte)FLOAD_1;
+				code[sub.size()+1] = (byte)FRETURN;
+				method(out, 0x000A, subName[m], treesDesc, codeAttr, frameAttr, 4, 2, code, new TreeSet<Integer>(sub.targets));
+			}
+			out.writeShort(0);//attributes
+			out.flush();
+			return buffer.toByteArray();
+		}
+		private void method(DataOutputStream out, int access, int name, int desc, int codeAttr, int frameAttr, int maxStack,
+				int maxLocals, byte[] code, TreeSet<Integer> targets) throws IOException
+		{
+			//all frames are the one of the method entry: same_frame, or same_frame_extended for larger deltas
+			ByteArrayOutputStream table = new ByteArrayOutputStream();
+			int last = -1;
+			int entries = 0;
+			if(targets != null)
+				for(int target : targets)
+				{
+					int delta = target - last - 1;
+					if(delta < 64)
+						table.write(delta);
+					else
+					{
+						table.write(251);
+						table.write(delta >> 8);
+						table.write(delta);
+					}
+					last = target;
+					entries++;
+				}
+			int frameLength = (entries > 0) ? 6 + 2 + table.size() : 0;
+			out.writeShort(access);
+			out.writeShort(name);
+			out.writeShort(desc);
+			out.writeShort(1);
+			out.writeShort(codeAttr);
+			out.writeInt(2 + 2 + 4 + code.length + 2 + 2 + frameLength);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0);//exception table
+			if(entries > 0)
+			{
+				out.writeShort(1);
+				out.writeShort(frameAttr);
+				out.writeInt(2 + table.size());
+				out.writeShort(entries);
+				table.writeTo(out);
+			}
+			else
+				out.writeShort(0);
+		}
+	}
+}
@@ -18,6 +18,9 @@ import org.w3c.dom.NodeList;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -80,6 +83,7 @@ public class Ensemble {
 	{
 		trees.add(tree);
 		weights.add(weight);
+		features = null;
 	}
 	public RegressionTree getTree(int k)
 	{
@@ -99,6 +103,7 @@ public class Ensemble {
 	{
 		trees.remove(k);
 		weights.remove(k);
+		features = null;
 	}
 	public int treeCount()
 	{
@@ -119,20 +124,53 @@ public class Ensemble {
 	}
 	public String toString()
 	{
-		String strRep = "<ensemble>" + "\n";
+		StringWriter out = new StringWriter();
+		try {
+			write(out);
+		}
+		catch(IOException ex)
+		{
+			//cannot happen with a StringWriter
+		}
+		return out.toString();
+	}
+	/**
+	 * Write the XML representation of the ensemble (same as toString()) to @out, tree by tree.
+	 */
+	public void write(Writer out) throws IOException
+	{
+		out.write("<ensemble>" + "\n");
 		for(int i=0;i<trees.size();i++)
 		{
-			strRep += "\t<tree id=\"" + (i+1) + "\" weight=\"" + weights.get(i) + "\">" + "\n";
-			strRep += trees.get(i).toString("\t\t");
-			strRep += "\t</tree>" + "\n";
+			out.write("\t<tree id=\"" + (i+1) + "\" weight=\"" + weights.get(i) + "\">" + "\n");
+			trees.get(i).write(out, "\t\t");
+			out.write("\t</tree>" + "\n");
 		}
-		strRep += "</ensemble>" + "\n";
-		return strRep;
+		out.write("</ensemble>" + "\n");
 	}
 	public int[] getFeatures()
 	{
+		if(features == null)
+		{
+			//the ensemble was not loaded from XML: collect the features used by its trees
+			HashMap<Integer, Integer> fids = new HashMap<Integer, Integer>();
+			for(RegressionTree rt : trees)
+				collectFeatures(rt.root, fids);
+			features = new int[fids.keySet().size()];
+			int i = 0;
+			for(Integer fid : fids.keySet())
+				features[i++] = fid;
+		}
 		return features;
 	}
+	private void collectFeatures(Split s, HashMap<Integer, Integer> fids)
+	{
+		if(s.getFeatureID() == -1)
+			return;
+		fids.put(s.getFeatureID(), 0);
+		collectFeatures(s.getLeft(), fids);
+		collectFeatures(s.getRight(), fids);
+	}
 	
 	/**
 	 * Each input node @n corersponds to a <split> tag in the model file.
@@ -0,0 +1,20 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.learning.tree;
+
+/**
+ * A tree ensemble turned into code (see {@link CompiledEnsemble}).
+ */
+public interface EnsembleScorer {
+	/**
+	 * @param denseFeatures Feature values indexed by feature id (0 for a missing value). Must cover every feature used by the model.
+	 */
+	public float score(float[] denseFeatures);
+}
@@ -0,0 +1,764 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.learning.tree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.learning.SparseDataPoint;
+import ciir.umass.edu.utilities.MergeSorter;
+import ciir.umass.edu.utilities.MyThreadPool;
+import ciir.umass.edu.utilities.WorkerThread;
+
+/**
+ * The training samples quantized against the candidate thresholds of each feature: the bin of sample k for feature f is the index
+ * of the first threshold of f that the sample's value does not exceed (found by binary search). This is computed once, and then the
+ * histograms only deal with bins (never with feature values).
+ *
+ * Bins are stored in columns (one entry per sample), using the smallest of byte/short/int that holds all the values of the column.
+ * With dense samples, each feature has its own column. With sparse samples ({@link SparseDataPoint}), features that are never
+ * away from the bin of 0 on the same sample (i.e. mutually exclusive) are bundled into a shared column: the column holds 0 if all
+ * the features of the bundle are in their default bin (the one of 0), or offset[f]+bin for the one feature f that is not. Each
+ * bundle is then scanned once (instead of once per feature) when building histograms. The samples that are not in the default bin
+ * of a column are also listed, so that histograms only need to visit those: the default bins get whatever the others do not
+ * account for.
+ */
+public class FeatureBins {
+
+	public static int maxBundleCandidates = 100;//max. number of features checked for conflicts when filling a bundle
+
+	protected int nSamples = 0;
+	protected int[] nBins = null;//number of bins of each feature
+	//the features sharing each column
+	protected int[][] bundles = null;
+	protected int[] bundleOf = null;
+	//for features in bundles of more than one feature: offset of the bins of the feature in the column, and bin of the value 0
+	protected int[] offset = null;
+	protected int[] defaultBin = null;
+	//for each column, exactly one of these is non-null
+	protected byte[][] byteBins = null;
+	protected short[][] shortBins = null;
+	protected int[][] intBins = null;
+	//with sparse samples: the samples (in ascending order) that are not in the default bin of each column (null with dense samples)
+	protected int[][] nonDefault = null;
+	protected int maxWidth = 0;//largest number of distinct values in a column
+	//buffers of the threads building histograms
+	private ArrayDeque<Scratch> scratches = new ArrayDeque<Scratch>();
+
+	/**
+	 * @param thresholds For each feature, the thresholds in ascending order. The last one must not be exceeded by any sample.
+	 */
+	public FeatureBins(DataPoint[] samples, int[] features, float[][] thresholds)
+	{
+		nSamples = samples.length;
+		nBins = new int[features.length];
+		for(int f=0;f<features.length;f++)
+			nBins[f] = thresholds[f].length;
+
+		boolean sparse = samples.length > 0;
+		for(int k=0;k<samples.length && sparse;k++)
+			sparse = samples[k] instanceof SparseDataPoint;
+		if(sparse)
+		{
+			bundle(samples, features, thresholds);
+			return;
+		}
+
+		bundles = new int[features.length][];
+		bundleOf = new int[features.length];
+		for(int f=0;f<features.length;f++)
+		{
+			bundles[f] = new int[]{f};
+			bundleOf[f] = f;
+		}
+		byteBins = new byte[features.length][];
+		shortBins = new short[features.length][];
+		intBins = new int[features.length][];
+
+		MyThreadPool p = MyThreadPool.getInstance();
+		if(p.size() == 1)
+			quantize(samples, features, thresholds, 0, features.length-1);
+		else
+			p.execute(new Worker(this, samples, features, thresholds), features.length);
+	}
+	/**
+	 * The rows @rows of @all (in this order, possibly with repeats), e.g. the bootstrap sample of a Random Forest bag. Everything but
+	 * the columns themselves (bins, bundles) is shared with @all, which is only read: features that are mutually exclusive over all
+	 * the samples still are over any subset of them.
+	 */
+	public FeatureBins(FeatureBins all, int[] rows)
+	{
+		nSamples = rows.length;
+		nBins = all.nBins;
+		bundles = all.bundles;
+		bundleOf = all.bundleOf;
+		offset = all.offset;
+		defaultBin = all.defaultBin;
+		maxWidth = all.maxWidth;
+		byteBins = new byte[bundles.length][];
+		shortBins = new short[bundles.length][];
+		intBins = new int[bundles.length][];
+		for(int c=0;c<bundles.length;c++)
+		{
+			if(all.byteBins[c] != null)
+			{
+				byteBins[c] = new byte[nSamples];
+				for(int k=0;k<nSamples;k++)
+					byteBins[c][k] = all.byteBins[c][rows[k]];
+			}
+			else if(all.shortBins[c] != null)
+			{
+				shortBins[c] = new short[nSamples];
+				for(int k=0;k<nSamples;k++)
+					shortBins[c][k] = all.shortBins[c][rows[k]];
+			}
+			else
+			{
+				intBins[c] = new int[nSamples];
+				for(int k=0;k<nSamples;k++)
+					intBins[c][k] = all.intBins[c][rows[k]];
+			}
+		}
+		if(all.nonDefault != null)
+		{
+			nonDefault = new int[bundles.length][];
+			for(int c=0;c<bundles.length;c++)
+			{
+				int d = columnDefault(c);
+				int n = 0;
+				for(int k=0;k<nSamples;k++)
+					if(raw(c, k) != d)
+						n++;
+				nonDefault[c] = new int[n];
+				n = 0;
+				for(int k=0;k<nSamples;k++)
+					if(raw(c, k) != d)
+						nonDefault[c][n++] = k;
+			}
+		}
+	}
+	/**
+	 * @return The number of bytes taken by the bins of one sample.
+	 */
+	public int bytesPerSample()
+	{
+		int bytes = 0;
+		for(int c=0;c<bundles.length;c++)
+			bytes += (byteBins[c] != null) ? 1 : ((shortBins[c] != null) ? 2 : 4);
+		return bytes;
+	}
+	protected void quantize(DataPoint[] samples, int[] features, float[][] thresholds, int start, int end)
+	{
+		for(int f=start;f<=end;f++)
+		{
+			int fid = features[f];
+			float[] threshold = thresholds[f];
+
+			//the largest bin is the one of the largest value
+			float max = Float.NEGATIVE_INFINITY;
+			for(int k=0;k<nSamples;k++)
+				max = Math.max(max, samples[k].getFeatureValue(fid));
+			int maxBin = bin(threshold, max);
+			if(maxBin <= 0xFF)
+				byteBins[f] = new byte[nSamples];
+			else if(maxBin <= 0xFFFF)
+				shortBins[f] = new short[nSamples];
+			else
+				intBins[f] = new int[nSamples];
+
+			for(int k=0;k<nSamples;k++)
+			{
+				int t = bin(threshold, samples[k].getFeatureValue(fid));
+				if(byteBins[f] != null)
+					byteBins[f][k] = (byte)t;
+				else if(shortBins[f] != null)
+					shortBins[f][k] = (short)t;
+				else
+					intBins[f][k] = t;
+			}
+		}
+	}
+	/**
+	 * Quantize sparse samples, only looking at the values they store, and bundle mutually exclusive features (see above). Features are
+	 * considered in decreasing order of their number of non-default entries: each one opens a new bundle, which is then filled with
+	 * the remaining features that do not share any sample with it (as long as the column fits in a short). Only the next
+	 * @maxBundleCandidates remaining features are tried for each bundle, so bundling takes at most F x @maxBundleCandidates conflict
+	 * checks (instead of F^2).
+	 */
+	protected void bundle(DataPoint[] samples, int[] features, float[][] thresholds)
+	{
+		int nf = features.length;
+		offset = new int[nf];
+		defaultBin = new int[nf];
+		int maxFid = 0;
+		for(int f=0;f<nf;f++)
+		{
+			defaultBin[f] = bin(thresholds[f], 0);
+			maxFid = Math.max(maxFid, features[f]);
+		}
+		int[] fIndex = new int[maxFid+1];
+		Arrays.fill(fIndex, -1);
+		for(int f=0;f<nf;f++)
+			fIndex[features[f]] = f;
+
+		//non-default entries (sample, bin) of each feature, in increasing order of samples
+		int[][] rows = new int[nf][4];
+		int[][] values = new int[nf][4];
+		int[] nnz = new int[nf];
+		for(int k=0;k<nSamples;k++)
+		{
+			SparseDataPoint dp = (SparseDataPoint)samples[k];
+			for(int i=0;i<dp.getKnownFeatureCount();i++)
+			{
+				int fid = dp.getKnownFeatureId(i);
+				int f = (fid < fIndex.length) ? fIndex[fid] : -1;
+				if(f == -1)
+					continue;
+				int t = bin(thresholds[f], dp.getKnownFeatureValue(i));
+				if(t == defaultBin[f])
+					continue;
+				if(nnz[f] == rows[f].length)
+				{
+					rows[f] = Arrays.copyOf(rows[f], nnz[f] * 2);
+					values[f] = Arrays.copyOf(values[f], nnz[f] * 2);
+				}
+				rows[f][nnz[f]] = k;
+				values[f][nnz[f]++] = t;
+			}
+		}
+
+		//greedy bundling
+		double[] density = new double[nf];
+		for(int f=0;f<nf;f++)
+			density[f] = nnz[f];
+		int[] order = MergeSorter.sort(density, false);
+		bundleOf = new int[nf];
+		Arrays.fill(bundleOf, -1);
+		long[] occupied = new long[(nSamples + 63) / 64];
+		List<int[]> bundleList = new ArrayList<int[]>();
+		//features not bundled yet, as a linked list of their positions in @order
+		int[] after = new int[nf];
+		int[] before = new int[nf];
+		for(int i=0;i<nf;i++)
+		{
+			after[i] = i + 1;
+			before[i] = i - 1;
+		}
+		int head = 0;
+		while(head < nf)
+		{
+			int f = order[head];
+			head = after[head];
+			if(head < nf)
+				before[head] = -1;
+			int b = bundleList.size();
+			int[] members = new int[]{f};
+			int width = 1 + nBins[f];
+			bundleOf[f] = b;
+			mark(occupied, rows[f], nnz[f], true);
+			int tried = 0;
+			for(int j=head;j<nf && tried<maxBundleCandidates;)
+			{
+				int g = order[j];
+				int nj = after[j];
+				tried++;
+				if(width + nBins[g] <= 0xFFFF + 1 && !conflict(occupied, rows[g], nnz[g]))
+				{
+					members = Arrays.copyOf(members, members.length+1);
+					members[members.length-1] = g;
+					width += nBins[g];
+					bundleOf[g] = b;
+					mark(occupied, rows[g], nnz[g], true);
+					//unlink it
+					if(before[j] == -1)
+						head = nj;
+					else
+						after[before[j]] = nj;
+					if(nj < nf)
+						before[nj] = before[j];
+				}
+				j = nj;
+			}
+			for(int m=0;m<members.length;m++)
+				mark(occupied, rows[members[m]], nnz[members[m]], false);
+			bundleList.add(members);
+		}
+		bundles = bundleList.toArray(new int[bundleList.size()][]);
+
+		//fill the columns
+		byteBins = new byte[bundles.length][];
+		shortBins = new short[bundles.length][];
+		intBins = new int[bundles.length][];
+		nonDefault = new int[bundles.length][];
+		int[] column = new int[nSamples];
+		for(int b=0;b<bundles.length;b++)
+		{
+			int[] members = bundles[b];
+			maxWidth = Math.max(maxWidth, width(b));
+			int n = 0;
+			for(int m=0;m<members.length;m++)
+				n += nnz[members[m]];
+			nonDefault[b] = new int[n];
+			n = 0;
+			for(int m=0;m<members.length;m++)
+			{
+				System.arraycopy(rows[members[m]], 0, nonDefault[b], n, nnz[members[m]]);
+				n += nnz[members[m]];
+			}
+			if(members.length > 1)
+				Arrays.sort(nonDefault[b]);
+			
+			int maxValue = 0;
+			if(members.length == 1)
+			{
+				//a column of its own: same content as with dense samples
+				int f = members[0];
+				Arrays.fill(column, defaultBin[f]);
+				maxValue = defaultBin[f];
+				for(int i=0;i<nnz[f];i++)
+				{
+					column[rows[f][i]] = values[f][i];
+					maxValue = Math.max(maxValue, values[f][i]);
+				}
+			}
+			else
+			{
+				Arrays.fill(column, 0);
+				int next = 1;
+				for(int m=0;m<members.length;m++)
+				{
+					int f = members[m];
+					offset[f] = next;
+					next += nBins[f];
+					for(int i=0;i<nnz[f];i++)
+						column[rows[f][i]] = offset[f] + values[f][i];
+				}
+				maxValue = next - 1;
+			}
+			if(maxValue <= 0xFF)
+			{
+				byteBins[b] = new byte[nSamples];
+				for(int k=0;k<nSamples;k++)
+					byteBins[b][k] = (byte)column[k];
+			}
+			else if(maxValue <= 0xFFFF)
+			{
+				shortBins[b] = new short[nSamples];
+				for(int k=0;k<nSamples;k++)
+					shortBins[b][k] = (short)column[k];
+			}
+			else
+				intBins[b] = Arrays.copyOf(column, nSamples);
+		}
+	}
+	private static void mark(long[] bits, int[] rows, int n, boolean value)
+	{
+		for(int i=0;i<n;i++)
+		{
+			if(value)
+				bits[rows[i] >>> 6] |= 1L << rows[i];
+			else
+				bits[rows[i] >>> 6] &= ~(1L << rows[i]);
+		}
+	}
+	private static boolean conflict(long[] bits, int[] rows, int n)
+	{
+		for(int i=0;i<n;i++)
+			if((bits[rows[i] >>> 6] & (1L << rows[i])) != 0)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return The index of the first threshold that @value does not exceed (the last one if it exceeds all of them).
+	 */
+	public static int bin(float[] threshold, float value)
+	{
+		int lo = 0;
+		int hi = threshold.length-1;
+		while(lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if(value > threshold[mid])
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	public int size()
+	{
+		return nSamples;
+	}
+	/**
+	 * @return The number of columns (bundles of features).
+	 */
+	public int bundleCount()
+	{
+		return bundles.length;
+	}
+	/**
+	 * @return The features stored in the c-th column.
+	 */
+	public int[] bundle(int c)
+	{
+		return bundles[c];
+	}
+	/**
+	 * @return The bin of sample k for the f-th feature.
+	 */
+	public int get(int f, int k)
+	{
+		int c = bundleOf[f];
+		int v = raw(c, k);
+		if(bundles[c].length == 1)
+			return v;
+		v -= offset[f];
+		return (v >= 0 && v < nBins[f]) ? v : defaultBin[f];
+	}
+	private int raw(int c, int k)
+	{
+		if(byteBins[c] != null)
+			return byteBins[c][k] & 0xFF;
+		if(shortBins[c] != null)
+			return shortBins[c][k] & 0xFFFF;
+		return intBins[c][k];
+	}
+	private int width(int c)
+	{
+		int w = 1;
+		for(int i=0;i<bundles[c].length;i++)
+			w += nBins[bundles[c][i]];
+		return w;
+	}
+	/**
+	 * @return The value of the c-th column for the samples that are in the default bin of all its features (sparse samples only).
+	 */
+	private int columnDefault(int c)
+	{
+		return (bundles[c].length == 1) ? defaultBin[bundles[c][0]] : 0;
+	}
+
+	/**
+	 * sum[f][bin] += labels[k] for every feature f in the columns @cStart..@cEnd and every sample k, in increasing order of k.
+	 */
+	public void accumulate(int cStart, int cEnd, double[] labels, double[][] sum)
+	{
+		if(nonDefault == null)
+		{
+			for(int c=cStart;c<=cEnd;c++)
+				accumulateColumn(c, labels, sum[bundles[c][0]]);
+			return;
+		}
+		double total = 0;
+		for(int k=0;k<nSamples;k++)
+			total += labels[k];
+		Scratch s = acquireScratch();
+		for(int c=cStart;c<=cEnd;c++)
+		{
+			Arrays.fill(s.rawSum, 0, width(c), 0);
+			accumulateEntries(c, null, 0, labels, s.rawSum, null);
+			unbundle(c, s.rawSum, null, total, 0, sum, null);
+		}
+		releaseScratch(s);
+	}
+	/**
+	 * sum[f][bin] += labels[k] and count[f][bin]++ (if @count is not null) for every feature f in the columns @cStart..@cEnd and
+	 * every sample k in soi[begin..end-1] (in ascending order), in that order.
+	 */
+	public void accumulate(int cStart, int cEnd, int[] soi, int begin, int end, double[] labels, double[][] sum, int[][] count)
+	{
+		if(nonDefault == null)
+		{
+			for(int c=cStart;c<=cEnd;c++)
+			{
+				int f = bundles[c][0];
+				accumulateColumn(c, soi, begin, end, labels, sum[f], count == null ? null : count[f]);
+			}
+			return;
+		}
+		double total = 0;
+		for(int i=begin;i<end;i++)
+			total += labels[soi[i]];
+		Scratch s = acquireScratch();
+		int[] rawCount = (count == null) ? null : s.rawCount;
+		boolean all = (end - begin == nSamples);
+		boolean marked = false;
+		for(int c=cStart;c<=cEnd;c++)
+		{
+			//visiting the non-default entries of the column only pays off if they are fewer than the samples
+			if(!all && nonDefault[c].length >= end - begin)
+			{
+				if(bundles[c].length == 1)
+				{
+					int f = bundles[c][0];
+					accumulateColumn(c, soi, begin, end, labels, sum[f], count == null ? null : count[f]);
+					continue;
+				}
+				Arrays.fill(s.rawSum, 0, width(c), 0);
+				if(rawCount != null)
+					Arrays.fill(rawCount, 0, width(c), 0);
+				accumulateColumn(c, soi, begin, end, labels, s.rawSum, rawCount);
+			}
+			else
+			{
+				if(!all && !marked)
+				{
+					s.mark(soi, begin, end);
+					marked = true;
+				}
+				Arrays.fill(s.rawSum, 0, width(c), 0);
+				if(rawCount != null)
+					Arrays.fill(rawCount, 0, width(c), 0);
+				accumulateEntries(c, all ? null : s.mark, s.stamp, labels, s.rawSum, rawCount);
+			}
+			unbundle(c, s.rawSum, rawCount, total, end-begin, sum, count);
+		}
+		releaseScratch(s);
+	}
+	/**
+	 * sum[v] += labels[k] (and count[v]++ if @count is not null) for every sample k that is not in the default bin of the c-th column
+	 * and whose value in it is v, in increasing order of k. Only the samples with mark[k] == @stamp are counted (all of them if @mark
+	 * is null).
+	 */
+	private void accumulateEntries(int c, int[] mark, int stamp, double[] labels, double[] sum, int[] count)
+	{
+		int[] rows = nonDefault[c];
+		for(int i=0;i<rows.length;i++)
+		{
+			int k = rows[i];
+			if(mark != null && mark[k] != stamp)
+				continue;
+			int t = raw(c, k);
+			sum[t] += labels[k];
+			if(count != null)
+				count[t]++;
+		}
+	}
+	/**
+	 * Spread the histogram of a column over its features. The default bin of each feature gets whatever the other bins of
+	 * the feature do not account for.
+	 */
+	private void unbundle(int c, double[] rawSum, int[] rawCount, double total, int totalCount, double[][] sum, int[][] count)
+	{
+		//(the offset of a feature with a column of its own is 0)
+		for(int i=0;i<bundles[c].length;i++)
+		{
+			int f = bundles[c][i];
+			double s = 0;
+			int n = 0;
+			for(int t=0;t<nBins[f];t++)
+			{
+				if(t == defaultBin[f])
+					continue;
+				sum[f][t] += rawSum[offset[f]+t];
+				s += rawSum[offset[f]+t];
+				if(count != null)
+				{
+					count[f][t] += rawCount[offset[f]+t];
+					n += rawCount[offset[f]+t];
+				}
+			}
+			sum[f][defaultBin[f]] += total - s;
+			if(count != null)
+				count[f][defaultBin[f]] += totalCount - n;
+		}
+	}
+	/**
+	 * Split @idx into the samples whose bin for the f-th feature is <= @maxBin (@left) and the others (@right), keeping their order.
+	 */
+	public void partition(int f, int maxBin, int[] idx, int[] left, int[] right)
+	{
+		int c = bundleOf[f];
+		if(bundles[c].length == 1)
+		{
+			partitionColumn(c, maxBin, idx, left, right);
+			return;
+		}
+		int l = 0;
+		int r = 0;
+		for(int j=0;j<idx.length;j++)
+		{
+			if(get(f, idx[j]) <= maxBin)
+				left[l++] = idx[j];
+			else
+				right[r++] = idx[j];
+		}
+	}
+
+	/**
+	 * sum[v] += labels[k] for every sample k whose value in the f-th column is v, in increasing order of k.
+	 */
+	private void accumulateColumn(int f, double[] labels, double[] sum)
+	{
+		if(byteBins[f] != null)
+		{
+			byte[] b = byteBins[f];
+			for(int k=0;k<nSamples;k++)
+				sum[b[k] & 0xFF] += labels[k];
+		}
+		else if(shortBins[f] != null)
+		{
+			short[] b = shortBins[f];
+			for(int k=0;k<nSamples;k++)
+				sum[b[k] & 0xFFFF] += labels[k];
+		}
+		else
+		{
+			int[] b = intBins[f];
+			for(int k=0;k<nSamples;k++)
+				sum[b[k]] += labels[k];
+		}
+	}
+	/**
+	 * Same as above, but only for the samples soi[begin..end-1] (in that order), also counting them if @count is not null.
+	 */
+	private void accumulateColumn(int f, int[] soi, int begin, int end, double[] labels, double[] sum, int[] count)
+	{
+		if(byteBins[f] != null)
+		{
+			byte[] b = byteBins[f];
+			for(int i=begin;i<end;i++)
+			{
+				int t = b[soi[i]] & 0xFF;
+				sum[t] += labels[soi[i]];
+				if(count != null)
+					count[t]++;
+			}
+		}
+		else if(shortBins[f] != null)
+		{
+			short[] b = shortBins[f];
+			for(int i=begin;i<end;i++)
+			{
+				int t = b[soi[i]] & 0xFFFF;
+				sum[t] += labels[soi[i]];
+				if(count != null)
+					count[t]++;
+			}
+		}
+		else
+		{
+			int[] b = intBins[f];
+			for(int i=begin;i<end;i++)
+			{
+				int t = b[soi[i]];
+				sum[t] += labels[soi[i]];
+				if(count != null)
+					count[t]++;
+			}
+		}
+	}
+	private void partitionColumn(int f, int maxBin, int[] idx, int[] left, int[] right)
+	{
+		int l = 0;
+		int r = 0;
+		if(byteBins[f] != null)
+		{
+			byte[] b = byteBins[f];
+			for(int j=0;j<idx.length;j++)
+			{
+				if((b[idx[j]] & 0xFF) <= maxBin)
+					left[l++] = idx[j];
+				else
+					right[r++] = idx[j];
+			}
+		}
+		else if(shortBins[f] != null)
+		{
+			short[] b = shortBins[f];
+			for(int j=0;j<idx.length;j++)
+			{
+				if((b[idx[j]] & 0xFFFF) <= maxBin)
+					left[l++] = idx[j];
+				else
+					right[r++] = idx[j];
+			}
+		}
+		else
+		{
+			int[] b = intBins[f];
+			for(int j=0;j<idx.length;j++)
+			{
+				if(b[idx[j]] <= maxBin)
+					left[l++] = idx[j];
+				else
+					right[r++] = idx[j];
+			}
+		}
+	}
+
+	private synchronized Scratch acquireScratch()
+	{
+		if(scratches.size() > 0)
+			return scratches.pop();
+		return new Scratch(maxWidth, nSamples);
+	}
+	private synchronized void releaseScratch(Scratch s)
+	{
+		scratches.push(s);
+	}
+	/**
+	 * Buffers of a thread building histograms of bundled columns, kept across columns and nodes.
+	 */
+	private static class Scratch {
+		double[] rawSum = null;
+		int[] rawCount = null;
+		int[] mark = null;//mark[k] == stamp iff sample k is among those being accumulated
+		int stamp = 0;
+		int nSamples = 0;
+		
+		Scratch(int width, int nSamples)
+		{
+			rawSum = new double[width];
+			rawCount = new int[width];
+			this.nSamples = nSamples;
+		}
+		void mark(int[] soi, int begin, int end)
+		{
+			if(mark == null)
+				mark = new int[nSamples];
+			if(++stamp == Integer.MAX_VALUE)
+			{
+				Arrays.fill(mark, 0);
+				stamp = 1;
+			}
+			for(int i=begin;i<end;i++)
+				mark[soi[i]] = stamp;
+		}
+	}
+
+	class Worker extends WorkerThread {
+		FeatureBins fb = null;
+		DataPoint[] samples = null;
+		int[] features = null;
+		float[][] thresholds = null;
+
+		public Worker(FeatureBins fb, DataPoint[] samples, int[] features, float[][] thresholds)
+		{
+			this.fb = fb;
+			this.samples = samples;
+			this.features = features;
+			this.thresholds = thresholds;
+		}
+		public void run()
+		{
+			fb.quantize(samples, features, thresholds, start, end);
+		}
+		public WorkerThread clone()
+		{
+			return new Worker(fb, samples, features, thresholds);
+		}
+	}
+}
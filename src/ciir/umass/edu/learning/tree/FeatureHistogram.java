@@ -14,7 +14,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
-import ciir.umass.edu.learning.DataPoint;
 import ciir.umass.edu.utilities.MyThreadPool;
 import ciir.umass.edu.utilities.WorkerThread;
 
@@ -22,23 +21,39 @@ import ciir.umass.edu.utilities.WorkerThread;
  * @author vdang
  */
 public class FeatureHistogram {
-	class Config {
+	static class Config {
 		int featureIdx = -1;
 		int thresholdIdx = -1;
 		double S = -1;
+		double gain = 0;//decrease of the squared error if the split is carried out
 	}
 	
 	//Parameter
-	public static float samplingRate = 1;
+	public static float samplingRate = 1;//default for @featureSamplingRate
+	//a node's histogram is built by splitting its samples (instead of its features) among the threads when there are fewer 
+	//features than threads, and each thread would get at least this many samples
+	public static int minRowsPerThread = 4096;
+	//split scores closer than this (relatively) are ties, which go to the first candidate (lowest feature index, then lowest
+	//threshold): the histogram of a child derived from its parent's does not have exactly the same rounding errors as a scanned one
+	public static double tieTolerance = 1E-10;
 	
 	//Variables
+	public float featureSamplingRate = samplingRate;//fraction of the features considered for each split, inherited by the children
 	public int[] features = null;
 	public float[][] thresholds = null;
 	public double[][] sum = null;
 	public double sumResponse = 0;
 	public double sqSumResponse = 0;
 	public int[][] count = null;
-	public int[][] sampleToThresholdMap = null;
+	public double[] weights = null;//weight of each sample (GOSS), null if they all weigh 1
+	public double[][] weight = null;//like @count, but adding up @weights (only if @weights is not null)
+	public FeatureBins bins = null;//bin of each sample for each feature, shared by all nodes
+	public HistogramPool pool = null;//@sum and @count buffers of the nodes, shared by all nodes of all trees
+	
+	//whether @sum and @count (and @weight) were taken from @pool (and so must be given back to it once no longer needed)
+	private boolean pooled = false;
+	//whether @count of the root histogram covers all samples (i.e. it was not last updated from a subset of them)
+	private boolean countOfAll = true;
 	
 	//whether to re-use its parents @sum and @count instead of cleaning up the parent and re-allocate for the children.
 	//@sum and @count of any intermediate tree node (except for root) can be re-used.  
@@ -49,205 +64,355 @@ public class FeatureHistogram {
 		
 	}
 	
-	public void construct(DataPoint[] samples, double[] labels, int[][] sampleSortedIdx, int[] features, float[][] thresholds)
+	public void construct(FeatureBins bins, double[] labels, int[] features, float[][] thresholds)
 	{
 		this.features = features;
 		this.thresholds = thresholds;
+		this.bins = bins;
+		pool = new HistogramPool(thresholds);
 		
 		sumResponse = 0;
 		sqSumResponse = 0;
 		
 		sum = new double[features.length][];
 		count = new int[features.length][];
-		sampleToThresholdMap = new int[features.length][];
 		
 		MyThreadPool p = MyThreadPool.getInstance();
 		if(p.size() == 1)
-			construct(samples, labels, sampleSortedIdx, thresholds, 0, features.length-1);
+			construct(bins, labels, 0, bins.bundleCount()-1);
 		else
-			p.execute(new Worker(this, samples, labels, sampleSortedIdx, thresholds), features.length);			
+			p.execute(new Worker(this, bins, labels), bins.bundleCount());			
 	}
-	protected void construct(DataPoint[] samples, double[] labels, int[][] sampleSortedIdx, float[][] thresholds, int start, int end)
+	//@start and @end are indices of columns of @bins (which may each hold several features)
+	protected void construct(FeatureBins bins, double[] labels, int start, int end)
 	{
-		for(int i=start;i<=end;i++)
-		{
-			int fid = features[i];			
-			//get the list of samples associated with this node (sorted in ascending order with respect to the current feature)
-			int[] idx = sampleSortedIdx[i];
-			
-			double sumLeft = 0;
-			float[] threshold = thresholds[i];
-			double[] sumLabel = new double[threshold.length];
-			int[] c = new int[threshold.length];
-			int[] stMap = new int[samples.length];
-			
-			int last = -1;
-			for(int t=0;t<threshold.length;t++)
+		int[] all = new int[bins.size()];
+		for(int k=0;k<all.length;k++)
+			all[k] = k;
+		for(int c=start;c<=end;c++)
+			for(int i : bins.bundle(c))
 			{
-				int j=last+1;
-				//find the first sample that exceeds the current threshold
-				for(;j<idx.length;j++)
+				sum[i] = new double[thresholds[i].length];
+				count[i] = new int[thresholds[i].length];
+			}
+		bins.accumulate(start, end, all, 0, all.length, labels, sum, count);
+		for(int c=start;c<=end;c++)
+			for(int i : bins.bundle(c))
+				for(int t=1;t<thresholds[i].length;t++)
 				{
-					int k = idx[j];
-					if(samples[k].getFeatureValue(fid) >  threshold[t])
-						break;
-					sumLeft += labels[k];
-					if(i == 0)
-					{
-						sumResponse += labels[k];
-						sqSumResponse += labels[k] * labels[k];
-					}
-					stMap[k] =  t;
+					sum[i][t] += sum[i][t-1];
+					count[i][t] += count[i][t-1];
 				}
-				last = j-1;	
-				sumLabel[t] = sumLeft;
-				c[t] = last+1;
+		if(start == 0)
+			for(int k=0;k<labels.length;k++)
+			{
+				sumResponse += labels[k];
+				sqSumResponse += labels[k] * labels[k];
 			}
-			sampleToThresholdMap[i] = stMap;
-			sum[i] = sumLabel;
-			count[i] = c;
-		}
 	}
 	
 	public void update(double[] labels)
+	{
+		update(labels, null);
+	}
+	/**
+	 * Same as update(labels), but only the samples in @soi are accounted for.
+	 * @param soi The samples to build the histogram from, in ascending order. null for all samples.
+	 */
+	public void update(double[] labels, int[] soi)
+	{
+		update(labels, soi, null);
+	}
+	/**
+	 * Same as update(labels, soi), but the samples are weighted: a split is then scored by the weighted (rather than the plain)
+	 * sample counts of its children.
+	 * @param weights The weight of each sample. null if they all weigh 1.
+	 */
+	public void update(double[] labels, int[] soi, double[] weights)
 	{
 		sumResponse = 0;
 		sqSumResponse = 0;
 		
+		//counts only need to be re-computed if the set of samples is not the same as last time
+		boolean recount = (soi != null || !countOfAll);
+		int[] samples = soi;
+		if((recount || weights != null) && samples == null)
+		{
+			samples = new int[bins.size()];
+			for(int k=0;k<samples.length;k++)
+				samples[k] = k;
+		}
+		this.weights = weights;
+		if(weights == null)
+			weight = null;
+		else if(weight == null)
+		{
+			weight = new double[features.length][];
+			for(int f=0;f<features.length;f++)
+				weight[f] = new double[thresholds[f].length];
+		}
+		
 		MyThreadPool p = MyThreadPool.getInstance();
 		if(p.size() == 1)
-			update(labels, 0, features.length-1);
+			update(labels, samples, recount, 0, bins.bundleCount()-1);
 		else
-			p.execute(new Worker(this, labels), features.length);
+			p.execute(new Worker(this, labels, samples, recount), bins.bundleCount());
+		countOfAll = (soi == null);
 	}
-	protected void update(double[] labels, int start, int end)
+	protected void update(double[] labels, int[] soi, boolean recount, int start, int end)
 	{
-		for(int f=start;f<=end;f++)
-			Arrays.fill(sum[f], 0);
-		for(int k=0;k<labels.length;k++)
+		for(int c=start;c<=end;c++)
+			for(int f : bins.bundle(c))
+			{
+				Arrays.fill(sum[f], 0);
+				if(recount)
+					Arrays.fill(count[f], 0);
+				if(weights != null)
+					Arrays.fill(weight[f], 0);
+			}
+		if(recount)
+			bins.accumulate(start, end, soi, 0, soi.length, labels, sum, count);
+		else//count doesn't change, so no need to re-compute
+			bins.accumulate(start, end, labels, sum);
+		if(weights != null)
+			bins.accumulate(start, end, soi, 0, soi.length, weights, weight, null);
+		for(int c=start;c<=end;c++)
 		{
-			for(int f=start;f<=end;f++)
+			for(int f : bins.bundle(c))
 			{
-				int t = sampleToThresholdMap[f][k];
-				sum[f][t] += labels[k];
-				if(f == 0)
+				for(int t=1;t<thresholds[f].length;t++)
 				{
-					sumResponse += labels[k];
-					sqSumResponse += labels[k]*labels[k];
+					sum[f][t] += sum[f][t-1];
+					if(recount)
+						count[f][t] += count[f][t-1];
+					if(weights != null)
+						weight[f][t] += weight[f][t-1];
 				}
-				//count doesn't change, so no need to re-compute
 			}
 		}
-		for(int f=start;f<=end;f++)
-		{			
-			for(int t=1;t<thresholds[f].length;t++)
-				sum[f][t] += sum[f][t-1];
+		if(start == 0)
+		{
+			if(soi == null)
+				for(int k=0;k<labels.length;k++)
+				{
+					sumResponse += labels[k];
+					sqSumResponse += labels[k]*labels[k];
+				}
+			else
+				for(int i=0;i<soi.length;i++)
+				{
+					int k = soi[i];
+					sumResponse += labels[k];
+					sqSumResponse += labels[k]*labels[k];
+				}
 		}
 	}
 	
 	public void construct(FeatureHistogram parent, int[] soi, double[] labels)
 	{
+		this.featureSamplingRate = parent.featureSamplingRate;
 		this.features = parent.features;
 		this.thresholds = parent.thresholds;
 		sumResponse = 0;
 		sqSumResponse = 0;
-		sum = new double[features.length][];
-		count = new int[features.length][];
-		sampleToThresholdMap = parent.sampleToThresholdMap;
+		bins = parent.bins;
+		pool = parent.pool;
+		sum = pool.acquireSum();
+		count = pool.acquireCount();
+		weights = parent.weights;
+		if(weights != null)
+			weight = pool.acquireSum();
+		pooled = true;
 		
 		MyThreadPool p = MyThreadPool.getInstance();
 		if(p.size() == 1)
-			construct(parent, soi, labels, 0, features.length-1);
+			construct(parent, soi, labels, 0, bins.bundleCount()-1);
+		else if(bins.bundleCount() < p.size() && soi.length >= minRowsPerThread * p.size())
+			constructByRows(soi, labels);
 		else
-			p.execute(new Worker(this, parent, soi, labels), features.length);	
+			p.execute(new Worker(this, parent, soi, labels), bins.bundleCount());	
 	}
-	protected void construct(FeatureHistogram parent, int[] soi, double[] labels, int start, int end)
+	/**
+	 * Row-parallel version of construct(parent, soi, labels): each thread builds a partial histogram of a slice of @soi, and 
+	 * the partial histograms are then added up in the order of the slices.
+	 */
+	protected void constructByRows(int[] soi, double[] labels)
 	{
-		//init
-		for(int i=start;i<=end;i++)
-		{			
-			float[] threshold = thresholds[i];
-			sum[i] = new double[threshold.length];
-			count[i] = new int[threshold.length];
-			Arrays.fill(sum[i], 0);
-			Arrays.fill(count[i], 0);
+		MyThreadPool p = MyThreadPool.getInstance();
+		WorkerThread[] workers = p.execute(new Worker(this, soi, labels), soi.length);
+		for(int f=0;f<features.length;f++)
+		{
+			Arrays.fill(sum[f], 0);
+			Arrays.fill(count[f], 0);
+			if(weights != null)
+				Arrays.fill(weight[f], 0);
 		}
-		
-		//update
-		for(int i=0;i<soi.length;i++)
+		for(int i=0;i<workers.length;i++)
 		{
-			int k = soi[i];
-			for(int f=start;f<=end;f++)
+			Worker wk = (Worker)workers[i];
+			for(int f=0;f<features.length;f++)
 			{
-				int t = sampleToThresholdMap[f][k];
-				sum[f][t] += labels[k];
-				count[f][t] ++;
-				if(f == 0)
+				for(int t=0;t<thresholds[f].length;t++)
 				{
-					sumResponse += labels[k];
-					sqSumResponse += labels[k]*labels[k];
+					sum[f][t] += wk.partialSum[f][t];
+					count[f][t] += wk.partialCount[f][t];
+					if(weights != null)
+						weight[f][t] += wk.partialWeight[f][t];
 				}
 			}
+			sumResponse += wk.partialResponse[0];
+			sqSumResponse += wk.partialResponse[1];
+			pool.release(wk.partialSum, wk.partialCount);
+			if(weights != null)
+				pool.release(wk.partialWeight, null);
 		}
-		
-		for(int f=start;f<=end;f++)
+		for(int f=0;f<features.length;f++)
 		{			
 			for(int t=1;t<thresholds[f].length;t++)
 			{
 				sum[f][t] += sum[f][t-1];
 				count[f][t] += count[f][t-1];
+				if(weights != null)
+					weight[f][t] += weight[f][t-1];
+			}
+		}
+	}
+	/**
+	 * Partial (non-cumulative) histogram of the samples soi[begin..end-1], for all features.
+	 * @param weight Receives the weighted counts (only if @weights is not null).
+	 * @param response Receives the sum and the sum of squares of the labels of these samples.
+	 */
+	protected void accumulate(int[] soi, double[] labels, int begin, int end, double[][] sum, int[][] count, double[][] weight, double[] response)
+	{
+		for(int f=0;f<features.length;f++)
+		{
+			Arrays.fill(sum[f], 0);
+			Arrays.fill(count[f], 0);
+			if(weights != null)
+				Arrays.fill(weight[f], 0);
+		}
+		bins.accumulate(0, bins.bundleCount()-1, soi, begin, end, labels, sum, count);
+		if(weights != null)
+			bins.accumulate(0, bins.bundleCount()-1, soi, begin, end, weights, weight, null);
+		for(int i=begin;i<end;i++)
+		{
+			int k = soi[i];
+			response[0] += labels[k];
+			response[1] += labels[k]*labels[k];
+		}
+	}
+	protected void construct(FeatureHistogram parent, int[] soi, double[] labels, int start, int end)
+	{
+		//init
+		for(int c=start;c<=end;c++)
+			for(int i : bins.bundle(c))
+			{
+				Arrays.fill(sum[i], 0);
+				Arrays.fill(count[i], 0);
+				if(weights != null)
+					Arrays.fill(weight[i], 0);
 			}
+		
+		//update
+		bins.accumulate(start, end, soi, 0, soi.length, labels, sum, count);
+		if(weights != null)
+			bins.accumulate(start, end, soi, 0, soi.length, weights, weight, null);
+		if(start == 0)
+			for(int i=0;i<soi.length;i++)
+			{
+				int k = soi[i];
+				sumResponse += labels[k];
+				sqSumResponse += labels[k]*labels[k];
+			}
+		
+		for(int c=start;c<=end;c++)
+		{
+			for(int f : bins.bundle(c))
+				for(int t=1;t<thresholds[f].length;t++)
+				{
+					sum[f][t] += sum[f][t-1];
+					count[f][t] += count[f][t-1];
+					if(weights != null)
+						weight[f][t] += weight[f][t-1];
+				}
 		}
 	}	
 	
-	public void construct(FeatureHistogram parent, FeatureHistogram leftSibling, boolean reuseParent)
+	/**
+	 * Derive the histogram of a node from the ones of its parent and of its sibling.
+	 */
+	public void construct(FeatureHistogram parent, FeatureHistogram sibling, boolean reuseParent)
 	{
 		this.reuseParent = reuseParent;
+		this.featureSamplingRate = parent.featureSamplingRate;
 		this.features = parent.features;
 		this.thresholds = parent.thresholds;
-		sumResponse = parent.sumResponse - leftSibling.sumResponse;
-		sqSumResponse = parent.sqSumResponse - leftSibling.sqSumResponse;
+		sumResponse = parent.sumResponse - sibling.sumResponse;
+		sqSumResponse = parent.sqSumResponse - sibling.sqSumResponse;
+		bins = parent.bins;
+		pool = parent.pool;
+		weights = parent.weights;
 		
 		if(reuseParent)
 		{
+			//the parent's buffers now belong to this node
 			sum = parent.sum;
 			count = parent.count;
+			weight = parent.weight;
+			pooled = parent.pooled;
+			parent.pooled = false;
 		}
 		else
 		{
-			sum = new double[features.length][];
-			count = new int[features.length][];
+			sum = pool.acquireSum();
+			count = pool.acquireCount();
+			if(weights != null)
+				weight = pool.acquireSum();
+			pooled = true;
 		}
-		sampleToThresholdMap = parent.sampleToThresholdMap;
 		
 		MyThreadPool p = MyThreadPool.getInstance();
 		if(p.size() == 1)
-			construct(parent, leftSibling, 0, features.length-1);
+			construct(parent, sibling, 0, features.length-1);
 		else
-			p.execute(new Worker(this, parent, leftSibling), features.length);
+			p.execute(new Worker(this, parent, sibling), features.length);
 	}
-	protected void construct(FeatureHistogram parent, FeatureHistogram leftSibling, int start, int end)
+	protected void construct(FeatureHistogram parent, FeatureHistogram sibling, int start, int end)
 	{
 		for(int f=start;f<=end;f++)
 		{
 			float[] threshold = thresholds[f];
-			if(!reuseParent)
-			{
-				sum[f] = new double[threshold.length];
-				count[f] = new int[threshold.length];
-			}
 			for(int t=0;t<threshold.length;t++)
 			{
-				sum[f][t] = parent.sum[f][t] - leftSibling.sum[f][t];
-				count[f][t] = parent.count[f][t] - leftSibling.count[f][t];
+				sum[f][t] = parent.sum[f][t] - sibling.sum[f][t];
+				count[f][t] = parent.count[f][t] - sibling.count[f][t];
+				if(weights != null)
+					weight[f][t] = parent.weight[f][t] - sibling.weight[f][t];
 			}
 		}
 	}
+	/**
+	 * Give @sum and @count (and @weight) back to the pool if they came from it. The histogram can no longer be used afterwards.
+	 * This has no effect on the root histogram, which is kept for the next trees.
+	 */
+	public void release()
+	{
+		if(!pooled)
+			return;
+		pool.release(sum, count);
+		if(weight != null)
+			pool.release(weight, null);
+		sum = null;
+		count = null;
+		weight = null;
+		pooled = false;
+	}
 	
 	protected Config findBestSplit(int[] usedFeatures, int minLeafSupport, int start, int end)
 	{
 		Config cfg = new Config();
 		int totalCount = count[start][count[start].length-1];
+		double totalWeight = (weights == null) ? totalCount : weight[start][weight[start].length-1];
 		for(int f=start;f<=end;f++)
 		{
 			int i = usedFeatures[f];
@@ -263,8 +428,11 @@ public class FeatureHistogram {
 				double sumLeft = sum[i][t];
 				double sumRight = sumResponse - sumLeft;
 				
-				double S = sumLeft * sumLeft / countLeft + sumRight * sumRight / countRight;
-				if(cfg.S < S)
+				//with sample weights, the denominators are the weighted counts (which the leaf outputs are also divided by)
+				double weightLeft = (weights == null) ? countLeft : weight[i][t];
+				double weightRight = (weights == null) ? countRight : totalWeight - weightLeft;
+				double S = sumLeft * sumLeft / weightLeft + sumRight * sumRight / weightRight;
+				if(better(S, cfg.S))
 				{
 					cfg.S = S;
 					cfg.featureIdx = i;
@@ -274,15 +442,34 @@ public class FeatureHistogram {
 		}		
 		return cfg;
 	}
+	/**
+	 * @return Whether a split of score @S beats the best one found so far (of score @bestS), which comes earlier in the scan.
+	 */
+	private static boolean better(double S, double bestS)
+	{
+		return S > bestS + tieTolerance * Math.abs(bestS);
+	}
 	public boolean findBestSplit(Split sp, double[] labels, int minLeafSupport)
+	{
+		Config best = findBestSplit(sp, minLeafSupport);
+		if(best == null)
+			return false;
+		split(sp, best, labels);
+		return true;
+	}
+	/**
+	 * Find the best split of a node, without carrying it out.
+	 * @return null if the node cannot be split.
+	 */
+	public Config findBestSplit(Split sp, int minLeafSupport)
 	{
 		if(sp.getDeviance() >= 0.0 && sp.getDeviance() <= 0.0)//equals 0
-			return false;//no need to split
+			return null;//no need to split
 		
 		int[] usedFeatures = null;//index of the features to be used for tree splitting
-		if(samplingRate < 1)//need to do sub sampling (feature sampling)
+		if(featureSamplingRate < 1)//need to do sub sampling (feature sampling)
 		{
-			int size = (int)(samplingRate * features.length);
+			int size = (int)(featureSamplingRate * features.length);
 			usedFeatures = new int[size];
 			//put all features into a pool
 			List<Integer> fpool = new ArrayList<Integer>();
@@ -315,17 +502,24 @@ public class FeatureHistogram {
 			for(int i=0;i<workers.length;i++)
 			{
 				Worker wk = (Worker)workers[i];
-				if(best.S < wk.cfg.S)
+				if(better(wk.cfg.S, best.S))
 					best = wk.cfg;
 			}		
 		}
 		
 		if(best.S == -1)//unsplitable, for some reason...
-			return false;
-		
-		//if(minS >= sp.getDeviance())
-			//return null;
+			return null;
 		
+		double total = (weights == null) ? sp.getSamples().length : weight[0][weight[0].length-1];
+		best.gain = best.S - sumResponse * sumResponse / total;
+		return best;
+	}
+	/**
+	 * Carry out a split found by findBestSplit(sp, minLeafSupport): partition the samples of the node and build the histograms 
+	 * of its children.
+	 */
+	public void split(Split sp, Config best, double[] labels)
+	{
 		double[] sumLabel = sum[best.featureIdx];
 		int[] sampleCount = count[best.featureIdx];
 		
@@ -340,23 +534,22 @@ public class FeatureHistogram {
 		
 		int[] left = new int[countLeft];
 		int[] right = new int[countRight];
-		int l = 0;
-		int r = 0;
-		int k = 0;
 		int[] idx = sp.getSamples();
-		for(int j=0;j<idx.length;j++)
-		{
-			k = idx[j];
-			if(sampleToThresholdMap[best.featureIdx][k] <= best.thresholdIdx)//go to the left
-				left[l++] = k;
-			else//go to the right
-				right[r++] = k;
-		}
+		bins.partition(best.featureIdx, best.thresholdIdx, idx, left, right);
 		
+		//only scan the samples of the smaller child, the other one is derived from the parent
 		FeatureHistogram lh = new FeatureHistogram();
-		lh.construct(sp.hist, left, labels);
 		FeatureHistogram rh = new FeatureHistogram();
-		rh.construct(sp.hist, lh, !sp.isRoot());
+		if(countLeft <= countRight)
+		{
+			lh.construct(sp.hist, left, labels);
+			rh.construct(sp.hist, lh, !sp.isRoot());
+		}
+		else
+		{
+			rh.construct(sp.hist, right, labels);
+			lh.construct(sp.hist, rh, !sp.isRoot());
+		}
 
 		double var = sqSumResponse - sumResponse * sumResponse / idx.length;
 		double varLeft = lh.sqSumResponse - lh.sumResponse * lh.sumResponse / left.length;
@@ -367,8 +560,6 @@ public class FeatureHistogram {
 		sp.setRight(new Split(right, rh, varRight, sumRight));
 		
 		sp.clearSamples();
-		
-		return true;
 	}	
 
 	class Worker extends WorkerThread {
@@ -382,18 +573,23 @@ public class FeatureHistogram {
 		
 		//update (type = 1)
 		double[] labels = null;
+		boolean recount = false;
 		
 		//construct (type = 2)
 		FeatureHistogram parent = null;
 		int[] soi = null;
 		
 		//construct (type = 3)
-		FeatureHistogram leftSibling = null;
+		FeatureHistogram sibling = null;
 		
 		//construct (type = 4)
-		DataPoint[] samples;
-		int[][] sampleSortedIdx;
-		float[][] thresholds;
+		FeatureBins bins = null;
+		
+		//row-parallel construct (type = 5)
+		double[][] partialSum = null;
+		int[][] partialCount = null;
+		double[][] partialWeight = null;
+		double[] partialResponse = null;
 		
 		public Worker()
 		{
@@ -405,11 +601,13 @@ public class FeatureHistogram {
 			this.usedFeatures = usedFeatures;
 			this.minLeafSup = minLeafSup;
 		}
-		public Worker(FeatureHistogram fh, double[] labels)
+		public Worker(FeatureHistogram fh, double[] labels, int[] soi, boolean recount)
 		{
 			type = 1;
 			this.fh = fh;
 			this.labels = labels;
+			this.soi = soi;
+			this.recount = recount;
 		}
 		public Worker(FeatureHistogram fh, FeatureHistogram parent, int[] soi, double[] labels)
 		{
@@ -419,34 +617,48 @@ public class FeatureHistogram {
 			this.soi = soi;
 			this.labels = labels;
 		}
-		public Worker(FeatureHistogram fh, FeatureHistogram parent, FeatureHistogram leftSibling)
+		public Worker(FeatureHistogram fh, FeatureHistogram parent, FeatureHistogram sibling)
 		{
 			type = 3;
 			this.fh = fh;
 			this.parent = parent;
-			this.leftSibling = leftSibling;
+			this.sibling = sibling;
 		}
-		public Worker(FeatureHistogram fh, DataPoint[] samples, double[] labels, int[][] sampleSortedIdx, float[][] thresholds)
+		public Worker(FeatureHistogram fh, FeatureBins bins, double[] labels)
 		{
 			type = 4;
 			this.fh = fh;
-			this.samples = samples;
+			this.bins = bins;
+			this.labels = labels;
+		}
+		public Worker(FeatureHistogram fh, int[] soi, double[] labels)
+		{
+			type = 5;
+			this.fh = fh;
+			this.soi = soi;
 			this.labels = labels;
-			this.sampleSortedIdx = sampleSortedIdx;
-			this.thresholds = thresholds;			
 		}
 		public void run()
 		{
 			if(type == 0)
 				cfg = fh.findBestSplit(usedFeatures, minLeafSup, start, end);
 			else if(type == 1)
-				fh.update(labels, start, end);
+				fh.update(labels, soi, recount, start, end);
 			else if(type == 2)
 				fh.construct(parent, soi, labels, start, end);
 			else if(type == 3)
-				fh.construct(parent, leftSibling, start, end);
+				fh.construct(parent, sibling, start, end);
 			else if(type == 4)
-				fh.construct(samples, labels, sampleSortedIdx, thresholds, start, end);
+				fh.construct(bins, labels, start, end);
+			else if(type == 5)
+			{
+				partialSum = fh.pool.acquireSum();
+				partialCount = fh.pool.acquireCount();
+				if(fh.weights != null)
+					partialWeight = fh.pool.acquireSum();
+				partialResponse = new double[2];
+				fh.accumulate(soi, labels, start, end+1, partialSum, partialCount, partialWeight, partialResponse);
+			}
 		}		
 		public WorkerThread clone()
 		{
@@ -461,18 +673,17 @@ public class FeatureHistogram {
 			
 			//update (type = 1)
 			wk.labels = labels;
+			wk.recount = recount;
 			
 			//construct (type = 2)
 			wk.parent = parent;
 			wk.soi = soi;
 			
 			//construct (type = 3)
-			wk.leftSibling = leftSibling;
+			wk.sibling = sibling;
 			
-			//construct (type = 1)
-			wk.samples = samples;
-			wk.sampleSortedIdx = sampleSortedIdx;
-			wk.thresholds = thresholds;			
+			//construct (type = 4)
+			wk.bins = bins;
 			
 			return wk;
 		}
@@ -0,0 +1,89 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.learning.tree;
+
+import ciir.umass.edu.learning.DataPoint;
+
+/**
+ * Immutable, array-based copy of an {@link Ensemble}, only meant for scoring. The internal nodes of all trees are stored in
+ * contiguous arrays (tree after tree, each in pre-order so that the left child usually follows its parent), and a child index
+ * k < 0 stands for the leaf ~k. Leaf outputs are multiplied by the weight of their tree beforehand.
+ *
+ * eval(dp) returns exactly the same score as the ensemble it was built from.
+ */
+public class FlatEnsemble {
+
+	private int[] root = null;//for each tree, its root node (or ~leaf for a tree made of a single leaf)
+	private int[] feature = null;
+	private float[] threshold = null;
+	private int[] left = null;
+	private int[] right = null;
+	//kept in double: the output of a tree is a double, and Ensemble.eval() multiplies it by the weight before rounding the sum
+	private double[] leafValue = null;
+
+	private int nNodes = 0;
+	private int nLeaves = 0;
+
+	public FlatEnsemble(Ensemble e)
+	{
+		int internal = 0;
+		int leaves = 0;
+		for(int i=0;i<e.treeCount();i++)
+		{
+			int n = e.getTree(i).leaves().size();
+			leaves += n;
+			internal += n - 1;
+		}
+		root = new int[e.treeCount()];
+		feature = new int[internal];
+		threshold = new float[internal];
+		left = new int[internal];
+		right = new int[internal];
+		leafValue = new double[leaves];
+		for(int i=0;i<e.treeCount();i++)
+			root[i] = add(e.getTree(i).root, e.getWeight(i));
+	}
+
+	/**
+	 * Append the subtree rooted at @s.
+	 * @return The index of its root node, or ~leaf if it is a single leaf.
+	 */
+	private int add(Split s, float weight)
+	{
+		if(s.getFeatureID() == -1)
+		{
+			leafValue[nLeaves] = s.getOutput() * weight;
+			return ~(nLeaves++);
+		}
+		int n = nNodes++;
+		feature[n] = s.getFeatureID();
+		threshold[n] = s.getThreshold();
+		left[n] = add(s.getLeft(), weight);
+		right[n] = add(s.getRight(), weight);
+		return n;
+	}
+
+	public float eval(DataPoint dp)
+	{
+		float s = 0;
+		for(int i=0;i<root.length;i++)
+		{
+			int n = root[i];
+			while(n >= 0)
+				n = (dp.getFeatureValue(feature[n]) <= threshold[n]) ? left[n] : right[n];
+			s += leafValue[~n];
+		}
+		return s;
+	}
+	public int treeCount()
+	{
+		return root.length;
+	}
+}
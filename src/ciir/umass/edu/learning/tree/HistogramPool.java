@@ -0,0 +1,55 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.learning.tree;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycled @sum/@count buffers of the node histograms. All histograms of a model share the same features and thresholds, so a
+ * buffer released by a node (once it has been split, or once its tree is done) can be handed as is to any node of any later tree.
+ * Acquired buffers are NOT cleared.
+ */
+public class HistogramPool {
+
+	private float[][] thresholds = null;
+	private ArrayDeque<double[][]> sums = new ArrayDeque<double[][]>();
+	private ArrayDeque<int[][]> counts = new ArrayDeque<int[][]>();
+
+	public HistogramPool(float[][] thresholds)
+	{
+		this.thresholds = thresholds;
+	}
+
+	public synchronized double[][] acquireSum()
+	{
+		if(sums.size() > 0)
+			return sums.pop();
+		double[][] sum = new double[thresholds.length][];
+		for(int f=0;f<thresholds.length;f++)
+			sum[f] = new double[thresholds[f].length];
+		return sum;
+	}
+	public synchronized int[][] acquireCount()
+	{
+		if(counts.size() > 0)
+			return counts.pop();
+		int[][] count = new int[thresholds.length][];
+		for(int f=0;f<thresholds.length;f++)
+			count[f] = new int[thresholds[f].length];
+		return count;
+	}
+	public synchronized void release(double[][] sum, int[][] count)
+	{
+		if(sum != null)
+			sums.push(sum);
+		if(count != null)
+			counts.push(count);
+	}
+}
@@ -10,19 +10,25 @@
 package ciir.umass.edu.learning.tree;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.StringReader;
-import java.util.ArrayList;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import ciir.umass.edu.learning.DataPoint;
 import ciir.umass.edu.learning.RankList;
 import ciir.umass.edu.learning.Ranker;
 import ciir.umass.edu.metric.MetricScorer;
+import ciir.umass.edu.metric.SwapChanges;
 import ciir.umass.edu.utilities.MergeSorter;
 import ciir.umass.edu.utilities.MyThreadPool;
+import ciir.umass.edu.utilities.QuantileSketch;
 import ciir.umass.edu.utilities.RankLibError;
 import ciir.umass.edu.utilities.SimpleMath;
+import ciir.umass.edu.utilities.WorkerThread;
 
 /**
  * @author vdang
@@ -39,24 +45,79 @@ public class LambdaMART extends Ranker {
 	public static int nRoundToStopEarly = 100;//If no performance gain on the *VALIDATION* data is observed in #rounds, stop the training process right away. 
 	public static int nTreeLeaves = 10;
 	public static int minLeafSupport = 1;
+	public static int maxDepth = -1;//maximum depth of each tree (-1: only limited by the number of leaves)
+	public static boolean useQuickScorer = false;//score with QuickScorer instead of walking the trees (same scores)
+	//Gradient-based one-side sampling (GOSS): each tree is only fitted on the samples with the largest |lambda| (a fraction gossTopRate 
+	//of all samples), plus a fraction gossOtherRate of all samples drawn at random from the others. GOSS is off if gossTopRate >= 1.
+	public static float gossTopRate = 1.0F;
+	public static float gossOtherRate = 0.1F;
+	//Stochastic boosting at the query level: each tree only sees a random fraction querySamplingRate of the training queries. The model's 
+	//outputs on the other queries are brought up to date when they are drawn again, and for all queries every queryRefreshRate rounds.
+	public static float querySamplingRate = 1.0F;
+	public static int queryRefreshRate = 10;
 	
 	//for debugging
 	public static int gcCycle = 100;
 	
+	/**
+	 * Learning parameters of one instance. They default to the (static) parameters above at the time the instance is created, and 
+	 * can be set per instance (see setParameters()) so that several rankers, e.g. the bags of a Random Forest, can be trained at the 
+	 * same time with settings of their own.
+	 */
+	public static class Parameters {
+		public int nTrees = LambdaMART.nTrees;
+		public float learningRate = LambdaMART.learningRate;
+		public int nThreshold = LambdaMART.nThreshold;
+		public int nRoundToStopEarly = LambdaMART.nRoundToStopEarly;
+		public int nTreeLeaves = LambdaMART.nTreeLeaves;
+		public int minLeafSupport = LambdaMART.minLeafSupport;
+		public int maxDepth = LambdaMART.maxDepth;
+		public float gossTopRate = LambdaMART.gossTopRate;
+		public float gossOtherRate = LambdaMART.gossOtherRate;
+		public float querySamplingRate = LambdaMART.querySamplingRate;
+		public int queryRefreshRate = LambdaMART.queryRefreshRate;
+		public float featureSamplingRate = FeatureHistogram.samplingRate;
+	}
+	
 	//Local variables
-	protected float[][] thresholds = null;
+	protected Parameters params = new Parameters();
+	protected float[][] thresholds = null;//candidate thresholds of each feature (computed in init(), unless given by setFeatureBins())
+	protected FeatureBins bins = null;//the training samples quantized against @thresholds (same)
 	protected Ensemble ensemble = null;
+	protected FlatEnsemble compiled = null;//scoring form of @ensemble, built once it is final (after training or loading)
+	protected QuickScorer quickScorer = null;//used instead of @compiled if useQuickScorer is set
+	protected CompiledEnsemble generated = null;//used instead of both once compileToBytecode() has been called
+	protected String header = null;//"##" lines of the model this ranker was loaded from, written back as they are when it is saved
 	protected double[] modelScores = null;//on training data
 	
 	protected double[][] modelScoresOnValidation = null;
+	//per-query metric scores of the current model. They are summed up in query order, so the result does not depend on the number of threads.
+	protected double[] scoresOnTraining = null;
+	protected double[] scoresOnValidation = null;
+	//time spent evaluating each query, summed over all iterations (in nanoseconds)
+	protected long[] evalTimeOnTraining = null;
+	protected long[] evalTimeOnValidation = null;
+	protected long[] validationCost = null;
+	protected int nIterations = 0;
 	protected int bestModelOnValidation = Integer.MAX_VALUE-2;
 	
 	//Training instances prepared for MART
 	protected DataPoint[] martSamples = null;//Need initializing only once
-	protected int[][] sortedIdx = null;//sorted list of samples in @martSamples by each feature -- Need initializing only once 
+	protected int[] queryStart = null;//index of the first sample of each query in @martSamples
+	protected long[] queryCost = null;//estimated cost of computing the lambdas of each query (for load balancing)
 	protected FeatureHistogram hist = null;
 	protected double[] pseudoResponses = null;//different for each iteration
 	protected double[] weights = null;//different for each iteration
+	protected int[] treeSamples = null;//samples the current tree is fitted on (null: all of them) -- different for each iteration
+	protected double[] sampleWeights = null;//GOSS re-weighting of the samples in @treeSamples (null if GOSS is not used in this iteration)
+	protected double[] gossWeights = null;//storage for @sampleWeights, kept across iterations
+	protected double[] gossGradients = null;//GOSS scratch: |lambda| of each sample
+	protected int[] gossOrder = null;//GOSS scratch: candidate samples, the selected ones first
+	protected boolean[] inRound = null;//queries the current tree is fitted on (null: all of them)
+	protected long[] roundCost = null;//@queryCost of the queries in @inRound, 0 for the others
+	protected int[] treesInScore = null;//for each query, the number of trees of the ensemble accounted for in @modelScores
+	protected Random random = new Random();
+	protected ThreadLocal<LambdaBuffers> lambdaBuffers = ThreadLocal.withInitial(LambdaBuffers::new);
 	
 	public LambdaMART()
 	{		
@@ -81,9 +142,16 @@ public class LambdaMART extends Ranker {
 		modelScores = new double[dpCount];
 		pseudoResponses = new double[dpCount];
 		weights = new double[dpCount];
+		queryStart = new int[samples.size()];
+		queryCost = new long[samples.size()];
+		scoresOnTraining = new double[samples.size()];
+		evalTimeOnTraining = new long[samples.size()];
 		for(int i=0;i<samples.size();i++)
 		{
 			RankList rl = samples.get(i);
+			queryStart[i] = current;
+			//only pairs involving the top (k+1) documents are considered, plus sorting the list
+			queryCost[i] = (long)rl.size() * Math.min(rl.size(), scorer.getK()+1) + rl.size();
 			for(int j=0;j<rl.size();j++)
 			{
 				martSamples[current+j] = rl.get(j);
@@ -92,89 +160,86 @@ public class LambdaMART extends Ranker {
 				weights[current+j] = 0;
 			}
 			current += rl.size();
-		}			
-		
-		//sort (MART) samples by each feature so that we can quickly retrieve a sorted list of samples by any feature later on.
-		sortedIdx = new int[features.length][];
-		MyThreadPool p = MyThreadPool.getInstance();
-		if(p.size() == 1)//single-thread
-			sortSamplesByFeature(0, features.length-1);
-		else//multi-thread
+		}
+		if(params.querySamplingRate < 1)
 		{
-			int[] partition = p.partition(features.length);
-			for(int i=0;i<partition.length-1;i++)
-				p.execute(new SortWorker(this, partition[i], partition[i+1]-1));
-			p.await();
+			inRound = new boolean[samples.size()];
+			roundCost = new long[samples.size()];
+			treesInScore = new int[samples.size()];
 		}
 		
-		//Create a table of candidate thresholds (for each feature). Later on, we will select the best tree split from these candidates 
-		thresholds = new float[features.length][];
-		for(int f=0;f<features.length;f++)
-		{
-			//For this feature, keep track of the list of unique values and the max/min 
-			List<Float> values = new ArrayList<Float>();
-			float fmax = Float.NEGATIVE_INFINITY;
-			float fmin = Float.MAX_VALUE;
-			for(int i=0;i<martSamples.length;i++)
-			{
-				int k = sortedIdx[f][i];//get samples sorted with respect to this feature
-				float fv = martSamples[k].getFeatureValue(features[f]);
-				values.add(fv);
-				if(fmax < fv)
-					fmax = fv;
-				if(fmin > fv)
-					fmin = fv;
-				//skip all samples with the same feature value
-				int j=i+1;
-				while(j < martSamples.length)
-				{
-					if(martSamples[sortedIdx[f][j]].getFeatureValue(features[f]) > fv)
-						break;
-					j++;
-				}
-				i = j-1;//[i, j] gives the range of samples with the same feature value
-			}
-			
-			if(values.size() <= nThreshold || nThreshold == -1)
-			{
-				thresholds[f] = new float[values.size()+1];
-				for(int i=0;i<values.size();i++)
-					thresholds[f][i] = values.get(i);
-				thresholds[f][values.size()] = Float.MAX_VALUE;
-			}
-			else
-			{
-				float step = (Math.abs(fmax - fmin))/nThreshold;
-				thresholds[f] = new float[nThreshold+1];
-				thresholds[f][0] = fmin;
-				for(int j=1;j<nThreshold;j++)
-					thresholds[f][j] = thresholds[f][j-1] + step;
-				thresholds[f][nThreshold] = Float.MAX_VALUE;
-			}
-		}
+		initFeatureBins();
 		
 		if(validationSamples != null)
 		{
 			modelScoresOnValidation = new double[validationSamples.size()][];
+			scoresOnValidation = new double[validationSamples.size()];
+			evalTimeOnValidation = new long[validationSamples.size()];
+			validationCost = new long[validationSamples.size()];
 			for(int i=0;i<validationSamples.size();i++)
 			{
 				modelScoresOnValidation[i] = new double[validationSamples.get(i).size()];
+				validationCost[i] = validationSamples.get(i).size();
 				Arrays.fill(modelScoresOnValidation[i], 0);
 			}
 		}
 		
-		//compute the feature histogram (this is used to speed up the procedure of finding the best tree split later on)
+		//compute the feature histogram (this is used to speed up the procedure of finding the best tree split later on) from the bins
 		hist = new FeatureHistogram();
-		hist.construct(martSamples, pseudoResponses, sortedIdx, features, thresholds);
-		//we no longer need the sorted indexes of samples
-		sortedIdx = null;
+		hist.featureSamplingRate = params.featureSamplingRate;
+		hist.construct(bins, pseudoResponses, features, thresholds);
 		
 		System.gc();
 		PRINTLN("[Done]");
 	}
+	/**
+	 * Create the table of candidate thresholds of each feature (later on, we will select the best tree split from these candidates), 
+	 * then quantize the samples once (each feature value is replaced by the index of its threshold bin). Both are skipped if they 
+	 * have been given beforehand.
+	 */
+	protected void initFeatureBins()
+	{
+		if(thresholds == null)
+		{
+			thresholds = new float[features.length][];
+			MyThreadPool p = MyThreadPool.getInstance();
+			if(p.size() == 1)//single-thread
+				computeThresholds(0, features.length-1);
+			else//multi-thread
+			{
+				int[] partition = p.partition(features.length);
+				for(int i=0;i<partition.length-1;i++)
+					p.execute(new ThresholdWorker(this, partition[i], partition[i+1]-1));
+				p.await();
+			}
+		}
+		if(bins == null)
+			bins = new FeatureBins(martSamples, features, thresholds);
+	}
+	/**
+	 * Train with these candidate thresholds and quantized samples instead of computing them in init(), e.g. those of the whole 
+	 * training set, shared by the bags of a Random Forest. @bins must hold the samples in the order of the training set of this 
+	 * ranker. Both are only read.
+	 */
+	public void setFeatureBins(float[][] thresholds, FeatureBins bins)
+	{
+		this.thresholds = thresholds;
+		this.bins = bins;
+	}
+	public void setParameters(Parameters params)
+	{
+		this.params = params;
+	}
+	public Parameters getParameters()
+	{
+		return params;
+	}
 	public void learn()
 	{
 		ensemble = new Ensemble();
+		compiled = null;
+		quickScorer = null;
+		generated = null;
 		
 		PRINTLN("---------------------------------");
 		PRINTLN("Training starts...");
@@ -182,8 +247,12 @@ public class LambdaMART extends Ranker {
 		PRINTLN(new int[]{7, 9, 9}, new String[]{"#iter", scorer.name()+"-T", scorer.name()+"-V"});
 		PRINTLN("---------------------------------");		
 		
+		//with query sampling, the training score of a query is only updated when its model scores are (see computeModelScoreOnTraining)
+		if(inRound != null)
+			computeModelScoreOnTraining();
+		
 		//Start the gradient boosting process
-		for(int m=0; m<nTrees; m++)
+		for(int m=0; m<params.nTrees; m++)
 		{
 			PRINT(new int[]{7}, new String[]{(m+1)+""});
 			
@@ -191,17 +260,23 @@ public class LambdaMART extends Ranker {
 			//Create training instances for MART:
 			//  - Each document is a training sample
 			//	- The lambda for this document serves as its training label
+			//Stochastic boosting: only use a random subset of the queries in this round
+			int[] rows = (params.querySamplingRate < 1) ? sampleQueries() : null;
 			computePseudoResponses();
 			
+			//GOSS: only keep the samples with the largest lambdas, plus a (re-weighted) random part of the others
+			sampleWeights = null;
+			treeSamples = (params.gossTopRate < 1) ? sampleByGradient(rows) : rows;
+			
 			//update the histogram with these training labels (the feature histogram will be used to find the best tree split)
-			hist.update(pseudoResponses);
+			hist.update(pseudoResponses, treeSamples, sampleWeights);
 		
 			//Fit a regression tree			
-			RegressionTree rt = new RegressionTree(nTreeLeaves, martSamples, pseudoResponses, hist, minLeafSupport);
+			RegressionTree rt = new RegressionTree(params.nTreeLeaves, params.maxDepth, martSamples, pseudoResponses, treeSamples, hist, params.minLeafSupport);
 			rt.fit();
 			
 			//Add this tree to the ensemble (our model)
-			ensemble.add(rt, learningRate);
+			ensemble.add(rt, params.learningRate);
 
 			//update the outputs of the tree (with gamma computed using the Newton-Raphson method) 
 			updateTreeOutput(rt);
@@ -213,17 +288,26 @@ public class LambdaMART extends Ranker {
 				Split s = leaves.get(i);
 				int[] idx = s.getSamples();
 				for(int j=0;j<idx.length;j++)
-					modelScores[idx[j]] += learningRate * s.getOutput();
+					modelScores[idx[j]] += params.learningRate * s.getOutput();
+			}
+			//samples the tree was not fitted on are not in any leaf: run them through the tree (except for the queries left out of this 
+			//round, which are brought up to date later on)
+			if(treeSamples != null)
+				updateModelScores(rt, treeSamples);
+			if(inRound != null)
+			{
+				for(int i=0;i<inRound.length;i++)
+					if(inRound[i])
+						treesInScore[i] = ensemble.treeCount();
+				if(params.queryRefreshRate > 0 && (m+1) % params.queryRefreshRate == 0)
+					refreshModelScores(null);
 			}
 
 			//clear references to data that is no longer used
 			rt.clearSamples();
-			
-			//beg the garbage collector to work...
-			if(m % gcCycle == 0)
-				System.gc();//this call is expensive. We shouldn't do it too often.
 
 			//Evaluate the current model
+			nIterations++;
 			scoreOnTrainingData = computeModelScoreOnTraining();
 			//**** NOTE ****
 			//The above function to evaluate the current model on the training data is equivalent to a single call:
@@ -241,7 +325,7 @@ public class LambdaMART extends Ranker {
 				//Update the model's scores on all validation samples
 				for(int i=0;i<modelScoresOnValidation.length;i++)
 					for(int j=0;j<modelScoresOnValidation[i].length;j++)
-						modelScoresOnValidation[i][j] += learningRate * rt.eval(validationSamples.get(i).get(j));
+						modelScoresOnValidation[i][j] += params.learningRate * rt.eval(validationSamples.get(i).get(j));
 				
 				//again, equivalent to scoreOnValidation=scorer.score(rank(validationSamples)), but more efficient since we use the cached models' outputs
 				double score = computeModelScoreOnValidation();
@@ -257,13 +341,14 @@ public class LambdaMART extends Ranker {
 			PRINTLN("");
 			
 			//Should we stop early?
-			if(m - bestModelOnValidation > nRoundToStopEarly)
+			if(m - bestModelOnValidation > params.nRoundToStopEarly)
 				break;
 		}
 		
 		//Rollback to the best model observed on the validation data
 		while(ensemble.treeCount() > bestModelOnValidation+1)
 			ensemble.remove(ensemble.treeCount()-1);
+		compile();
 		
 		//Finishing up
 		scoreOnTrainingData = scorer.score(rank(samples, false));
@@ -275,12 +360,43 @@ public class LambdaMART extends Ranker {
 			bestScoreOnValidationData = scorer.score(rank(validationSamples, false));
 			PRINTLN(scorer.name() + " on validation data: " + SimpleMath.round(bestScoreOnValidationData, 4));
 		}
+		printEvaluationTime("training", samples, evalTimeOnTraining);
+		if(validationSamples != null)
+			printEvaluationTime("validation", validationSamples, evalTimeOnValidation);
 		PRINTLN("---------------------------------");
 	}
 	public double eval(DataPoint dp)
 	{
+		if(generated != null)
+			return generated.eval(dp);
+		if(quickScorer != null)
+			return quickScorer.eval(dp);
+		if(compiled != null)
+			return compiled.eval(dp);
 		return ensemble.eval(dp);
 	}	
+	public double[] eval(RankList rl)
+	{
+		if(quickScorer != null && generated == null)
+			return quickScorer.eval(rl);
+		return super.eval(rl);
+	}
+	/**
+	 * Build the scoring form of the final ensemble.
+	 */
+	protected void compile()
+	{
+		compiled = new FlatEnsemble(ensemble);
+		if(useQuickScorer)
+			quickScorer = new QuickScorer(ensemble);
+	}
+	/**
+	 * Score with the ensemble compiled into bytecode (see CompiledEnsemble) from now on.
+	 */
+	public void compileToBytecode()
+	{
+		generated = new CompiledEnsemble(ensemble);
+	}
 	public Ranker createNew()
 	{
 		return new LambdaMART();
@@ -291,22 +407,55 @@ public class LambdaMART extends Ranker {
 	}
 	public String model()
 	{
+		StringWriter out = new StringWriter();
+		try {
+			writeModel(out);
+		}
+		catch(IOException ex)
+		{
+			throw RankLibError.create("Error in LambdaMART::model(): ", ex);
+		}
+		return out.toString();
+	}
+	protected String header()
+	{
+		if(header != null)
+			return header;
 		String output = "## " + name() + "\n";
-		output += "## No. of trees = " + nTrees + "\n";
-		output += "## No. of leaves = " + nTreeLeaves + "\n";
-		output += "## No. of threshold candidates = " + nThreshold + "\n";
-		output += "## Learning rate = " + learningRate + "\n";
-		output += "## Stop early = " + nRoundToStopEarly + "\n";
-		output += "\n";
-		output += toString();
+		output += "## No. of trees = " + params.nTrees + "\n";
+		output += "## No. of leaves = " + params.nTreeLeaves + "\n";
+		output += "## No. of threshold candidates = " + params.nThreshold + "\n";
+		output += "## Learning rate = " + params.learningRate + "\n";
+		output += "## Stop early = " + params.nRoundToStopEarly + "\n";
 		return output;
 	}
+	public void writeModel(Writer out) throws IOException
+	{
+		out.write(header());
+		out.write("\n");
+		ensemble.write(out);
+	}
+	protected void saveBinary(String modelFile)
+	{
+		new BinaryModel(header(), new Ensemble[]{ensemble}).write(modelFile);
+	}
+	/**
+	 * Use @ensemble as the model, e.g. when it has been read from a binary model file.
+	 */
+	public void setEnsemble(String header, Ensemble ensemble)
+	{
+		this.header = header;
+		this.ensemble = ensemble;
+		compile();
+		features = ensemble.getFeatures();
+	}
   @Override
 	public void loadFromString(String fullText)
 	{
 		try {
 			String content = "";
 			StringBuffer model = new StringBuffer();
+			StringBuffer header = new StringBuffer();
 			BufferedReader in = new BufferedReader(new StringReader(fullText));
 			while((content = in.readLine()) != null)
 			{
@@ -314,14 +463,16 @@ public class LambdaMART extends Ranker {
 				if(content.length() == 0)
 					continue;
 				if(content.indexOf("##")==0)
+				{
+					header.append(content).append("\n");
 					continue;
+				}
 				//actual model component
 				model.append(content);
 			}
 			in.close();
 			//load the ensemble
-			ensemble = new Ensemble(model.toString());
-			features = ensemble.getFeatures();
+			setEnsemble(header.toString(), new Ensemble(model.toString()));
 		}
 		catch(Exception ex)
 		{
@@ -330,12 +481,18 @@ public class LambdaMART extends Ranker {
 	}
 	public void printParameters()
 	{
-		PRINTLN("No. of trees: " + nTrees);
-		PRINTLN("No. of leaves: " + nTreeLeaves);
-		PRINTLN("No. of threshold candidates: " + nThreshold);
-		PRINTLN("Min leaf support: " + minLeafSupport);
-		PRINTLN("Learning rate: " + learningRate);
-		PRINTLN("Stop early: " + nRoundToStopEarly + " rounds without performance gain on validation data");		
+		PRINTLN("No. of trees: " + params.nTrees);
+		PRINTLN("No. of leaves: " + params.nTreeLeaves);
+		PRINTLN("No. of threshold candidates: " + params.nThreshold);
+		PRINTLN("Min leaf support: " + params.minLeafSupport);
+		if(params.maxDepth > 0)
+			PRINTLN("Max depth: " + params.maxDepth);
+		PRINTLN("Learning rate: " + params.learningRate);
+		PRINTLN("Stop early: " + params.nRoundToStopEarly + " rounds without performance gain on validation data");		
+		if(params.gossTopRate < 1)
+			PRINTLN("GOSS: top " + params.gossTopRate + ", others " + params.gossOtherRate);
+		if(params.querySamplingRate < 1)
+			PRINTLN("Query sampling: " + params.querySamplingRate + " (refresh every " + params.queryRefreshRate + " rounds)");
 	}	
 	public String name()
 	{
@@ -346,6 +503,194 @@ public class LambdaMART extends Ranker {
 		return ensemble;
 	}
 	
+	/**
+	 * Stochastic boosting: draw querySamplingRate of the training queries at random (into @inRound), and bring the model's outputs 
+	 * on these queries up to date.
+	 * @return The samples of the drawn queries, in ascending order.
+	 */
+	protected int[] sampleQueries()
+	{
+		int nq = samples.size();
+		int n = Math.max(1, (int)(params.querySamplingRate * nq));
+		int[] q = new int[nq];
+		for(int i=0;i<nq;i++)
+			q[i] = i;
+		for(int i=0;i<n;i++)
+		{
+			int j = i + random.nextInt(nq - i);
+			int tmp = q[i];
+			q[i] = q[j];
+			q[j] = tmp;
+		}
+		Arrays.fill(inRound, false);
+		Arrays.fill(roundCost, 0);
+		int nRows = 0;
+		for(int i=0;i<n;i++)
+		{
+			inRound[q[i]] = true;
+			roundCost[q[i]] = queryCost[q[i]];
+			nRows += samples.get(q[i]).size();
+		}
+		refreshModelScores(inRound);
+		
+		int[] rows = new int[nRows];
+		int r = 0;
+		for(int i=0;i<nq;i++)
+			if(inRound[i])
+				for(int j=0;j<samples.get(i).size();j++)
+					rows[r++] = queryStart[i] + j;
+		return rows;
+	}
+	/**
+	 * Add the outputs of the trees that @modelScores is missing (see @treesInScore) for the given queries.
+	 * @param queries The queries to refresh, null for all of them.
+	 */
+	protected void refreshModelScores(boolean[] queries)
+	{
+		long[] cost = new long[samples.size()];
+		long total = 0;
+		for(int i=0;i<samples.size();i++)
+		{
+			if(queries == null || queries[i])
+				cost[i] = (long)samples.get(i).size() * (ensemble.treeCount() - treesInScore[i]);
+			total += cost[i];
+		}
+		if(total == 0)
+			return;
+		MyThreadPool p = MyThreadPool.getInstance();
+		if(p.size() == 1)
+			refreshModelScores(0, samples.size()-1, queries);
+		else
+			p.execute(new Worker(this, 5, queries), cost);
+	}
+	protected void refreshModelScores(int start, int end, boolean[] queries)
+	{
+		for(int i=start;i<=end;i++)
+		{
+			if(queries != null && !queries[i])
+				continue;
+			RankList rl = samples.get(i);
+			for(int t=treesInScore[i];t<ensemble.treeCount();t++)
+			{
+				RegressionTree rt = ensemble.getTree(t);
+				for(int j=0;j<rl.size();j++)
+					modelScores[queryStart[i]+j] += params.learningRate * rt.eval(martSamples[queryStart[i]+j]);
+			}
+			treesInScore[i] = ensemble.treeCount();
+		}
+	}
+	/**
+	 * GOSS: keep the gossTopRate samples with the largest |lambda|, and draw gossOtherRate (of all samples) at random from the others. 
+	 * The lambdas (and weights) of the latter are scaled up by (1-gossTopRate)/gossOtherRate to make up for the samples left out.
+	 * @param candidates The samples to select from, in ascending order (null for all samples).
+	 * @return The selected samples in ascending order, or @candidates if all of them are selected.
+	 */
+	protected int[] sampleByGradient(int[] candidates)
+	{
+		int n = (candidates == null) ? martSamples.length : candidates.length;
+		int nTop = (int)(params.gossTopRate * n);
+		int nOther = Math.min((int)(params.gossOtherRate * n), n - nTop);
+		if(nTop + nOther >= n)
+			return candidates;
+		
+		if(gossGradients == null)
+		{
+			gossGradients = new double[martSamples.length];
+			gossOrder = new int[martSamples.length];
+		}
+		double[] g = gossGradients;
+		int[] idx = gossOrder;
+		for(int i=0;i<n;i++)
+		{
+			int k = (candidates == null) ? i : candidates[i];
+			idx[i] = k;
+			g[k] = Math.abs(pseudoResponses[k]);
+		}
+		//the nTop largest |lambda| first (no need to sort them all)
+		selectLargest(idx, g, n, nTop);
+		//draw the others without replacement (partial shuffle of idx[nTop..n-1])
+		for(int i=nTop;i<nTop+nOther;i++)
+		{
+			int j = i + random.nextInt(n - i);
+			int tmp = idx[i];
+			idx[i] = idx[j];
+			idx[j] = tmp;
+		}
+		
+		if(gossWeights == null)
+			gossWeights = new double[martSamples.length];
+		sampleWeights = gossWeights;
+		for(int i=0;i<nTop;i++)
+			sampleWeights[idx[i]] = 1;
+		double amplify = (double)(n - nTop) / nOther;
+		for(int i=nTop;i<nTop+nOther;i++)
+		{
+			int k = idx[i];
+			sampleWeights[k] = amplify;
+			pseudoResponses[k] *= amplify;
+			weights[k] *= amplify;
+		}
+		
+		int[] selected = Arrays.copyOf(idx, nTop + nOther);
+		Arrays.sort(selected);
+		return selected;
+	}
+	/**
+	 * Reorder idx[0..n-1] so that its first @k entries are those with the largest key[idx[i]], in no particular order (quickselect).
+	 */
+	protected static void selectLargest(int[] idx, double[] key, int n, int k)
+	{
+		if(k <= 0 || k >= n)
+			return;
+		int lo = 0;
+		int hi = n - 1;
+		int target = k - 1;
+		while(lo < hi)
+		{
+			double pivot = key[idx[(lo + hi) >>> 1]];
+			int i = lo;
+			int j = hi;
+			while(i <= j)
+			{
+				while(key[idx[i]] > pivot)
+					i++;
+				while(key[idx[j]] < pivot)
+					j--;
+				if(i <= j)
+				{
+					int tmp = idx[i];
+					idx[i++] = idx[j];
+					idx[j--] = tmp;
+				}
+			}
+			//now key >= pivot in [lo..j], key == pivot in (j..i), key <= pivot in [i..hi]
+			if(target <= j)
+				hi = j;
+			else if(target >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+	/**
+	 * Update the model's outputs on the training samples that are NOT in @fitted (sorted in ascending order).
+	 */
+	protected void updateModelScores(RegressionTree rt, int[] fitted)
+	{
+		int i = 0;
+		for(int q=0;q<samples.size();q++)
+		{
+			if(inRound != null && !inRound[q])//none of its samples are in @fitted
+				continue;
+			for(int k=queryStart[q];k<queryStart[q]+samples.get(q).size();k++)
+			{
+				if(i < fitted.length && fitted[i] == k)
+					i++;
+				else
+					modelScores[k] += params.learningRate * rt.eval(martSamples[k]);
+			}
+		}
+	}
 	protected void computePseudoResponses()
 	{
 		Arrays.fill(pseudoResponses, 0F);
@@ -355,51 +700,42 @@ public class LambdaMART extends Ranker {
 			computePseudoResponses(0, samples.size()-1, 0);
 		else //multi-threading
 		{
-			List<LambdaComputationWorker> workers = new ArrayList<LambdaMART.LambdaComputationWorker>();
-			//divide the entire dataset into chunks of equal size for each worker thread
-			int[] partition = p.partition(samples.size());
-			int current = 0;
-			for(int i=0;i<partition.length-1;i++)
-			{
-				//execute the worker
-				LambdaComputationWorker wk = new LambdaComputationWorker(this, partition[i], partition[i+1]-1, current); 
-				workers.add(wk);//keep it so we can get back results from it later on
-				p.execute(wk);
-				
-				if(i < partition.length-2)
-					for(int j=partition[i]; j<=partition[i+1]-1;j++)
-						current += samples.get(j).size();
-			}
-			
-			//wait for all workers to complete before we move on to the next stage
-			p.await();
+			//query lists vary a lot in length (and the cost grows with the number of pairs): divide the dataset into chunks of equal 
+			//cost rather than equal size, so that no thread is left alone with all the long lists
+			p.execute(new LambdaComputationWorker(this), (inRound == null) ? queryCost : roundCost);
 		}
 	}
 	protected void computePseudoResponses(int start, int end, int current)
 	{
 		int cutoff = scorer.getK();
+		LambdaBuffers buf = lambdaBuffers.get();
+		SwapChanges changes = buf.changes;
 		//compute the lambda for each document (a.k.a "pseudo response")
 		for(int i=start;i<=end;i++)
 		{
-			RankList orig = samples.get(i);			
-			int[] idx = MergeSorter.sort(modelScores, current, current+orig.size()-1, false);
-			RankList rl = new RankList(orig, idx, current);
-			double[][] changes = scorer.swapChange(rl);
+			RankList orig = samples.get(i);
+			if(inRound != null && !inRound[i])//not used in this round
+			{
+				current += orig.size();
+				continue;
+			}
+			int[] idx = buf.sort(modelScores, current, current+orig.size()-1);
+			scorer.swapChange(orig, idx, current, changes);
 			//NOTE: j, k are indices in the sorted (by modelScore) list, not the original
 			// ==> need to map back with idx[j] and idx[k] 
-			for(int j=0;j<rl.size();j++)
+			for(int j=0;j<orig.size();j++)
 			{
-				DataPoint p1 = rl.get(j);
 				int mj = idx[j];
-				for(int k=0;k<rl.size();k++)
+				DataPoint p1 = martSamples[mj];
+				for(int k=0;k<orig.size();k++)
 				{
 					if(j > cutoff && k > cutoff)//swaping these pair won't result in any change in target measures since they're below the cut-off point
 						break;
-					DataPoint p2 = rl.get(k);
 					int mk = idx[k];
+					DataPoint p2 = martSamples[mk];
 					if(p1.getLabel() > p2.getLabel())
 					{
-						double deltaNDCG = Math.abs(changes[j][k]);
+						double deltaNDCG = Math.abs(changes.get(j, k));
 						if(deltaNDCG > 0)
 						{
 							double rho = 1.0 / (1 + Math.exp(modelScores[mj] - modelScores[mk]));
@@ -437,14 +773,6 @@ public class LambdaMART extends Ranker {
 				s.setOutput(s1/s2);
 		}
 	}
-	protected int[] sortSamplesByFeature(DataPoint[] samples, int fid)
-	{
-		double[] score = new double[samples.length];
-		for(int i=0;i<samples.length;i++)
-			score[i] = samples[i].getFeatureValue(fid);
-		int[] idx = MergeSorter.sort(score, true); 
-		return idx;
-	}
 	/**
 	 * This function is equivalent to the inherited function rank(...), but it uses the cached model's outputs instead of computing them from scratch.
 	 * @param rankListIndex
@@ -462,96 +790,116 @@ public class LambdaMART extends Ranker {
 	}
 	protected float computeModelScoreOnTraining() 
 	{
-		/*float s = 0;
-		int current = 0;	
 		MyThreadPool p = MyThreadPool.getInstance();
 		if(p.size() == 1)//single-thread
-			s = computeModelScoreOnTraining(0, samples.size()-1, current);
+			computeModelScoreOnTraining(0, samples.size()-1, scorer);
 		else
-		{
-			List<Worker> workers = new ArrayList<Worker>();
-			//divide the entire dataset into chunks of equal size for each worker thread
-			int[] partition = p.partition(samples.size());
-			for(int i=0;i<partition.length-1;i++)
-			{
-				//execute the worker
-				Worker wk = new Worker(this, partition[i], partition[i+1]-1, current);
-				workers.add(wk);//keep it so we can get back results from it later on
-				p.execute(wk);
-				
-				if(i < partition.length-2)
-					for(int j=partition[i]; j<=partition[i+1]-1;j++)
-						current += samples.get(j).size();
-			}		
-			//wait for all workers to complete before we move on to the next stage
-			p.await();
-			for(int i=0;i<workers.size();i++)
-				s += workers.get(i).score;
-		}*/
-		float s = computeModelScoreOnTraining(0, samples.size()-1, 0);
+			p.execute(new Worker(this, 4), queryCost);
+		float s = 0;
+		for(int i=0;i<samples.size();i++)
+			s += scoresOnTraining[i];
 		s = s / samples.size();
 		return s;
 	}
-	protected float computeModelScoreOnTraining(int start, int end, int current) 
+	protected void computeModelScoreOnTraining(int start, int end, MetricScorer scorer) 
 	{
-		float s = 0;
-		int c = current;
 		for(int i=start;i<=end;i++)
 		{
-			s += scorer.score(rank(i, c));
-			c += samples.get(i).size();
+			//queries whose model scores are not up to date keep the score they had when they last were
+			if(treesInScore != null && treesInScore[i] < ensemble.treeCount())
+				continue;
+			long t = System.nanoTime();
+			scoresOnTraining[i] = scorer.score(rank(i, queryStart[i]));
+			evalTimeOnTraining[i] += System.nanoTime() - t;
 		}
-		return s;
 	}
 	protected float computeModelScoreOnValidation() 
 	{
-		/*float score = 0;
 		MyThreadPool p = MyThreadPool.getInstance();
 		if(p.size() == 1)//single-thread
-			score = computeModelScoreOnValidation(0, validationSamples.size()-1);
+			computeModelScoreOnValidation(0, validationSamples.size()-1, scorer);
 		else
-		{
-			List<Worker> workers = new ArrayList<Worker>();
-			//divide the entire dataset into chunks of equal size for each worker thread
-			int[] partition = p.partition(validationSamples.size());
-			for(int i=0;i<partition.length-1;i++)
-			{
-				//execute the worker
-				Worker wk = new Worker(this, partition[i], partition[i+1]-1);
-				workers.add(wk);//keep it so we can get back results from it later on
-				p.execute(wk);
-			}		
-			//wait for all workers to complete before we move on to the next stage
-			p.await();
-			for(int i=0;i<workers.size();i++)
-				score += workers.get(i).score;
-		}*/
-		float score = computeModelScoreOnValidation(0, validationSamples.size()-1);
+			p.execute(new Worker(this, 3), validationCost);
+		float score = 0;
+		for(int i=0;i<validationSamples.size();i++)
+			score += scoresOnValidation[i];
 		return score/validationSamples.size();
 	}
-	protected float computeModelScoreOnValidation(int start, int end) 
+	protected void computeModelScoreOnValidation(int start, int end, MetricScorer scorer) 
 	{
-		float score = 0;
 		for(int i=start;i<=end;i++)
 		{
+			long t = System.nanoTime();
 			int[] idx = MergeSorter.sort(modelScoresOnValidation[i], false);
-			score += scorer.score(new RankList(validationSamples.get(i), idx));
+			scoresOnValidation[i] = scorer.score(new RankList(validationSamples.get(i), idx));
+			evalTimeOnValidation[i] += System.nanoTime() - t;
 		}
-		return score;
+	}
+	protected void printEvaluationTime(String name, List<RankList> samples, long[] evalTime)
+	{
+		if(nIterations == 0)
+			return;
+		long total = 0;
+		int slowest = 0;
+		for(int i=0;i<evalTime.length;i++)
+		{
+			total += evalTime[i];
+			if(evalTime[i] > evalTime[slowest])
+				slowest = i;
+		}
+		double avg = total / 1e6 / nIterations / evalTime.length;
+		double max = evalTime[slowest] / 1e6 / nIterations;
+		PRINTLN("Evaluation time on " + name + " data: " + SimpleMath.round(avg, 4) + " ms/query (slowest: qid=" + samples.get(slowest).getID() + 
+				", " + samples.get(slowest).size() + " docs, " + SimpleMath.round(max, 4) + " ms)");
 	}
 	
-	protected void sortSamplesByFeature(int fStart, int fEnd)
+	/**
+	 * Compute the candidate thresholds of the features in [fStart, fEnd], in a single pass over the samples for each feature. If a 
+	 * feature has at most nThreshold unique values (or if nThreshold == -1), all of them are candidates. Otherwise, the candidates are 
+	 * nThreshold quantiles of its values (estimated with a quantile sketch), so that each bin holds about as many samples. 
+	 */
+	protected void computeThresholds(int fStart, int fEnd)
 	{
-		for(int i=fStart;i<=fEnd; i++)
-			sortedIdx[i] = sortSamplesByFeature(martSamples, features[i]);
+		for(int f=fStart;f<=fEnd;f++)
+		{
+			QuantileSketch sketch = new QuantileSketch(Math.max(1024, 8 * params.nThreshold), params.nThreshold);
+			for(int i=0;i<martSamples.length;i++)
+				sketch.add(martSamples[i].getFeatureValue(features[f]));
+			
+			float[] values = sketch.distinctValues();
+			if(values == null)
+				values = sketch.quantiles(params.nThreshold);
+			thresholds[f] = Arrays.copyOf(values, values.length+1);
+			thresholds[f][values.length] = Float.MAX_VALUE;
+		}
 	}
 
+	//Per-thread buffers of the lambda computation, reused across queries and iterations
+	static class LambdaBuffers {
+		int[] idx = new int[0];
+		int[] tmp = new int[0];
+		int[] ph = new int[0];
+		SwapChanges changes = new SwapChanges();
+		int[] sort(double[] scores, int begin, int end)
+		{
+			int len = end - begin + 1;
+			if(idx.length < len)
+			{
+				idx = new int[len];
+				tmp = new int[len];
+				ph = new int[len/2+3];
+			}
+			MergeSorter.sort(scores, begin, end, false, idx, tmp, ph);
+			return idx;
+		}
+	}
+	
 	//For multi-threading processing
-	class SortWorker implements Runnable {
+	class ThresholdWorker implements Runnable {
 		LambdaMART ranker = null;
 		int start = -1;
 		int end = -1;
-		SortWorker(LambdaMART ranker, int start, int end)
+		ThresholdWorker(LambdaMART ranker, int start, int end)
 		{
 			this.ranker = ranker;
 			this.start = start;
@@ -559,57 +907,53 @@ public class LambdaMART extends Ranker {
 		}		
 		public void run()
 		{
-			ranker.sortSamplesByFeature(start, end);
+			ranker.computeThresholds(start, end);
 		}
 	}
-	class LambdaComputationWorker implements Runnable {
+	class LambdaComputationWorker extends WorkerThread {
 		LambdaMART ranker = null;
-		int rlStart = -1;
-		int rlEnd = -1;
-		int martStart = -1;
-		LambdaComputationWorker(LambdaMART ranker, int rlStart, int rlEnd, int martStart)
+		LambdaComputationWorker(LambdaMART ranker)
 		{
 			this.ranker = ranker;
-			this.rlStart = rlStart;
-			this.rlEnd = rlEnd;
-			this.martStart = martStart;
 		}		
 		public void run()
 		{
-			ranker.computePseudoResponses(rlStart, rlEnd, martStart);
+			ranker.computePseudoResponses(start, end, ranker.queryStart[start]);
+		}
+		public WorkerThread clone()
+		{
+			return new LambdaComputationWorker(ranker);
 		}
 	}
-	class Worker implements Runnable {
+	class Worker extends WorkerThread {
 		LambdaMART ranker = null;
-		int rlStart = -1;
-		int rlEnd = -1;
-		int martStart = -1;
 		int type = -1;
+		MetricScorer scorer = null;//each worker has its own copy
+		boolean[] queries = null;
 		
-		//compute score on validation
-		float score = 0;
-		
-		Worker(LambdaMART ranker, int rlStart, int rlEnd)
+		Worker(LambdaMART ranker, int type)
 		{
-			type = 3;
 			this.ranker = ranker;
-			this.rlStart = rlStart;
-			this.rlEnd = rlEnd;
+			this.type = type;
+			this.scorer = ranker.scorer.copyShared();
 		}
-		Worker(LambdaMART ranker, int rlStart, int rlEnd, int martStart)
+		Worker(LambdaMART ranker, int type, boolean[] queries)
 		{
-			type = 4;
-			this.ranker = ranker;
-			this.rlStart = rlStart;
-			this.rlEnd = rlEnd;
-			this.martStart = martStart;
+			this(ranker, type);
+			this.queries = queries;
 		}
 		public void run()
 		{
 			if(type == 4)
-				score = ranker.computeModelScoreOnTraining(rlStart, rlEnd, martStart);
+				ranker.computeModelScoreOnTraining(start, end, scorer);
 			else if(type == 3)
-				score = ranker.computeModelScoreOnValidation(rlStart, rlEnd);
+				ranker.computeModelScoreOnValidation(start, end, scorer);
+			else if(type == 5)
+				ranker.refreshModelScores(start, end, queries);
+		}
+		public WorkerThread clone()
+		{
+			return new Worker(ranker, type, queries);
 		}
 	}
 }
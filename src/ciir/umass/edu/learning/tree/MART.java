@@ -59,7 +59,16 @@ public class MART extends LambdaMART {
 				int k = idx[j];
 				s1 += pseudoResponses[k];
 			}
-			s.setOutput(s1/idx.length);
+			if(sampleWeights == null)
+				s.setOutput(s1/idx.length);
+			else
+			{
+				//GOSS: weighted mean, since some of the responses have been scaled up
+				double w = 0.0;
+				for(int j=0;j<idx.length;j++)
+					w += sampleWeights[idx[j]];
+				s.setOutput((float)(s1/w));
+			}
 		}
 	}
 }
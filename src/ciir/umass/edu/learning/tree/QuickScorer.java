@@ -0,0 +1,377 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.learning.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import ciir.umass.edu.features.FeatureManager;
+import ciir.umass.edu.learning.DataPoint;
+import ciir.umass.edu.learning.RankList;
+import ciir.umass.edu.learning.Ranker;
+import ciir.umass.edu.learning.RankerFactory;
+import ciir.umass.edu.utilities.RankLibError;
+
+/**
+ * QuickScorer-style evaluation of an {@link Ensemble} (Lucchese et al., SIGIR 2015). Instead of walking each tree from its root,
+ * the internal nodes of all trees are grouped by feature and sorted by threshold. For each feature, the nodes whose test fails
+ * (value > threshold) are exactly a prefix of that list; each of them rules out the leaves of its left subtree, which is done by
+ * AND-ing a bit mask into the bit vector of the candidate leaves of its tree. Once all features are processed, the exit leaf of
+ * each tree is its leftmost remaining leaf.
+ *
+ * eval(rl) scores the objects of a list by blocks of @blockSize, so that the nodes of a feature are scanned once per block. Trees
+ * are also processed by blocks, small enough for the bit vectors of a block of objects to stay in the L1 cache.
+ * Scores are exactly those of Ensemble.eval().
+ */
+public class QuickScorer {
+
+	public static int blockSize = 16;//number of objects scored together by eval(rl)
+	public static int vectorBudget = 2048;//max. number of longs in the bit vectors of a block of objects (over a block of trees)
+	public static boolean checkAgainstTrees = false;//compare every score to the one computed by walking the trees (slow)
+
+	private Ensemble ensemble = null;
+	private int nTrees = 0;
+	private int words = 1;//length of the leaf bit vector of a tree (in longs)
+	private long[] initial = null;//all leaves of all trees
+	private int[] leafOffset = null;//first leaf of each tree in @leafValue
+	private double[] leafValue = null;//leaf outputs (left to right), multiplied by the weight of their tree
+	private int[] fids = null;//features used by the ensemble
+
+	//trees blockTree[b]..blockTree[b+1]-1 form the b-th block. Its nodes are grouped by feature: entries blockEntry[b]..blockEntry[b+1]-1,
+	//the e-th one being the nodes entryNode[e]..entryNode[e+1]-1 on fids[entryFeature[e]], sorted by threshold.
+	private int[] blockTree = null;
+	private int maxTrees = 0;//number of trees of the largest block
+	private int[] blockEntry = null;
+	private int[] entryFeature = null;
+	private int[] entryNode = null;
+	private float[] nodeThreshold = null;
+	private int[] nodeTree = null;//relative to the first tree of the block
+	private long[] nodeMask = null;//@words longs per node: the leaves of the tree, minus those of the left subtree of the node
+	
+	private ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+	public QuickScorer(Ensemble e)
+	{
+		ensemble = e;
+		nTrees = e.treeCount();
+		int nNodes = 0;
+		int nLeaves = 0;
+		leafOffset = new int[nTrees];
+		for(int t=0;t<nTrees;t++)
+		{
+			int n = e.getTree(t).leaves().size();
+			leafOffset[t] = nLeaves;
+			nLeaves += n;
+			nNodes += n - 1;
+			words = Math.max(words, (n + 63) / 64);
+		}
+		leafValue = new double[nLeaves];
+		initial = new long[nTrees * words];
+
+		//collect the nodes (in tree order)
+		int[] fid = new int[nNodes];
+		float[] threshold = new float[nNodes];
+		int[] tree = new int[nNodes];
+		long[] mask = new long[nNodes * words];
+		int[] counter = new int[2];//nodes and leaves added so far
+		for(int t=0;t<nTrees;t++)
+		{
+			counter[1] = 0;
+			add(e.getTree(t).root, t, e.getWeight(t), counter, fid, threshold, tree, mask);
+			for(int l=0;l<counter[1];l++)
+				initial[t * words + l / 64] |= 1L << l;
+		}
+
+		//blocks of trees
+		final int treesPerBlock = Math.max(1, vectorBudget / (words * Math.max(1, blockSize)));
+		int nBlocks = (nTrees + treesPerBlock - 1) / treesPerBlock;
+		blockTree = new int[nBlocks+1];
+		for(int b=0;b<=nBlocks;b++)
+			blockTree[b] = Math.min(nTrees, b * treesPerBlock);
+		for(int b=0;b<nBlocks;b++)
+			maxTrees = Math.max(maxTrees, blockTree[b+1] - blockTree[b]);
+
+		//sort the nodes by block, then by feature, then by threshold (ties keep the tree order)
+		final int[] fidOf = fid;
+		final float[] thresholdOf = threshold;
+		final int[] treeOf = tree;
+		Integer[] idx = new Integer[nNodes];
+		for(int n=0;n<nNodes;n++)
+			idx[n] = n;
+		Arrays.sort(idx, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b)
+			{
+				if(treeOf[a] / treesPerBlock != treeOf[b] / treesPerBlock)
+					return Integer.compare(treeOf[a] / treesPerBlock, treeOf[b] / treesPerBlock);
+				if(fidOf[a] != fidOf[b])
+					return Integer.compare(fidOf[a], fidOf[b]);
+				return Float.compare(thresholdOf[a], thresholdOf[b]);
+			}
+		});
+
+		//used features
+		int[] sortedFids = Arrays.copyOf(fid, nNodes);
+		Arrays.sort(sortedFids);
+		int nf = 0;
+		for(int n=0;n<nNodes;n++)
+			if(nf == 0 || sortedFids[n] != sortedFids[nf-1])
+				sortedFids[nf++] = sortedFids[n];
+		fids = Arrays.copyOf(sortedFids, nf);
+
+		nodeThreshold = new float[nNodes];
+		nodeTree = new int[nNodes];
+		nodeMask = new long[nNodes * words];
+		blockEntry = new int[nBlocks+1];
+		List<Integer> features = new ArrayList<Integer>();
+		List<Integer> starts = new ArrayList<Integer>();
+		int b = 0;
+		for(int i=0;i<nNodes;i++)
+		{
+			int n = idx[i];
+			int nb = tree[n] / treesPerBlock;
+			if(i == 0 || nb != b || fid[n] != fid[idx[i-1]])
+			{
+				while(b < nb)
+					blockEntry[++b] = features.size();
+				features.add(Arrays.binarySearch(fids, fid[n]));
+				starts.add(i);
+			}
+			nodeThreshold[i] = threshold[n];
+			nodeTree[i] = tree[n] - blockTree[nb];
+			System.arraycopy(mask, n * words, nodeMask, i * words, words);
+		}
+		while(b < nBlocks)
+			blockEntry[++b] = features.size();
+		entryFeature = new int[features.size()];
+		entryNode = new int[features.size() + 1];
+		for(int i=0;i<entryFeature.length;i++)
+		{
+			entryFeature[i] = features.get(i);
+			entryNode[i] = starts.get(i);
+		}
+		entryNode[entryFeature.length] = nNodes;
+	}
+	/**
+	 * Add the nodes and leaves of the subtree rooted at @s (the t-th tree). @counter holds the number of nodes (of all trees) and
+	 * of leaves (of this tree) added so far.
+	 */
+	private void add(Split s, int t, float weight, int[] counter, int[] fid, float[] threshold, int[] tree, long[] mask)
+	{
+		if(s.getFeatureID() == -1)
+		{
+			leafValue[leafOffset[t] + counter[1]] = s.getOutput() * weight;
+			counter[1]++;
+			return;
+		}
+		int n = counter[0]++;
+		fid[n] = s.getFeatureID();
+		threshold[n] = s.getThreshold();
+		tree[n] = t;
+		int first = counter[1];
+		add(s.getLeft(), t, weight, counter, fid, threshold, tree, mask);
+		int last = counter[1];
+		for(int l=0;l<words * 64;l++)
+			if(l < first || l >= last)
+				mask[n * words + l / 64] |= 1L << l;
+		add(s.getRight(), t, weight, counter, fid, threshold, tree, mask);
+	}
+
+	public float eval(DataPoint dp)
+	{
+		Buffers buf = buffers.get();
+		buf.reserve(1, fids.length, maxTrees * words);
+		for(int i=0;i<fids.length;i++)
+			buf.x[0][i] = dp.getFeatureValue(fids[i]);
+		score(buf, 1);
+		if(checkAgainstTrees)
+			check(dp, buf.s[0]);
+		return buf.s[0];
+	}
+	/**
+	 * @return The scores of all the objects in @rl (in order), computed @blockSize objects at a time.
+	 */
+	public double[] eval(RankList rl)
+	{
+		double[] scores = new double[rl.size()];
+		int bs = Math.max(1, blockSize);
+		Buffers buf = buffers.get();
+		buf.reserve(bs, fids.length, maxTrees * words);
+		float[][] x = buf.x;
+		float[] s = buf.s;
+		for(int start=0;start<rl.size();start+=bs)
+		{
+			int size = Math.min(bs, rl.size() - start);
+			for(int d=0;d<size;d++)
+				for(int i=0;i<fids.length;i++)
+					x[d][i] = rl.get(start + d).getFeatureValue(fids[i]);
+			score(buf, size);
+			for(int d=0;d<size;d++)
+			{
+				if(checkAgainstTrees)
+					check(rl.get(start + d), s[d]);
+				scores[start + d] = s[d];
+			}
+		}
+		return scores;
+	}
+	/**
+	 * Score the objects whose values (on @fids) are buf.x[0..size-1] into buf.s[0..size-1], block of trees after block of trees.
+	 */
+	private void score(Buffers buf, int size)
+	{
+		float[][] x = buf.x;
+		float[] s = buf.s;
+		long[] v = buf.v;
+		Arrays.fill(s, 0, size, 0);
+		for(int b=0;b+1<blockTree.length;b++)
+		{
+			int first = blockTree[b];
+			int stride = (blockTree[b+1] - first) * words;
+			for(int d=0;d<size;d++)
+				System.arraycopy(initial, first * words, v, d * stride, stride);
+			for(int e=blockEntry[b];e<blockEntry[b+1];e++)
+			{
+				int f = entryFeature[e];
+				int end = entryNode[e+1];
+				for(int d=0;d<size;d++)
+				{
+					float value = x[d][f];
+					int offset = d * stride;
+					for(int n=entryNode[e];n<end;n++)
+					{
+						if(value <= nodeThreshold[n])
+							break;
+						if(words == 1)
+							v[offset + nodeTree[n]] &= nodeMask[n];
+						else
+						{
+							int base = offset + nodeTree[n] * words;
+							for(int w=0;w<words;w++)
+								v[base + w] &= nodeMask[n * words + w];
+						}
+					}
+				}
+			}
+			//add up the outputs of the exit leaves (the lowest bit left in the vector of each tree), in tree order
+			for(int d=0;d<size;d++)
+				for(int t=first;t<blockTree[b+1];t++)
+				{
+					int base = d * stride + (t - first) * words;
+					int w = 0;
+					while(v[base + w] == 0)
+						w++;
+					s[d] += leafValue[leafOffset[t] + w * 64 + Long.numberOfTrailingZeros(v[base + w])];
+				}
+		}
+	}
+	//Per-thread buffers of score(), reused across calls
+	static class Buffers {
+		float[][] x = new float[0][];//feature values of each object
+		float[] s = new float[0];//score of each object
+		long[] v = new long[0];//leaf bit vectors of each object, for the trees of a block
+		/**
+		 * Make room for @size objects of @nFeatures values each, whose bit vectors take @vectorLength longs each.
+		 */
+		void reserve(int size, int nFeatures, int vectorLength)
+		{
+			if(x.length < size || (size > 0 && x[0].length != nFeatures))
+			{
+				x = new float[size][nFeatures];
+				s = new float[size];
+			}
+			if(v.length < size * vectorLength)
+				v = new long[size * vectorLength];
+		}
+	}
+	private void check(DataPoint dp, float s)
+	{
+		float expected = ensemble.eval(dp);
+		if(Float.floatToIntBits(s) != Float.floatToIntBits(expected))
+			throw RankLibError.create("Error in QuickScorer::eval(): got " + s + " instead of " + expected + " for " + dp.getDescription());
+	}
+
+	/**
+	 * Compare QuickScorer with the usual evaluation (walking the trees) on a saved LambdaMART/MART/Random Forests model.
+	 * Usage: QuickScorer <model file> <data file> [-sparse] [-round <n>]
+	 */
+	public static void main(String[] args)
+	{
+		if(args.length < 2)
+		{
+			System.out.println("Usage: java -cp bin/RankLib.jar ciir.umass.edu.learning.tree.QuickScorer <model file> <data file> [-sparse] [-round <n>]");
+			return;
+		}
+		boolean sparse = false;
+		int rounds = 10;
+		for(int i=2;i<args.length;i++)
+		{
+			if(args[i].compareTo("-sparse") == 0)
+				sparse = true;
+			else if(args[i].compareTo("-round") == 0)
+				rounds = Integer.parseInt(args[++i]);
+		}
+		Ranker r = new RankerFactory().loadRankerFromFile(args[0]);
+		Ensemble[] ensembles = null;
+		if(r instanceof LambdaMART)
+			ensembles = new Ensemble[]{((LambdaMART)r).getEnsemble()};
+		else if(r instanceof RFRanker)
+			ensembles = ((RFRanker)r).getEnsembles();
+		else
+			throw RankLibError.create(r.name() + " is not a tree ensemble.");
+		List<RankList> samples = FeatureManager.readInput(args[1], false, sparse);
+		int nDocs = 0;
+		for(int i=0;i<samples.size();i++)
+			nDocs += samples.get(i).size();
+		QuickScorer[] qs = new QuickScorer[ensembles.length];
+		for(int e=0;e<ensembles.length;e++)
+			qs[e] = new QuickScorer(ensembles[e]);
+
+		//correctness
+		boolean tmp = checkAgainstTrees;
+		checkAgainstTrees = true;
+		for(int e=0;e<ensembles.length;e++)
+			for(int i=0;i<samples.size();i++)
+			{
+				qs[e].eval(samples.get(i));
+				for(int j=0;j<samples.get(i).size();j++)
+					qs[e].eval(samples.get(i).get(j));
+			}
+		checkAgainstTrees = tmp;
+		System.out.println("Scores on " + nDocs + " objects: identical.");
+
+		//speed
+		double sink = 0;
+		for(int m=0;m<3;m++)
+		{
+			long start = System.nanoTime();
+			for(int round=0;round<rounds;round++)
+				for(int e=0;e<ensembles.length;e++)
+					for(int i=0;i<samples.size();i++)
+					{
+						RankList rl = samples.get(i);
+						if(m == 2)
+						{
+							double[] s = qs[e].eval(rl);
+							sink += s[0];
+						}
+						else
+							for(int j=0;j<rl.size();j++)
+								sink += (m == 0) ? ensembles[e].eval(rl.get(j)) : qs[e].eval(rl.get(j));
+					}
+			double perDoc = (System.nanoTime() - start) / 1e3 / rounds / nDocs;
+			String name = (m == 0) ? "Tree traversal" : ((m == 1) ? "QuickScorer" : "QuickScorer (blocks of " + blockSize + ")");
+			System.out.println(name + ": " + perDoc + " us/object");
+		}
+		if(sink == 0.123)//keep the JIT from dropping the loops
+			System.out.println("");
+	}
+}
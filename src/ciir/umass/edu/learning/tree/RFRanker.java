@@ -11,14 +11,20 @@ package ciir.umass.edu.learning.tree;
 
 import ciir.umass.edu.learning.*;
 import ciir.umass.edu.metric.MetricScorer;
+import ciir.umass.edu.utilities.MyThreadPool;
 import ciir.umass.edu.utilities.RankLibError;
 import ciir.umass.edu.utilities.SimpleMath;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 
 public class RFRanker extends Ranker {
 	//Parameters
@@ -33,9 +39,16 @@ public class RFRanker extends Ranker {
 	public static float learningRate = 0.1F;//or shrinkage. *ONLY* matters if nTrees > 1.
 	public static int nThreshold = 256;
 	public static int minLeafSupport = 1;
+	public static int maxDepth = -1;
 	
 	//Variables
 	protected Ensemble[] ensembles = null;//bag of ensembles, each can be a single tree or an ensemble of gradient boosted trees
+	protected FlatEnsemble[] compiled = null;//scoring form of @ensembles
+	protected QuickScorer[] quickScorers = null;//used instead of @compiled if LambdaMART.useQuickScorer is set
+	protected CompiledEnsemble[] generated = null;//used instead of both once compileToBytecode() has been called
+	protected String header = null;//"##" lines of the model this ranker was loaded from, written back as they are when it is saved
+	protected LambdaMART.Parameters bagParameters = null;//parameters of the ranker trained in each bag
+	protected volatile RuntimeException bagError = null;//first error raised while training a bag in another thread
 	
 	public RFRanker()
 	{		
@@ -49,15 +62,20 @@ public class RFRanker extends Ranker {
 	{
 		PRINT("Initializing... ");
 		ensembles = new Ensemble[nBag];
+		compiled = new FlatEnsemble[nBag];
+		quickScorers = null;
+		generated = null;
 		//initialize parameters for the tree(s) built in each bag
-		LambdaMART.nTrees = nTrees;
-		LambdaMART.nTreeLeaves = nTreeLeaves;
-		LambdaMART.learningRate = learningRate;
-		LambdaMART.nThreshold = nThreshold;
-		LambdaMART.minLeafSupport = minLeafSupport;
-		LambdaMART.nRoundToStopEarly = -1;//no early-stopping since we're doing bagging
+		bagParameters = new LambdaMART.Parameters();
+		bagParameters.nTrees = nTrees;
+		bagParameters.nTreeLeaves = nTreeLeaves;
+		bagParameters.learningRate = learningRate;
+		bagParameters.nThreshold = nThreshold;
+		bagParameters.minLeafSupport = minLeafSupport;
+		bagParameters.maxDepth = maxDepth;
+		bagParameters.nRoundToStopEarly = -1;//no early-stopping since we're doing bagging
 		//turn on feature sampling
-		FeatureHistogram.samplingRate = featureSamplingRate;
+		bagParameters.featureSamplingRate = featureSamplingRate;
 		PRINTLN("[Done]");
 	}
 	public void learn()
@@ -68,8 +86,34 @@ public class RFRanker extends Ranker {
 		PRINTLN("------------------------------------");
 		PRINTLN(new int[]{9, 9, 11}, new String[]{"bag", scorer.name()+"-B", scorer.name()+"-OOB"});
 		PRINTLN("------------------------------------");
+		
+		//candidate thresholds and quantized samples of the whole training set: computed once, and shared (read-only) by all bags
+		int[] queryStart = new int[samples.size()];
+		IdentityHashMap<RankList, Integer> queryIndex = new IdentityHashMap<RankList, Integer>();
+		int dpCount = 0;
+		for(int i=0;i<samples.size();i++)
+		{
+			queryStart[i] = dpCount;
+			queryIndex.put(samples.get(i), i);
+			dpCount += samples.get(i).size();
+		}
+		LambdaMART all = new LambdaMART(samples, features, scorer);
+		all.setParameters(bagParameters);
+		all.martSamples = new DataPoint[dpCount];
+		for(int i=0;i<samples.size();i++)
+			for(int j=0;j<samples.get(i).size();j++)
+				all.martSamples[queryStart[i]+j] = samples.get(i).get(j);
+		all.initFeatureBins();
+		
+		//bags are trained concurrently, each in a single thread, as many at a time as there are threads and as fit in memory. If only 
+		//one fits, they are trained one after the other, each using all the threads.
+		MyThreadPool p = MyThreadPool.getInstance();
+		int maxInFlight = maxBagsInFlight(all.bins, all.thresholds, dpCount, p.size());
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		bagError = null;
+		
 		//start the bagging process
-		for(int i=0;i<nBag;i++)
+		for(int i=0;i<nBag && bagError == null;i++)
 		{
 			if(i % LambdaMART.gcCycle == 0)
 				System.gc();
@@ -80,16 +124,41 @@ public class RFRanker extends Ranker {
 			//List<RankList> outOfBag = sp.getRemains();
 			LambdaMART r = (LambdaMART)rf.createRanker(rType, bag, features, scorer);
 			//r.setValidationSet(outOfBag);
+			r.setParameters(bagParameters);
+			r.setSilent(true);//turn of the progress messages from training this ranker
 			
-			boolean tmp = Ranker.verbose;
-			Ranker.verbose = false;//turn of the progress messages from training this ranker
-			r.init();
-			r.learn();
-			Ranker.verbose = tmp;
-			//PRINTLN(new int[]{9, 9, 11}, new String[]{"b["+(i+1)+"]", SimpleMath.round(r.getScoreOnTrainingData(), 4)+"", SimpleMath.round(r.getScoreOnValidationData(), 4)+""});
-			PRINTLN(new int[]{9, 9}, new String[]{"b["+(i+1)+"]", SimpleMath.round(r.getScoreOnTrainingData(), 4)+""});
-			ensembles[i] = r.getEnsemble();
+			//rows of the bag's samples in the shared bins, in the order LambdaMART lays out its training samples
+			int size = 0;
+			for(int j=0;j<bag.size();j++)
+				size += bag.get(j).size();
+			int[] rows = new int[size];
+			int current = 0;
+			for(int j=0;j<bag.size();j++)
+			{
+				int q = queryIndex.get(bag.get(j));
+				for(int k=0;k<bag.get(j).size();k++)
+					rows[current++] = queryStart[q] + k;
+			}
+			
+			if(maxInFlight == 1)
+				trainBag(i, r, all.thresholds, all.bins, rows);
+			else
+			{
+				try {
+					inFlight.acquire();
+				}
+				catch(InterruptedException ex)
+				{
+					throw RankLibError.create("Error in RFRanker::learn(): ", ex);
+				}
+				p.execute(new BagWorker(i, r, all.thresholds, all.bins, rows, inFlight));
+			}
 		}
+		if(maxInFlight > 1)
+			p.await();
+		if(bagError != null)
+			throw RankLibError.create("Error in RFRanker::learn(): ", bagError);
+		compile();
 		//Finishing up
 		scoreOnTrainingData = scorer.score(rank(samples, false));
 		PRINTLN("------------------------------------");
@@ -102,13 +171,89 @@ public class RFRanker extends Ranker {
 		}
 		PRINTLN("------------------------------------");
 	}
+	/**
+	 * Train the ranker @r of the bag @i, whose samples are the rows @rows of @bins.
+	 */
+	protected void trainBag(int i, LambdaMART r, float[][] thresholds, FeatureBins bins, int[] rows)
+	{
+		r.setFeatureBins(thresholds, new FeatureBins(bins, rows));
+		r.init();
+		r.learn();
+		ensembles[i] = r.getEnsemble();
+		synchronized(this)
+		{
+			//PRINTLN(new int[]{9, 9, 11}, new String[]{"b["+(i+1)+"]", SimpleMath.round(r.getScoreOnTrainingData(), 4)+"", SimpleMath.round(r.getScoreOnValidationData(), 4)+""});
+			PRINTLN(new int[]{9, 9}, new String[]{"b["+(i+1)+"]", SimpleMath.round(r.getScoreOnTrainingData(), 4)+""});
+		}
+	}
+	/**
+	 * How many bags can be trained at once: one per thread, as long as what each of them needs (mostly its quantized samples, the 
+	 * per-sample arrays of LambdaMART, and the histograms of the leaves of the tree being built) fits in half of the free memory.
+	 */
+	protected int maxBagsInFlight(FeatureBins bins, float[][] thresholds, int nSamples, int nThreads)
+	{
+		if(nThreads == 1)
+			return 1;
+		long nThresholds = 0;
+		for(int f=0;f<thresholds.length;f++)
+			nThresholds += thresholds[f].length;
+		long perBag = (long)(subSamplingRate * nSamples + 1) * (bins.bytesPerSample() + 64) + 2L * (nTreeLeaves + 1) * nThresholds * 12;
+		Runtime rt = Runtime.getRuntime();
+		long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+		return (int)Math.max(1, Math.min(nThreads, free / 2 / perBag));
+	}
 	public double eval(DataPoint dp)
 	{
 		double s = 0;
 		for(int i=0;i<ensembles.length;i++)
-			s += ensembles[i].eval(dp);
+		{
+			if(generated != null)
+				s += generated[i].eval(dp);
+			else
+				s += (quickScorers != null) ? quickScorers[i].eval(dp) : compiled[i].eval(dp);
+		}
 		return s/ensembles.length;
 	}
+	public double[] eval(RankList rl)
+	{
+		if(quickScorers == null || generated != null)
+			return super.eval(rl);
+		double[] s = new double[rl.size()];
+		for(int i=0;i<ensembles.length;i++)
+		{
+			double[] b = quickScorers[i].eval(rl);
+			for(int j=0;j<s.length;j++)
+				s[j] += b[j];
+		}
+		for(int j=0;j<s.length;j++)
+			s[j] /= ensembles.length;
+		return s;
+	}
+	/**
+	 * Build the scoring form of the bags.
+	 */
+	protected void compile()
+	{
+		compiled = new FlatEnsemble[ensembles.length];
+		for(int i=0;i<ensembles.length;i++)
+			compiled[i] = new FlatEnsemble(ensembles[i]);
+		quickScorers = null;
+		if(LambdaMART.useQuickScorer)
+		{
+			quickScorers = new QuickScorer[ensembles.length];
+			for(int i=0;i<ensembles.length;i++)
+				quickScorers[i] = new QuickScorer(ensembles[i]);
+		}
+	}
+	/**
+	 * Score with the bags compiled into bytecode (see CompiledEnsemble) from now on.
+	 */
+	public void compileToBytecode()
+	{
+		generated = new CompiledEnsemble[ensembles.length];
+		for(int i=0;i<ensembles.length;i++)
+			generated[i] = new CompiledEnsemble(ensembles[i]);
+	}
 	public Ranker createNew()
 	{
 		return new RFRanker();
@@ -116,12 +261,26 @@ public class RFRanker extends Ranker {
 	public String toString()
 	{
 		String str = "";
-		for(int i=0;i<nBag;i++)
+		for(int i=0;i<ensembles.length;i++)
 			str += ensembles[i].toString() + "\n";
 		return str;
 	}
 	public String model()
 	{
+		StringWriter out = new StringWriter();
+		try {
+			writeModel(out);
+		}
+		catch(IOException ex)
+		{
+			throw RankLibError.create("Error in RFRanker::model(): ", ex);
+		}
+		return out.toString();
+	}
+	protected String header()
+	{
+		if(header != null)
+			return header;
 		String output = "## " + name() + "\n";
 		output += "## No. of bags = " + nBag + "\n";
 		output += "## Sub-sampling = " + subSamplingRate + "\n";
@@ -130,16 +289,51 @@ public class RFRanker extends Ranker {
 		output += "## No. of leaves = " + nTreeLeaves + "\n";
 		output += "## No. of threshold candidates = " + nThreshold + "\n";
 		output += "## Learning rate = " + learningRate + "\n";
-		output += "\n";
-		output += toString();
 		return output;
 	}
+	public void writeModel(Writer out) throws IOException
+	{
+		out.write(header());
+		out.write("\n");
+		for(int i=0;i<ensembles.length;i++)
+		{
+			ensembles[i].write(out);
+			out.write("\n");
+		}
+	}
+	protected void saveBinary(String modelFile)
+	{
+		new BinaryModel(header(), ensembles).write(modelFile);
+	}
+	/**
+	 * Use @ensembles as the bags of the model, e.g. when they have been read from a binary model file.
+	 */
+	public void setEnsembles(String header, Ensemble[] ensembles)
+	{
+		this.header = header;
+		this.ensembles = ensembles;
+		HashSet<Integer> uniqueFeatures = new HashSet<Integer>();
+		for(int i=0;i<ensembles.length;i++)
+		{
+			//obtain used features
+			int[] fids = ensembles[i].getFeatures();
+			for(int f=0;f<fids.length;f++)
+				if(!uniqueFeatures.contains(fids[f]))
+					uniqueFeatures.add(fids[f]);
+		}
+		compile();
+		int fi = 0;
+		features = new int[uniqueFeatures.size()];
+		for(Integer f : uniqueFeatures)
+			features[fi++] = f.intValue();
+	}
   @Override
 	public void loadFromString(String fullText)
 	{
 		try {
 			String content = "";
 			String model = "";
+			String header = "";
 			BufferedReader in = new BufferedReader(new StringReader(fullText));
 			List<Ensemble> ens = new ArrayList<Ensemble>();
 			while((content = in.readLine()) != null)
@@ -148,7 +342,10 @@ public class RFRanker extends Ranker {
 				if(content.length() == 0)
 					continue;
 				if(content.indexOf("##")==0)
+				{
+					header += content + "\n";
 					continue;
+				}
 				//actual model component
 				model += content;
 				if(content.indexOf("</ensemble>") != -1)
@@ -159,21 +356,7 @@ public class RFRanker extends Ranker {
 				}				
 			}
 			in.close();
-			HashSet<Integer> uniqueFeatures = new HashSet<Integer>();
-			ensembles = new Ensemble[ens.size()];
-			for(int i=0;i<ens.size();i++)
-			{
-				ensembles[i] = ens.get(i);
-				//obtain used features
-				int[] fids = ens.get(i).getFeatures();
-				for(int f=0;f<fids.length;f++)
-					if(!uniqueFeatures.contains(fids[f]))
-						uniqueFeatures.add(fids[f]);
-			}
-			int fi = 0;
-			features = new int[uniqueFeatures.size()];
-			for(Integer f : uniqueFeatures)
-				features[fi++] = f.intValue();
+			setEnsembles(header, ens.toArray(new Ensemble[ens.size()]));
 		}
 		catch(Exception ex)
 		{
@@ -199,4 +382,41 @@ public class RFRanker extends Ranker {
 	{
 		return ensembles;
 	}
+	
+	class BagWorker implements Runnable {
+		int bag = -1;
+		LambdaMART r = null;
+		float[][] thresholds = null;
+		FeatureBins bins = null;
+		int[] rows = null;
+		Semaphore inFlight = null;
+		
+		public BagWorker(int bag, LambdaMART r, float[][] thresholds, FeatureBins bins, int[] rows, Semaphore inFlight)
+		{
+			this.bag = bag;
+			this.r = r;
+			this.thresholds = thresholds;
+			this.bins = bins;
+			this.rows = rows;
+			this.inFlight = inFlight;
+		}
+		public void run()
+		{
+			try {
+				//all the work of this bag is done in this thread (the other threads of the pool train other bags)
+				MyThreadPool.runSequential(() -> trainBag(bag, r, thresholds, bins, rows));
+			}
+			catch(RuntimeException ex)
+			{
+				synchronized(RFRanker.this)
+				{
+					if(bagError == null)
+						bagError = ex;
+				}
+			}
+			finally {
+				inFlight.release();
+			}
+		}
+	}
 }
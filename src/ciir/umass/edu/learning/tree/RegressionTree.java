@@ -9,8 +9,11 @@
 
 package ciir.umass.edu.learning.tree;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import ciir.umass.edu.learning.DataPoint;
 
@@ -22,6 +25,7 @@ public class RegressionTree {
 	//Parameters
 	protected int nodes = 10;//-1 for unlimited number of nodes (the size of the tree will then be controlled *ONLY* by minLeafSupport)
 	protected int minLeafSupport = 1;
+	protected int maxDepth = -1;//-1 for no limit on the depth of the tree
 	
 	//Member variables and functions 
 	protected Split root = null;
@@ -40,51 +44,78 @@ public class RegressionTree {
 		leaves = root.leaves();
 	}
 	public RegressionTree(int nLeaves, DataPoint[] trainingSamples, double[] labels, FeatureHistogram hist, int minLeafSupport)
+	{
+		this(nLeaves, -1, trainingSamples, labels, hist, minLeafSupport);
+	}
+	public RegressionTree(int nLeaves, int maxDepth, DataPoint[] trainingSamples, double[] labels, FeatureHistogram hist, int minLeafSupport)
+	{
+		this(nLeaves, maxDepth, trainingSamples, labels, null, hist, minLeafSupport);
+	}
+	/**
+	 * @param sampleIdx The samples to fit the tree on, in ascending order (null for all of them). @hist must have been built from 
+	 * the same samples.
+	 */
+	public RegressionTree(int nLeaves, int maxDepth, DataPoint[] trainingSamples, double[] labels, int[] sampleIdx, FeatureHistogram hist, int minLeafSupport)
 	{
 		this.nodes = nLeaves;
+		this.maxDepth = maxDepth;
 		this.trainingSamples = trainingSamples;
 		this.trainingLabels = labels;
 		this.hist = hist;
 		this.minLeafSupport = minLeafSupport;
-		index = new int[trainingSamples.length];
-		for(int i=0;i<trainingSamples.length;i++)
-			index[i] = i;
+		if(sampleIdx != null)
+			index = sampleIdx;
+		else
+		{
+			index = new int[trainingSamples.length];
+			for(int i=0;i<trainingSamples.length;i++)
+				index[i] = i;
+		}
 	}
 	
 	/**
-	 * Fit the tree from the specified training data
+	 * Fit the tree from the specified training data. The tree is grown leaf-wise: the best split of every leaf is found as soon as 
+	 * the leaf is created, and the leaf whose split brings the largest gain is always the next one to be split.
 	 */
 	public void fit()
 	{
-		List<Split> queue = new ArrayList<Split>();
+		PriorityQueue<Split> candidates = new PriorityQueue<Split>(16, new Comparator<Split>() {
+			public int compare(Split a, Split b)
+			{
+				int c = Double.compare(b.getGain(), a.getGain());
+				//leaves never share samples, so ties are broken by the first sample of each leaf (no matter the order of insertion)
+				return (c != 0) ? c : Integer.compare(a.getSamples()[0], b.getSamples()[0]);
+			}
+		});
 		root = new Split(index, hist, Float.MAX_VALUE, 0);
 		root.setRoot(true);
-		root.split(trainingLabels, minLeafSupport);
-		insert(queue, root.getLeft());
-		insert(queue, root.getRight());
-
-		int taken = 0;
-		while( (nodes == -1 || taken + queue.size() < nodes) && queue.size() > 0)
+		if(canSplit(root))
+			candidates.add(root);
+		
+		int nLeaves = 1;
+		while( (nodes == -1 || nLeaves < nodes) && candidates.size() > 0)
 		{
-			Split leaf = queue.get(0);
-			queue.remove(0);
-			
-			if(leaf.getSamples().length < 2 * minLeafSupport)
-			{
-				taken++;
-				continue;
-			}
-			
-			if(!leaf.split(trainingLabels, minLeafSupport))//unsplitable (i.e. variance(s)==0; or after-split variance is higher than before)
-				taken++;
-			else
-			{
-				insert(queue, leaf.getLeft());
-				insert(queue, leaf.getRight());
-			}			
+			Split leaf = candidates.poll();
+			leaf.split(trainingLabels);
+			nLeaves++;
+			if(canSplit(leaf.getLeft()))
+				candidates.add(leaf.getLeft());
+			if(canSplit(leaf.getRight()))
+				candidates.add(leaf.getRight());
 		}
 		leaves = root.leaves();
 	}
+	/**
+	 * @return true if the leaf can be split further (its best split is then kept in the leaf).
+	 */
+	protected boolean canSplit(Split leaf)
+	{
+		if(maxDepth > 0 && leaf.getDepth() >= maxDepth)
+			return false;
+		if(leaf.getSamples().length < 2 * minLeafSupport)
+			return false;
+		return leaf.findBestSplit(minLeafSupport);//unsplitable (i.e. variance(s)==0; or no split with enough support)
+	}
 	
 	/**
 	 * Get the tree output for the input sample
@@ -133,6 +164,14 @@ public class RegressionTree {
 			return root.toString(indent);
 		return "";
 	}
+	/**
+	 * Write toString(indent) to @out.
+	 */
+	public void write(Writer out, String indent) throws IOException
+	{
+		if(root != null)
+			root.write(out, indent);
+	}
 	
 	public double variance()
 	{
@@ -142,17 +181,4 @@ public class RegressionTree {
 		return var;
 	}
 
-	protected void insert(List<Split> ls, Split s)
-	{
-		int i=0;
-		while(i < ls.size())
-		{
-			if(ls.get(i).getDeviance() > s.getDeviance())
-				i++;
-			else
-				break;
-		}
-		ls.add(i, s);
-	}
-
 }
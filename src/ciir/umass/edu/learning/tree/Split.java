@@ -9,6 +9,9 @@
 
 package ciir.umass.edu.learning.tree;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -33,6 +36,8 @@ public class Split {
 	private Split left = null;
 	private Split right = null;
 	private double deviance = 0F;//mean squared error "S"
+	private int depth = 0;//the root is at depth 0
+	private FeatureHistogram.Config best = null;//best split of a leaf, found but not carried out yet
 	private int[][] sortedSampleIDs = null;
 	public int[] samples = null;
 	public FeatureHistogram hist = null;
@@ -73,10 +78,12 @@ public class Split {
 	public void setLeft(Split s)
 	{
 		left = s;
+		s.depth = depth + 1;
 	}
 	public void setRight(Split s)
 	{
 		right = s;
+		s.depth = depth + 1;
 	}
 	public void setOutput(float output)
 	{
@@ -91,6 +98,14 @@ public class Split {
 	{
 		return right;
 	}
+	public int getFeatureID()
+	{
+		return featureID;
+	}
+	public float getThreshold()
+	{
+		return threshold;
+	}
 	public double getDeviance()
 	{
 		return deviance;
@@ -136,30 +151,57 @@ public class Split {
 	}
 	public String toString(String indent)
 	{
-		String strOutput = indent + "<split>" + "\n";
-		strOutput += getString(indent + "\t");
-		strOutput += indent + "</split>" + "\n";
-		return strOutput;
+		StringWriter out = new StringWriter();
+		try {
+			write(out, indent);
+		}
+		catch(IOException ex)
+		{
+			//cannot happen with a StringWriter
+		}
+		return out.toString();
 	}
 	public String getString(String indent)
 	{
-		String strOutput = "";
+		StringWriter out = new StringWriter();
+		try {
+			writeContent(out, indent);
+		}
+		catch(IOException ex)
+		{
+			//cannot happen with a StringWriter
+		}
+		return out.toString();
+	}
+	/**
+	 * Write toString(indent) to @out, without building it in memory.
+	 */
+	public void write(Writer out, String indent) throws IOException
+	{
+		out.write(indent + "<split>" + "\n");
+		writeContent(out, indent + "\t");
+		out.write(indent + "</split>" + "\n");
+	}
+	/**
+	 * Write getString(indent) to @out.
+	 */
+	public void writeContent(Writer out, String indent) throws IOException
+	{
 		if(featureID == -1)
 		{
-			strOutput += indent + "<output> " + avgLabel + " </output>" + "\n";
+			out.write(indent + "<output> " + avgLabel + " </output>" + "\n");
 		}
 		else
 		{
-			strOutput += indent + "<feature> " + featureID + " </feature>" + "\n";
-			strOutput += indent + "<threshold> " + threshold + " </threshold>" + "\n";
-			strOutput += indent + "<split pos=\"left\">" + "\n";
-			strOutput += left.getString(indent + "\t");
-			strOutput += indent + "</split>" + "\n";
-			strOutput += indent + "<split pos=\"right\">" + "\n";
-			strOutput += right.getString(indent + "\t");
-			strOutput += indent + "</split>" + "\n";
+			out.write(indent + "<feature> " + featureID + " </feature>" + "\n");
+			out.write(indent + "<threshold> " + threshold + " </threshold>" + "\n");
+			out.write(indent + "<split pos=\"left\">" + "\n");
+			left.writeContent(out, indent + "\t");
+			out.write(indent + "</split>" + "\n");
+			out.write(indent + "<split pos=\"right\">" + "\n");
+			right.writeContent(out, indent + "\t");
+			out.write(indent + "</split>" + "\n");
 		}
-		return strOutput;
 	}
 
 	//Internal functions(ONLY used during learning)
@@ -168,6 +210,30 @@ public class Split {
 	{
 		return hist.findBestSplit(this, trainingLabels, minLeafSupport);
 	}
+	/**
+	 * Find and keep the best split of this leaf, so that it can be compared to the other leaves before being carried out.
+	 * @return false if the leaf cannot be split.
+	 */
+	public boolean findBestSplit(int minLeafSupport)
+	{
+		best = hist.findBestSplit(this, minLeafSupport);
+		return best != null;
+	}
+	/**
+	 * @return The decrease of the squared error brought by the split found by findBestSplit(minLeafSupport).
+	 */
+	public double getGain()
+	{
+		return best.gain;
+	}
+	/**
+	 * Carry out the split found by findBestSplit(minLeafSupport).
+	 */
+	public void split(double[] trainingLabels)
+	{
+		hist.split(this, best, trainingLabels);
+		best = null;
+	}
 	public int[] getSamples()
 	{
 		if(sortedSampleIDs != null)
@@ -190,6 +256,8 @@ public class Split {
 	{
 		sortedSampleIDs = null;
 		samples = null;
+		if(hist != null)
+			hist.release();
 		hist = null;
 	}
 	public void setRoot(boolean isRoot)
@@ -200,4 +268,8 @@ public class Split {
 	{
 		return isRoot;
 	}
+	public int getDepth()
+	{
+		return depth;
+	}
 }
\ No newline at end of file
@@ -37,6 +37,12 @@ public class APScorer extends MetricScorer {
 	{
 		return new APScorer();
 	}
+	public MetricScorer copyShared()
+	{
+		APScorer s = (APScorer)super.copyShared();
+		s.relDocCount = relDocCount;
+		return s;
+	}
 	public void loadExternalRelevanceJudgment(String qrelFile)
 	{
 		relDocCount = new HashMap<>();
@@ -163,4 +169,53 @@ public class APScorer extends MetricScorer {
 		}
 		return changes;
 	}
+	public void swapChange(RankList rl, int[] idx, int offset, SwapChanges changes)
+	{
+		//Same as above, but only for the pairs involving the top k+1 positions
+		changes.reset(rl, idx, offset, k+1);
+		int[] relCount = changes.getIntBuffer(0);
+		int[] labels = changes.getIntBuffer(1);
+		int count = 0;
+		for(int i=0;i<rl.size();i++)
+		{
+			if(rl.get(changes.doc(i)).getLabel() > 0)//relevant
+			{
+				labels[i] = 1;
+				count++;
+			}
+			else
+				labels[i] = 0;
+			relCount[i] = count;
+		}
+		int rdCount = 0;//total number of relevant documents
+		if(relDocCount != null)//if an external qrels file is specified
+		{
+			Integer it = relDocCount.get(rl.getID());
+			if(it != null)
+				rdCount = it;
+		}
+		else
+			rdCount = count;
+
+		if(rdCount == 0 || count == 0)
+			return;//all "0"
+		
+		for(int i=0;i<changes.rows() && i<rl.size()-1;i++)
+		{
+			for(int j=i+1;j<rl.size();j++)
+			{
+				double change = 0;
+				if(labels[i] != labels[j])
+				{
+					int diff = labels[j]-labels[i];
+					change += ((double)((relCount[i]+diff)*labels[j] - relCount[i]*labels[i])) / (i+1);
+					for(int k=i+1;k<=j-1;k++)
+						if(labels[k] > 0)
+							change += ((double)diff) / (k+1);
+					change += ((double)(-relCount[j]*diff)) / (j+1);
+				}
+				changes.set(i, j, change/rdCount);
+			}
+		}
+	}
 }
@@ -0,0 +1,246 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.metric;
+
+import ciir.umass.edu.learning.RankList;
+import ciir.umass.edu.utilities.MergeSorter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * @author mfayoub
+ *
+ *         Worst and best CS-DCG@k that any permutation of a query's documents
+ *         can reach. Both only depend on the labels and sensitivities of the
+ *         query, so they are computed once per (query, k) and cached by the
+ *         scorer, keyed by the query's {@link RankList.Labels}, which all
+ *         re-orderings of the same query share. The cache belongs to one
+ *         scorer (and the copies sharing it) and is cleared when a training
+ *         run ends.
+ *
+ *         The documents are grouped by relevance label and, within a group,
+ *         sorted by sensitivity cost. The greedy placement then only has to
+ *         compare the head of each group at every position, which gives the
+ *         same bounds as the exhaustive O(k*n) scan in O(n log n).
+ */
+public class CSDCGBounds {
+
+	private final ConcurrentHashMap<RankList.Labels, double[]> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * @param gain
+	 *            Gain of each relevance label.
+	 * @param discount
+	 *            Discount of each position.
+	 * @param sense
+	 *            Sensitivity of each document of the list.
+	 * @return {topK, worst, best} for the query, computed on first use.
+	 */
+	public double[] get(RankList rl, int topK, IntToDoubleFunction gain, IntToDoubleFunction discount,
+			IntToDoubleFunction sense, double c) {
+		double[] b = cache.get(rl.getLabels());
+		if (b != null && (int) b[0] == topK)
+			return b;
+		int[] rel = new int[rl.size()];
+		double[] s = new double[rl.size()];
+		int maxLabel = 0;
+		for (int j = 0; j < rl.size(); j++) {
+			rel[j] = rl.getRelevance(j);
+			s[j] = sense.applyAsDouble(j);
+			maxLabel = Math.max(maxLabel, rel[j]);
+		}
+		double[] g = new double[maxLabel + 1];
+		for (int r = 0; r < g.length; r++)
+			g[r] = gain.applyAsDouble(r);
+		double[] d = new double[Math.max(topK, 0)];
+		for (int i = 0; i < d.length; i++)
+			d[i] = discount.applyAsDouble(i);
+		b = new double[] { topK, worst(rel, s, g, d, topK, c), best(rel, s, g, d, topK, c) };
+		cache.put(rl.getLabels(), b);
+		return b;
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * @param rel
+	 *            Relevance label of each document.
+	 * @param sense
+	 *            Sensitivity of each document.
+	 * @param gain
+	 *            gain[r] for every label r in rel.
+	 * @param discount
+	 *            discount[i] for i in [0, topK).
+	 * @return The minimum CS-DCG@topK.
+	 */
+	public static double worst(int[] rel, double[] sense, double[] gain, double[] discount, int topK, double c) {
+		// [label][0 = not sensitive, 1 = sensitive], most harmful (largest cost) first
+		int[][][] groups = group(rel, sense, gain.length, c, true);
+		int[][] head = new int[gain.length][2];
+		double dcg = 0;
+
+		// Put non-relevant but sensitive documents at the beginning. They have the
+		// strongest negative effect.
+		int filledSoFarFromLeft = -1;
+		int[] g0 = groups[0][1];
+		for (int i = 0; i < topK && head[0][1] < g0.length; i++) {
+			int j = g0[head[0][1]++];
+			dcg += gain[0] * discount[i] - sense[j] * c;
+			filledSoFarFromLeft = i;
+		}
+
+		// Put relevant but sensitive documents at the end, as long as their effect is
+		// negative. Going up the list only makes the effect larger, so we can stop at
+		// the first position that cannot be filled.
+		int filledSoFarFromRight = topK;
+		for (int i = topK - 1; i > filledSoFarFromLeft; i--) {
+			int l = pick(groups, head, sense, gain, discount[i], c, 1, 1, 0.0, true);
+			if (l == -1)
+				break;
+			dcg += take(groups, head, l, sense, gain, discount[i], c);
+			filledSoFarFromRight = i;
+		}
+
+		// All remaining documents have zero or positive effect. We search for the
+		// minimum effect from left to right.
+		for (int i = filledSoFarFromLeft + 1; i < filledSoFarFromRight; i++) {
+			int l = pick(groups, head, sense, gain, discount[i], c, 0, 2, Double.POSITIVE_INFINITY, true);
+			if (l == -1)
+				break;
+			dcg += take(groups, head, l, sense, gain, discount[i], c);
+		}
+		return dcg;
+	}
+
+	/**
+	 * @return The maximum CS-DCG@topK. See {@link #worst}.
+	 */
+	public static double best(int[] rel, double[] sense, double[] gain, double[] discount, int topK, double c) {
+		// [label][0 = not sensitive, 1 = sensitive], least harmful (smallest cost) first
+		int[][][] groups = group(rel, sense, gain.length, c, false);
+		int[][] head = new int[gain.length][2];
+		double dcg = 0;
+
+		// Put relevant but not sensitive documents at the beginning. They have the
+		// strongest positive effect.
+		int filledSoFarFromLeft = -1;
+		for (int i = 0; i < topK; i++) {
+			int l = pick(groups, head, sense, gain, discount[i], c, 1, 0, Double.NEGATIVE_INFINITY, false);
+			if (l == -1)
+				break;
+			dcg += take(groups, head, l, sense, gain, discount[i], c);
+			filledSoFarFromLeft = i;
+		}
+
+		// Put non-relevant and not sensitive documents at the end. They have zero
+		// effect.
+		int filledSoFarFromRight = topK;
+		int[] g0 = groups[0][0];
+		for (int i = topK - 1; i > filledSoFarFromLeft && head[0][0] < g0.length; i--) {
+			int j = g0[head[0][0]++];
+			dcg += gain[0] * discount[i] - sense[j] * c;
+			filledSoFarFromRight = i;
+		}
+
+		// All remaining documents have zero or negative effect. We search for the
+		// maximum effect from left to right.
+		for (int i = filledSoFarFromLeft + 1; i < filledSoFarFromRight; i++) {
+			int l = pick(groups, head, sense, gain, discount[i], c, 0, 2, Double.NEGATIVE_INFINITY, false);
+			if (l == -1)
+				break;
+			dcg += take(groups, head, l, sense, gain, discount[i], c);
+		}
+		return dcg;
+	}
+
+	/**
+	 * Split the documents by label and by sensitivity. For the worst bound, a
+	 * document is "sensitive" if its sensitivity is strictly positive and the
+	 * groups are sorted by decreasing cost; for the best bound, if it is non-zero
+	 * and the groups are sorted by increasing cost. Ties keep the document order.
+	 */
+	private static int[][][] group(int[] rel, double[] sense, int nLabels, double c, boolean worst) {
+		int[][] count = new int[nLabels][2];
+		for (int j = 0; j < rel.length; j++)
+			count[rel[j]][category(sense[j], worst)]++;
+		int[][][] groups = new int[nLabels][2][];
+		for (int r = 0; r < nLabels; r++)
+			for (int s = 0; s < 2; s++) {
+				groups[r][s] = new int[count[r][s]];
+				count[r][s] = 0;
+			}
+		for (int j = 0; j < rel.length; j++) {
+			int s = category(sense[j], worst);
+			groups[rel[j]][s][count[rel[j]][s]++] = j;
+		}
+		for (int r = 0; r < nLabels; r++)
+			for (int s = 0; s < 2; s++) {
+				int[] g = groups[r][s];
+				if (g.length < 2)
+					continue;
+				double[] cost = new double[g.length];
+				for (int i = 0; i < g.length; i++)
+					cost[i] = sense[g[i]] * c;
+				int[] idx = MergeSorter.sort(cost, !worst);
+				int[] sorted = new int[g.length];
+				for (int i = 0; i < g.length; i++)
+					sorted[i] = g[idx[i]];
+				groups[r][s] = sorted;
+			}
+		return groups;
+	}
+
+	private static int category(double sense, boolean worst) {
+		if (worst)
+			return (sense > 0.0) ? 1 : 0;
+		return (sense != 0.0) ? 1 : 0;
+	}
+
+	/**
+	 * Within a group, the head always has the smallest (worst bound) or largest
+	 * (best bound) effect, so only the heads need to be compared. Ties go to the
+	 * document that comes first in the list.
+	 *
+	 * @param category
+	 *            0 or 1 to only look at one sensitivity group, 2 for both.
+	 * @return The group of the selected document (label * 2 + category), or -1 if
+	 *         no document has an effect beyond bound.
+	 */
+	private static int pick(int[][][] groups, int[][] head, double[] sense, double[] gain, double discount, double c,
+			int fromLabel, int category, double bound, boolean min) {
+		int picked = -1;
+		int pickedDoc = -1;
+		double v = bound;
+		for (int r = fromLabel; r < groups.length; r++)
+			for (int s = 0; s < 2; s++) {
+				if ((category != 2 && s != category) || head[r][s] >= groups[r][s].length)
+					continue;
+				int j = groups[r][s][head[r][s]];
+				double curr = gain[r] * discount - sense[j] * c;
+				if ((min ? curr < v : curr > v) || (curr == v && pickedDoc != -1 && j < pickedDoc)) {
+					v = curr;
+					picked = r * 2 + s;
+					pickedDoc = j;
+				}
+			}
+		return picked;
+	}
+
+	private static double take(int[][][] groups, int[][] head, int l, double[] sense, double[] gain, double discount,
+			double c) {
+		int r = l / 2;
+		int s = l % 2;
+		int j = groups[r][s][head[r][s]++];
+		return gain[r] * discount - sense[j] * c;
+	}
+}
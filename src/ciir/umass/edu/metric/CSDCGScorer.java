@@ -9,82 +9,46 @@
 
 package ciir.umass.edu.metric;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.Hashtable;
-
 import ciir.umass.edu.learning.RankList;
 import ciir.umass.edu.utilities.SimpleMath;
 
 public class CSDCGScorer extends MetricScorer {
 
-	protected static double[] discount = null;// cache
-	protected static double[] gain = null;// cache
-	// docid --> sensitivity score {0, 1} for now. Can be used for multiple
-	// sensitivity score levels
-	protected static Hashtable<Integer, Integer> trueLabels;
+	// caches, only ever replaced by larger copies so that concurrent readers are safe
+	protected static volatile double[] discount = null;
+	protected static volatile double[] gain = null;
 	public static double SENSITIVITY_CONSTANT = 1.0;
+	// per-query worst/best CS-DCG
+	protected CSDCGBounds bounds = new CSDCGBounds();
 
 	public CSDCGScorer() {
 		this.k = 10;
 		// init cache if we haven't already done so
-		if (discount == null) {
-			discount = new double[5000];
-			for (int i = 0; i < discount.length; i++)
-				discount[i] = 1.0 / SimpleMath.logBase2(i + 2);
-			gain = new double[6];
-			for (int i = 0; i < 6; i++)
-				gain[i] = (1 << i) - 1;// 2^i-1
-		}
-		trueLabels = loadSensitivityTrueScores("judged-docs.txt");
+		if (discount == null)
+			initCache();
 	}
 
 	public CSDCGScorer(int k) {
 		this.k = k;
 		// init cache if we haven't already done so
-		if (discount == null) {
-			discount = new double[5000];
-			for (int i = 0; i < discount.length; i++)
-				discount[i] = 1.0 / SimpleMath.logBase2(i + 2);
-			gain = new double[6];
-			for (int i = 0; i < 6; i++)
-				gain[i] = (1 << i) - 1;// 2^i - 1
-		}
-		trueLabels = loadSensitivityTrueScores("judged-docs.txt");
-	}
-
-	private Hashtable<Integer, Integer> loadSensitivityTrueScores(String filename) {
-		Hashtable<Integer, Integer> result = new Hashtable<Integer, Integer>();
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(new File(filename)));
-			// skip the header file
-			String line = br.readLine();
-			line = br.readLine();
-			while (line != null) {
-				String[] tokens = line.split("\t");
-				int docid = Integer.parseInt(tokens[0]);
-				int trueLabel = Integer.parseInt(tokens[2]);
-				result.put(docid, trueLabel);
-				line = br.readLine();
-			}
-			br.close();
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		return result;
+		if (discount == null)
+			initCache();
 	}
 
 	public MetricScorer copy() {
 		return new CSDCGScorer();
 	}
 
+	public MetricScorer copyShared() {
+		CSDCGScorer s = (CSDCGScorer) super.copyShared();
+		s.bounds = bounds;
+		return s;
+	}
+
+	public void clearCaches() {
+		bounds.clear();
+	}
+
 	/**
 	 * Compute CS_DCG at k.
 	 */
@@ -96,52 +60,75 @@ public class CSDCGScorer extends MetricScorer {
 		if (k > rl.size() || k <= 0)
 			size = rl.size();
 
-		int[] rel = getRelevanceLabels(rl);
-		double[] sense = getSensitivityScores(rl);
-		return getCSDCG(rel, sense, size);
+		return getCSDCG(rl, size);
 	}
 
-	protected double[] getSensitivityScores(RankList rl) {
-		double[] result = new double[rl.size()];
-		for (int i = 0; i < rl.size(); i++) {
-			int docid = Integer.parseInt(rl.get(i).getDescription().split(" ")[2]);
-			result[i] = trueLabels.get(docid);
-		}
-		return result;
+	/**
+	 * @return The true sensitivity label of the k-th document of the list.
+	 */
+	protected double sensitivity(RankList rl, int k) {
+		return rl.getSensitivity(k);
 	}
 
 	public double[][] swapChange(RankList rl) {
-		int[] rel = getRelevanceLabels(rl);
-		double[] sense = getSensitivityScores(rl);
-		
+		SwapChanges changes = new SwapChanges();
+		swapChange(rl, null, 0, changes);
+		return changes.toMatrix();
+	}
+
+	public void swapChange(RankList rl, int[] idx, int offset, SwapChanges changes) {
 		int size = (rl.size() > k) ? k : rl.size();
-		double[][] changes = new double[rl.size()][];
-		for (int i = 0; i < rl.size(); i++)
-			changes[i] = new double[rl.size()];
+		changes.reset(rl, idx, offset, size);
 
 		// for(int i=0;i<rl.size()-1;i++)//ignore K, compute changes from the entire
 		// ranked list
 		for (int i = 0; i < size; i++)
 			for (int j = i + 1; j < rl.size(); j++)
 				// Here sense of both of i and j will be canceled. So I kept sense here even it is not used.
-				changes[j][i] = changes[i][j] = (discount(i) - discount(j)) * (gain(rel[i]) - gain(rel[j]));
-
-		return changes;
+				changes.set(i, j, (discount(i) - discount(j)) * (gain(changes.getRelevance(i)) - gain(changes.getRelevance(j))));
 	}
 
 	public String name() {
 		return "CS_DCG@" + k;
 	}
 
-	protected double getCSDCG(int[] rel, double[] sense, int topK) {
+	/**
+	 * @return {topK, worst, best}: the minimum and maximum CS-DCG@topK over all
+	 *         permutations of the list. Computed once per query.
+	 */
+	protected double[] getBounds(RankList rl, int topK) {
+		return bounds.get(rl, topK, this::gain, this::discount, j -> sensitivity(rl, j), SENSITIVITY_CONSTANT);
+	}
+
+	protected double getCSDCG(RankList rl, int topK) {
 		double dcg = 0;
 		for (int i = 0; i < topK; i++)
-			dcg += gain(rel[i]) * discount(i) - sense[i] * SENSITIVITY_CONSTANT;
+			dcg += gain(rl.getRelevance(i)) * discount(i) - sensitivity(rl, i) * SENSITIVITY_CONSTANT;
 		return dcg;
 	}
 
+	private static synchronized void initCache() {
+		if (discount != null)
+			return;
+		double[] g = new double[6];
+		for (int i = 0; i < 6; i++)
+			g[i] = (1 << i) - 1;// 2^i-1
+		double[] d = new double[5000];
+		for (int i = 0; i < d.length; i++)
+			d[i] = 1.0 / SimpleMath.logBase2(i + 2);
+		gain = g;
+		discount = d;
+	}
+
 	// lazy caching
 	protected double discount(int index) {
+		double[] d = discount;
+		if (index < d.length)
+			return d[index];
+		return expandDiscount(index);
+	}
+
+	private static synchronized double expandDiscount(int index) {
 		if (index < discount.length)
 			return discount[index];
 
@@ -154,10 +141,17 @@ public class CSDCGScorer extends MetricScorer {
 		for (int i = discount.length; i < tmp.length; i++)
 			tmp[i] = 1.0 / SimpleMath.logBase2(i + 2);
 		discount = tmp;
-		return discount[index];
+		return tmp[index];
 	}
 
 	protected double gain(int rel) {
+		double[] g = gain;
+		if (rel < g.length)
+			return g[rel];
+		return expandGain(rel);
+	}
+
+	private static synchronized double expandGain(int rel) {
 		if (rel < gain.length)
 			return gain[rel];
 
@@ -170,6 +164,6 @@ public class CSDCGScorer extends MetricScorer {
 		for (int i = gain.length; i < tmp.length; i++)
 			tmp[i] = (1 << i) - 1;// 2^i - 1
 		gain = tmp;
-		return gain[rel];
+		return tmp[rel];
 	}
 }
@@ -18,7 +18,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -103,12 +102,9 @@ public class CSNDCGScorer extends CSDCGScorer {
 		if (k > rl.size() || k <= 0)
 			size = rl.size();
 
-		int[] rel = getRelevanceLabels(rl);
-
-		double[] sense = getSensitivityScores(rl);
-		double worstDCG = getMinDCG(rel, sense, size);
-		double bestDCG = getMaxDCG(rel, sense, size);
-		double score = getCSDCG(rel, sense, size);
+		double worstDCG = getMinDCG(rl, size);
+		double bestDCG = getMaxDCG(rl, size);
+		double score = getCSDCG(rl, size);
 		//System.out.println("Qid = " + rl.getID() + " Score = " + score + " Worst = " + worstDCG + " Best = " + bestDCG);
 		System.out.println("Qid = " + rl.getID() + " Worst = " + worstDCG + " Best = " + bestDCG);
 		if (score < worstDCG) {
@@ -121,28 +117,24 @@ public class CSNDCGScorer extends CSDCGScorer {
 	}
 
 	public double[][] swapChange(RankList rl) {
-		int size = (rl.size() > k) ? k : rl.size();
-
-		int[] rel = getRelevanceLabels(rl);
-		double[] sense = getSensitivityScores(rl);
+		SwapChanges changes = new SwapChanges();
+		swapChange(rl, null, 0, changes);
+		return changes.toMatrix();
+	}
 
-		double worstDCG = getMinDCG(rel, sense, size);
-		double bestDCG = getMaxDCG(rel, sense, size);
+	public void swapChange(RankList rl, int[] idx, int offset, SwapChanges changes) {
+		int size = (rl.size() > k) ? k : rl.size();
+		changes.reset(rl, idx, offset, size);
 
-		double[][] changes = new double[rl.size()][];
-		for (int i = 0; i < rl.size(); i++) {
-			changes[i] = new double[rl.size()];
-			Arrays.fill(changes[i], 0);
-		}
+		double worstDCG = getMinDCG(rl, size);
+		double bestDCG = getMaxDCG(rl, size);
 
 		for (int i = 0; i < size; i++)
 			for (int j = i + 1; j < rl.size(); j++)
 				// sense of both i and j will be canceled
 				// Math.abs(worstDCG) in the numerator will be canceled too
-				changes[j][i] = changes[i][j] = (discount(i) - discount(j)) * (gain(rel[i]) - gain(rel[j]))
-						/ (bestDCG - worstDCG);
-
-		return changes;
+				changes.set(i, j, (discount(i) - discount(j)) * (gain(changes.getRelevance(i)) - gain(changes.getRelevance(j)))
+						/ (bestDCG - worstDCG));
 	}
 
 	public String name() {
@@ -157,168 +149,11 @@ public class CSNDCGScorer extends CSDCGScorer {
 		return dcg;
 	}
 
-	protected double getMinDCG(int[] rel, double[] sense, int topK) {
-		double dcg = 0;
-		boolean[] visited = new boolean[rel.length];
-
-		// Put non-relative but sensitive documents at the beginning
-		//System.out.println("MINNNNNNNNNNNNNNNNNNNN Phase 1");
-		int filledSoFarFromLeft = -1;
-		for (int i = 0; i < topK; i++) {
-			double min = Double.POSITIVE_INFINITY;
-			int minIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				// We need to process those documents which are sensitive but not relative. They
-				// have the strongest negative effect.
-				if (visited[j] || rel[j] != 0 || sense[j] <= 0.0) { // I mean precisely 0
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr < min) {
-					min = curr;
-					minIndex = j;
-				}
-			}
-			if (minIndex != -1) {
-				//System.out.print(min + " ");
-				dcg += min;
-				visited[minIndex] = true;
-				filledSoFarFromLeft = i;
-			}
-		}
-
-		// Put relative but sensitive documents at the end. They should have negative
-		// effect only.
-		//System.out.println("\nPhase 2");
-		int filedSoFarFromRight = topK;
-		for (int i = topK - 1; i > filledSoFarFromLeft; i--) {
-			double min = 0.0; // to disregard documents with positive effect
-			int minIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				// We need to process those documents which are sensitive but not relative. They
-				// have the strongest negative effect.
-				if (visited[j] || rel[j] == 0 || sense[j] <= 0.0) { // I mean precisely 0
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr < min) {
-					min = curr;
-					minIndex = j;
-				}
-			}
-			if (minIndex != -1) {
-				//System.out.print(min + " ");
-				dcg += min;
-				visited[minIndex] = true;
-				filedSoFarFromRight = i;
-			}
-		}
-
-		// Now, all remaining documents have zero or positive effect. We search for
-		// minimum effect from left to right.
-		//System.out.println("\nPhase 3");
-		for (int i = filledSoFarFromLeft + 1; i < filedSoFarFromRight; i++) {
-			double min = Double.POSITIVE_INFINITY;
-			int minIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				if (visited[j]) {
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr < min) {
-					min = curr;
-					minIndex = j;
-				}
-			}
-			if (minIndex != -1) {
-				//System.out.print(min + " ");
-				dcg += min;
-				visited[minIndex] = true;
-			}
-		}
-		return dcg;
+	protected double getMinDCG(RankList rl, int topK) {
+		return getBounds(rl, topK)[1];
 	}
 
-	protected double getMaxDCG(int[] rel, double[] sense, int topK) {
-		double dcg = 0;
-		boolean[] visited = new boolean[rel.length];
-
-		// Put relative but not sensitive documents at the beginning
-		//System.out.println("MAXXXXXXXXXXXXXXXXXX Phase 1");
-		int filledSoFarFromLeft = -1;
-		for (int i = 0; i < topK; i++) {
-			double max = Double.NEGATIVE_INFINITY;
-			int maxIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				// We need to process those documents which are relative but not sensitive. They
-				// have the strongest positive effect.
-				if (visited[j] || rel[j] == 0 || sense[j] != 0.0) {
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr > max) {
-					max = curr;
-					maxIndex = j;
-				}
-			}
-			if (maxIndex != -1) {
-				//System.out.print(max + " ");
-				dcg += max;
-				visited[maxIndex] = true;
-				filledSoFarFromLeft = i;
-			}
-		}
-
-		// Put not relative and not sensitive documents at the end. They should have
-		// zero
-		// effect only.
-		//System.out.println("\nPhase 2");
-		int filedSoFarFromRight = topK;
-		for (int i = topK - 1; i > filledSoFarFromLeft; i--) {
-			double max = Double.NEGATIVE_INFINITY;
-			int maxIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				// We need to process those documents which are sensitive but not relative. They
-				// have the strongest negative effect.
-				if (visited[j] || rel[j] != 0 || sense[j] != 0.0) {
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr > max) {
-					max = curr;
-					maxIndex = j;
-				}
-			}
-			if (maxIndex != -1) {
-				//System.out.print(max + " ");
-				dcg += max;
-				visited[maxIndex] = true;
-				filedSoFarFromRight = i;
-			}
-		}
-
-		// Now, all remaining documents have zero or negative effect. We search for
-		// minimum effect from left to right.
-		//System.out.println("\nPhase 3");
-		for (int i = filledSoFarFromLeft + 1; i < filedSoFarFromRight; i++) {
-			double max = Double.NEGATIVE_INFINITY;
-			int maxIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				if (visited[j]) {
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr > max) {
-					max = curr;
-					maxIndex = j;
-				}
-			}
-			if (maxIndex != -1) {
-				//System.out.print(max + " ");
-				dcg += max;
-				visited[maxIndex] = true;
-			}
-		}
-		return dcg;
+	protected double getMaxDCG(RankList rl, int topK) {
+		return getBounds(rl, topK)[2];
 	}
 }
@@ -14,36 +14,23 @@ import ciir.umass.edu.utilities.SimpleMath;
 
 public class DCGScorer extends MetricScorer {
 	
-	protected static double[] discount = null;//cache
-	protected static double[] gain = null;//cache
+	//caches, only ever replaced by larger copies so that concurrent readers are safe
+	protected static volatile double[] discount = null;
+	protected static volatile double[] gain = null;
 	
 	public DCGScorer()
 	{
 		this.k = 10;
 		//init cache if we haven't already done so
 		if(discount == null)
-		{
-			discount = new double[5000];
-			for(int i=0;i<discount.length;i++)
-				discount[i] = 1.0/SimpleMath.logBase2(i+2);
-			gain = new double[6];
-			for(int i=0;i<6;i++)
-				gain[i] = (1<<i) - 1;//2^i-1
-		}
+			initCache();
 	}
 	public DCGScorer(int k)
 	{
 		this.k = k;
 		//init cache if we haven't already done so
 		if(discount == null)
-		{
-			discount = new double[5000];
-			for(int i=0;i<discount.length;i++)
-				discount[i] = 1.0/SimpleMath.logBase2(i+2);
-			gain = new double[6];
-			for(int i=0;i<6;i++)
-				gain[i] = (1<<i) - 1;//2^i - 1
-		}
+			initCache();
 	}
 	public MetricScorer copy()
 	{
@@ -66,18 +53,23 @@ public class DCGScorer extends MetricScorer {
 	}
 	public double[][] swapChange(RankList rl)
 	{
-		int[] rel = getRelevanceLabels(rl);
+		SwapChanges changes = new SwapChanges();
+		swapChange(rl, null, 0, changes);
+		return changes.toMatrix();
+	}
+	public void swapChange(RankList rl, int[] idx, int offset, SwapChanges changes)
+	{
 		int size = (rl.size() > k) ? k : rl.size();
-		double[][] changes = new double[rl.size()][];
-		for(int i=0;i<rl.size();i++)
-			changes[i] = new double[rl.size()];
+		changes.reset(rl, idx, offset, size);
 		
 		//for(int i=0;i<rl.size()-1;i++)//ignore K, compute changes from the entire ranked list
 		for(int i=0;i<size;i++)
+		{
+			double di = discount(i);
+			double gi = gain(changes.getRelevance(i));
 			for(int j=i+1;j<rl.size();j++)
-				changes[j][i] = changes[i][j] = (discount(i) - discount(j)) * (gain(rel[i]) - gain(rel[j]));
-
-		return changes;
+				changes.set(i, j, (di - discount(j)) * (gi - gain(changes.getRelevance(j))));
+		}
 	}
 	public String name()
 	{
@@ -92,8 +84,29 @@ public class DCGScorer extends MetricScorer {
 		return dcg;
 	}
 	
+	private static synchronized void initCache()
+	{
+		if(discount != null)
+			return;
+		double[] g = new double[6];
+		for(int i=0;i<6;i++)
+			g[i] = (1<<i) - 1;//2^i-1
+		double[] d = new double[5000];
+		for(int i=0;i<d.length;i++)
+			d[i] = 1.0/SimpleMath.logBase2(i+2);
+		gain = g;
+		discount = d;
+	}
+	
 	//lazy caching
 	protected double discount(int index)
+	{
+		double[] d = discount;
+		if(index < d.length)
+			return d[index];
+		return expandDiscount(index);
+	}
+	private static synchronized double expandDiscount(int index)
 	{
 		if(index < discount.length)
 			return discount[index];
@@ -107,9 +120,16 @@ public class DCGScorer extends MetricScorer {
 		for(int i=discount.length;i<tmp.length;i++)
 			tmp[i] = 1.0/SimpleMath.logBase2(i+2);
 		discount = tmp;
-		return discount[index];
+		return tmp[index];
 	}
 	protected double gain(int rel)
+	{
+		double[] g = gain;
+		if(rel < g.length)
+			return g[rel];
+		return expandGain(rel);
+	}
+	private static synchronized double expandGain(int rel)
 	{
 		if(rel < gain.length)
 			return gain[rel];
@@ -123,6 +143,6 @@ public class DCGScorer extends MetricScorer {
 		for(int i=gain.length;i<tmp.length;i++)
 			tmp[i] = (1<<i) - 1;//2^i - 1
 		gain = tmp;
-		return gain[rel];
+		return tmp[rel];
 	}
 }
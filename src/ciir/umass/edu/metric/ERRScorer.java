@@ -69,27 +69,32 @@ public class ERRScorer extends MetricScorer {
 		return (double)((1<<rel)-1) / MAX;// (2^rel - 1)/MAX;
 	}
 	public double[][] swapChange(RankList rl)
+	{
+		SwapChanges changes = new SwapChanges();
+		swapChange(rl, null, 0, changes);
+		return changes.toMatrix();
+	}
+	public void swapChange(RankList rl, int[] idx, int offset, SwapChanges changes)
 	{
 		int size = (rl.size() > k) ? k : rl.size();
-		int[] labels = new int[rl.size()];
-		double[] R = new double[rl.size()];
-		double[] np = new double[rl.size()];//p[i] = (1 - p[0])(1 - p[1])...(1-p[i-1])
+		changes.reset(rl, idx, offset, size);
+		int[] labels = changes.getIntBuffer(0);
+		double[] R = changes.getDoubleBuffer(0);
+		double[] np = changes.getDoubleBuffer(1);//p[i] = (1 - p[0])(1 - p[1])...(1-p[i-1])
+		//documents below the cut-off are treated as non-relevant
+		Arrays.fill(labels, 0, rl.size(), 0);
+		Arrays.fill(R, 0, rl.size(), 0);
+		Arrays.fill(np, 0, rl.size(), 0);
 		double p = 1.0;
 		//for(int i=0;i<rl.size();i++)//ignore K, compute changes from the entire ranked list
 		for(int i=0;i<size;i++)
 		{
-			labels[i] = (int)rl.get(i).getLabel();
+			labels[i] = changes.getRelevance(i);
 			R[i] = R(labels[i]);
 			np[i] = p * (1.0 - R[i]);
 			p *= np[i];
 		}
 		
-		double[][] changes = new double[rl.size()][];
-		for(int i=0;i<rl.size();i++)
-		{
-			changes[i] = new double[rl.size()];
-			Arrays.fill(changes[i], 0);
-		}
 		//for(int i=0;i<rl.size()-1;i++)//ignore K, compute changes from the entire ranked list
 		for(int i=0;i<size;i++)
 		{
@@ -103,16 +108,15 @@ public class ERRScorer extends MetricScorer {
 				{
 					change = v1 * (R[j] - R[i]);
 					p = (i==0?1:np[i-1]) * (R[i] - R[j]);
-					for(int k=i+1;k<j;k++)
+					for(int k=i+1;k<j && k<size;k++)//R[k] = 0 below the cut-off
 					{
 						change += p * R[k]/(1+k);
 						p *= 1.0 - R[k];
 					}
 					change += (np[j-1]*(1.0 - R[j]) * R[i]/(1.0 - R[i]) - np[j-1] * R[j]) / (j+1);
 				}
-				changes[j][i] = changes[i][j] = change;
+				changes.set(i, j, change);
 			}
 		}
-		return changes;
 	}
 }
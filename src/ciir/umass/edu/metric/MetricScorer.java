@@ -62,6 +62,40 @@ public abstract class MetricScorer {
 	
 	public abstract double score(RankList rl);
 	public abstract MetricScorer copy();
+	/**
+	 * @return A copy of this scorer for use by another thread: same depth, and sharing (rather than re-loading) whatever judgments 
+	 * or per-query caches this scorer holds. Shared state must be safe to read concurrently.
+	 */
+	public MetricScorer copyShared()
+	{
+		MetricScorer s = copy();
+		s.setK(k);
+		return s;
+	}
+	/**
+	 * Drop the per-query caches this scorer (and the copies sharing them) holds, e.g. once training is over, so that they do not
+	 * keep the training queries alive.
+	 */
+	public void clearCaches()
+	{
+	}
 	public abstract String name();
 	public abstract double[][] swapChange(RankList rl);
+
+	/**
+	 * Same as {@link #swapChange(RankList)} for the list @rl re-ordered by @idx (see {@link SwapChanges#reset}), 
+	 * but only for the pairs involving the top k+1 positions -- the only ones learners such as LambdaMART look at. 
+	 * The result is written into @changes, which is reused from one call to the next.
+	 * 
+	 * This default implementation goes through the full matrix. Scorers used for training should override it.
+	 */
+	public void swapChange(RankList rl, int[] idx, int offset, SwapChanges changes)
+	{
+		RankList r = (idx == null) ? rl : new RankList(rl, idx, offset);
+		double[][] m = swapChange(r);
+		changes.reset(rl, idx, offset, k+1);
+		for(int i=0;i<changes.rows();i++)
+			for(int j=i+1;j<r.size();j++)
+				changes.set(i, j, m[i][j]);
+	}
 }
@@ -18,31 +18,36 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author vdang
  */
 public class NDCGScorer extends DCGScorer {
 	
-	protected HashMap<String, Double>  idealGains = null;
+	protected ConcurrentHashMap<String, Double> idealGains = null;
 	
 	public NDCGScorer()
 	{
 		super();
-		idealGains = new HashMap<>();
+		idealGains = new ConcurrentHashMap<>();
 	}
 	public NDCGScorer(int k)
 	{
 		super(k);
-		idealGains = new HashMap<>();
+		idealGains = new ConcurrentHashMap<>();
 	}
 	public MetricScorer copy()
 	{
 		return new NDCGScorer();
 	}
+	public MetricScorer copyShared()
+	{
+		NDCGScorer s = (NDCGScorer)super.copyShared();
+		s.idealGains = idealGains;
+		return s;
+	}
 	public void loadExternalRelevanceJudgment(String qrelFile)
 	{
 		//Queries with external relevance judgment will have their cached ideal gain value overridden 
@@ -125,33 +130,34 @@ public class NDCGScorer extends DCGScorer {
 		return getDCG(rel, size)/ideal;
 	}
 	public double[][] swapChange(RankList rl)
+	{
+		SwapChanges changes = new SwapChanges();
+		swapChange(rl, null, 0, changes);
+		return changes.toMatrix();
+	}
+	public void swapChange(RankList rl, int[] idx, int offset, SwapChanges changes)
 	{
 		int size = (rl.size() > k) ? k : rl.size();
+		changes.reset(rl, idx, offset, size);
 		//compute the ideal ndcg
-		int[] rel = getRelevanceLabels(rl);
 		double ideal = 0;
 		Double d = idealGains.get(rl.getID());
 		if(d != null)
 			ideal = d;
 		else
 		{
-			ideal = getIdealDCG(rel, size);
-			//idealGains.put(rl.getID(), ideal);//DO *NOT* do caching here. It's not thread-safe.
-		}
-		
-		double[][] changes = new double[rl.size()][];
-		for(int i=0;i<rl.size();i++)
-		{
-			changes[i] = new double[rl.size()];
-			Arrays.fill(changes[i], 0);
+			ideal = getIdealDCG(changes, size);
 		}
+		if(ideal <= 0)
+			return;
 		
 		for(int i=0;i<size;i++)
+		{
+			double di = discount(i);
+			double gi = gain(changes.getRelevance(i));
 			for(int j=i+1;j<rl.size();j++)
-				if(ideal > 0)
-					changes[j][i] = changes[i][j] = (discount(i) - discount(j)) * (gain(rel[i]) - gain(rel[j])) / ideal;
-
-		return changes;
+				changes.set(i, j, (di - discount(j)) * (gi - gain(changes.getRelevance(j))) / ideal);
+		}
 	}
 	public String name()
 	{
@@ -166,4 +172,16 @@ public class NDCGScorer extends DCGScorer {
 			dcg += gain(rel[idx[i]]) * discount(i);
 		return dcg;
 	}
+	/**
+	 * Same as getIdealDCG(int[], int), but from the label counts of the list (no sorting).
+	 */
+	protected double getIdealDCG(SwapChanges changes, int topK)
+	{
+		double dcg = 0;
+		int i = 0;
+		for(int r=changes.getMaxLabel();r>=0 && i<topK;r--)
+			for(int c=changes.getLabelCount(r);c>0 && i<topK;c--)
+				dcg += gain(r) * discount(i++);
+		return dcg;
+	}
 }
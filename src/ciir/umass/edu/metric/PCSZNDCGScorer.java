@@ -18,7 +18,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -103,19 +102,16 @@ public class PCSZNDCGScorer extends PCSDCGScorer {
 		if (k > rl.size() || k <= 0)
 			size = rl.size();
 
-		int[] rel = getRelevanceLabels(rl);
-
-		double[] sense = getSensitivityScores(rl);
-		double worstDCG = getMinDCG(rel, sense, size);
-		double bestDCG = getMaxDCG(rel, sense, size);
-		double score = getCSDCG(rel, sense, size);
+		double worstDCG = getMinDCG(rl, size);
+		double bestDCG = getMaxDCG(rl, size);
+		double score = getCSDCG(rl, size);
 		// System.out.println("Score = " + score + " Worst = " + worstDCG + " Best = " +
 		// bestDCG);
 		/*
 		if (score > bestDCG || score < worstDCG) {
 			// mfayoub: quick fix to avoid throwing checked exceptions
 			for (int i = 0; i < rl.size(); i++) {
-				System.out.println("i = " + i + " label " + rel[i] + " sense = " + sense[i] + " desc "
+				System.out.println("i = " + i + " label " + rl.getRelevance(i) + " sense = " + sensitivity(rl, i) + " desc "
 						+ rl.get(i).getDescription());
 			}
 			throw new NullPointerException(
@@ -136,43 +132,44 @@ public class PCSZNDCGScorer extends PCSDCGScorer {
 	}
 
 	public double[][] swapChange(RankList rl) {
+		SwapChanges changes = new SwapChanges();
+		swapChange(rl, null, 0, changes);
+		return changes.toMatrix();
+	}
+
+	public void swapChange(RankList rl, int[] idx, int offset, SwapChanges changes) {
 		int size = (rl.size() > k) ? k : rl.size();
+		changes.reset(rl, idx, offset, size);
 
-		int[] rel = getRelevanceLabels(rl);
-		double[] sense = getSensitivityScores(rl);
+		double worstDCG = getMinDCG(rl, size);
+		double bestDCG = getMaxDCG(rl, size);
 
-		double worstDCG = getMinDCG(rel, sense, size);
-		double bestDCG = getMaxDCG(rel, sense, size);
-
-		double[][] changes = new double[rl.size()][];
-		for (int i = 0; i < rl.size(); i++) {
-			changes[i] = new double[rl.size()];
-			Arrays.fill(changes[i], 0);
-		}
+		// sensitivity cost of the document at each position
+		double[] cost = changes.getDoubleBuffer(0);
+		for (int i = 0; i < rl.size(); i++)
+			cost[i] = sensitivity(rl, changes.doc(i)) * SENSITIVITY_CONSTANT;
 
 		for (int i = 0; i < size; i++)
 			for (int j = i + 1; j < rl.size(); j++) {
+				double gi = gain(changes.getRelevance(i));
+				double gj = gain(changes.getRelevance(j));
 				// I had to compute it from the beginning because it was not clear to me.
-				double value1 = gain(rel[i]) / discount(i) + gain(rel[j]) / discount(j)
-						- sense[i] * SENSITIVITY_CONSTANT - sense[j] * SENSITIVITY_CONSTANT;
+				double value1 = gi / discount(i) + gj / discount(j) - cost[i] - cost[j];
 
 				if (value1 >= 0.0) {
 					value1 = value1 / bestDCG;
 				} else {
 					value1 = (-1.0) * value1 / worstDCG;
 				}
-				double value2 = gain(rel[i]) / discount(j) + gain(rel[j]) / discount(i)
-						- sense[i] * SENSITIVITY_CONSTANT - sense[j] * SENSITIVITY_CONSTANT;
+				double value2 = gi / discount(j) + gj / discount(i) - cost[i] - cost[j];
 
 				if (value2 >= 0.0) {
 					value2 = (value2 > bestDCG) ? 1: (value2 / bestDCG);
 				} else {
 					value2 = (value2 < worstDCG) ? -1 : ((-1.0) * value2 / worstDCG);
 				}
-				changes[j][i] = changes[i][j] = value1 - value2;
+				changes.set(i, j, value1 - value2);
 			}
-
-		return changes;
 	}
 
 	public String name() {
@@ -187,168 +184,11 @@ public class PCSZNDCGScorer extends PCSDCGScorer {
 		return dcg;
 	}
 
-	protected double getMinDCG(int[] rel, double[] sense, int topK) {
-		double dcg = 0;
-		boolean[] visited = new boolean[rel.length];
-
-		// Put non-relative but sensitive documents at the beginning
-		//System.out.println("MINNNNNNNNNNNNNNNNNNNN Phase 1");
-		int filledSoFarFromLeft = -1;
-		for (int i = 0; i < topK; i++) {
-			double min = Double.POSITIVE_INFINITY;
-			int minIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				// We need to process those documents which are sensitive but not relative. They
-				// have the strongest negative effect.
-				if (visited[j] || rel[j] != 0 || sense[j] <= 0.0) { // I mean precisely 0
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr < min) {
-					min = curr;
-					minIndex = j;
-				}
-			}
-			if (minIndex != -1) {
-				//System.out.print(min + " ");
-				dcg += min;
-				visited[minIndex] = true;
-				filledSoFarFromLeft = i;
-			}
-		}
-
-		// Put relative but sensitive documents at the end. They should have negative
-		// effect only.
-		//System.out.println("\nPhase 2");
-		int filedSoFarFromRight = topK;
-		for (int i = topK - 1; i > filledSoFarFromLeft; i--) {
-			double min = 0.0; // to disregard documents with positive effect
-			int minIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				// We need to process those documents which are sensitive but not relative. They
-				// have the strongest negative effect.
-				if (visited[j] || rel[j] == 0 || sense[j] <= 0.0) { // I mean precisely 0
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr < min) {
-					min = curr;
-					minIndex = j;
-				}
-			}
-			if (minIndex != -1) {
-				//System.out.print(min + " ");
-				dcg += min;
-				visited[minIndex] = true;
-				filedSoFarFromRight = i;
-			}
-		}
-
-		// Now, all remaining documents have zero or positive effect. We search for
-		// minimum effect from left to right.
-		//System.out.println("\nPhase 3");
-		for (int i = filledSoFarFromLeft + 1; i < filedSoFarFromRight; i++) {
-			double min = Double.POSITIVE_INFINITY;
-			int minIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				if (visited[j]) {
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr < min) {
-					min = curr;
-					minIndex = j;
-				}
-			}
-			if (minIndex != -1) {
-				//System.out.print(min + " ");
-				dcg += min;
-				visited[minIndex] = true;
-			}
-		}
-		return dcg;
+	protected double getMinDCG(RankList rl, int topK) {
+		return getBounds(rl, topK)[1];
 	}
 
-	protected double getMaxDCG(int[] rel, double[] sense, int topK) {
-		double dcg = 0;
-		boolean[] visited = new boolean[rel.length];
-
-		// Put relative but not sensitive documents at the beginning
-		//System.out.println("MAXXXXXXXXXXXXXXXXXX Phase 1");
-		int filledSoFarFromLeft = -1;
-		for (int i = 0; i < topK; i++) {
-			double max = Double.NEGATIVE_INFINITY;
-			int maxIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				// We need to process those documents which are relative but not sensitive. They
-				// have the strongest positive effect.
-				if (visited[j] || rel[j] == 0 || sense[j] != 0.0) {
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr > max) {
-					max = curr;
-					maxIndex = j;
-				}
-			}
-			if (maxIndex != -1) {
-				//System.out.print(max + " ");
-				dcg += max;
-				visited[maxIndex] = true;
-				filledSoFarFromLeft = i;
-			}
-		}
-
-		// Put not relative and not sensitive documents at the end. They should have
-		// zero
-		// effect only.
-		//System.out.println("\nPhase 2");
-		int filedSoFarFromRight = topK;
-		for (int i = topK - 1; i > filledSoFarFromLeft; i--) {
-			double max = Double.NEGATIVE_INFINITY;
-			int maxIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				// We need to process those documents which are sensitive but not relative. They
-				// have the strongest negative effect.
-				if (visited[j] || rel[j] != 0 || sense[j] != 0.0) {
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr > max) {
-					max = curr;
-					maxIndex = j;
-				}
-			}
-			if (maxIndex != -1) {
-				//System.out.print(max + " ");
-				dcg += max;
-				visited[maxIndex] = true;
-				filedSoFarFromRight = i;
-			}
-		}
-
-		// Now, all remaining documents have zero or negative effect. We search for
-		// minimum effect from left to right.
-		//System.out.println("\nPhase 3");
-		for (int i = filledSoFarFromLeft + 1; i < filedSoFarFromRight; i++) {
-			double max = Double.NEGATIVE_INFINITY;
-			int maxIndex = -1;
-			for (int j = 0; j < rel.length; j++) {
-				if (visited[j]) {
-					continue;
-				}
-				double curr = gain(rel[j]) * discount(i) - sense[j] * SENSITIVITY_CONSTANT;
-				if (curr > max) {
-					max = curr;
-					maxIndex = j;
-				}
-			}
-			if (maxIndex != -1) {
-				//System.out.print(max + " ");
-				dcg += max;
-				visited[maxIndex] = true;
-			}
-		}
-		return dcg;
+	protected double getMaxDCG(RankList rl, int topK) {
+		return getBounds(rl, topK)[2];
 	}
 }
@@ -0,0 +1,371 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.metric;
+
+import ciir.umass.edu.utilities.RankLibError;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * @author mfayoub
+ *
+ *         Process-wide store of the document sensitivity judgments. Both
+ *         judgment files are read at most once per run (on first use) into a
+ *         primitive docid-indexed table: a dense array when the docids are
+ *         compact, an open-addressing int -> slot map otherwise. Scorer copies,
+ *         CV folds and RF bags all share the same tables.
+ *
+ *         If {@link #useBinaryCache} is set, the parsed table is also written
+ *         next to the text file (as "&lt;file&gt;.bin") and memory-mapped on
+ *         subsequent runs, as long as the text file's size and modification
+ *         time are unchanged.
+ */
+public class SensitivityStore {
+
+	// docid \t ... \t true label
+	public static String judgmentFile = "judged-docs.txt";
+	// docid \t ... \t ... \t predicted label \t prediction confidence
+	public static String predictionFile = "judged-docs-with_predictions.txt";
+	public static boolean useBinaryCache = false;
+
+	private static final int MAGIC = 0x53454E53;// "SENS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 * 4 + 2 * 8;
+	private static final int EMPTY = Integer.MIN_VALUE;
+
+	private static volatile Table judgments = null;
+	private static volatile Table predictions = null;
+
+	private SensitivityStore() {
+	}
+
+	/**
+	 * @param docid
+	 * @return The true sensitivity label of the document (from
+	 *         {@link #judgmentFile}).
+	 */
+	public static int getTrueLabel(int docid) {
+		Table t = judgments();
+		return t.label(t.slotOf(docid));
+	}
+
+	/**
+	 * @param docid
+	 * @return The predicted sensitivity label of the document (from
+	 *         {@link #predictionFile}).
+	 */
+	public static int getPredictedLabel(int docid) {
+		Table t = predictions();
+		return t.label(t.slotOf(docid));
+	}
+
+	/**
+	 * @param docid
+	 * @return The predicted probability that the document is sensitive (from
+	 *         {@link #predictionFile}).
+	 */
+	public static double getPredictedProb(int docid) {
+		Table t = predictions();
+		return t.prob(t.slotOf(docid));
+	}
+
+	/**
+	 * Drop the loaded tables so that they are re-read on next use (e.g. after
+	 * changing {@link #judgmentFile} or {@link #predictionFile}).
+	 */
+	public static synchronized void reset() {
+		judgments = null;
+		predictions = null;
+	}
+
+	private static Table judgments() {
+		Table t = judgments;
+		if (t == null) {
+			synchronized (SensitivityStore.class) {
+				if (judgments == null)
+					judgments = load(judgmentFile, false);
+				t = judgments;
+			}
+		}
+		return t;
+	}
+
+	private static Table predictions() {
+		Table t = predictions;
+		if (t == null) {
+			synchronized (SensitivityStore.class) {
+				if (predictions == null)
+					predictions = load(predictionFile, true);
+				t = predictions;
+			}
+		}
+		return t;
+	}
+
+	private static Table load(String filename, boolean isPrediction) {
+		File src = new File(filename);
+		File bin = new File(filename + ".bin");
+		try {
+			if (useBinaryCache && bin.exists()) {
+				Table t = map(bin, src);
+				if (t != null)
+					return t;
+			}
+			ArrayTable t = parse(src, isPrediction);
+			if (useBinaryCache)
+				write(t, bin, src);
+			return t;
+		} catch (IOException ex) {
+			throw RankLibError.create("Error in SensitivityStore::load(): " + filename, ex);
+		}
+	}
+
+	private static ArrayTable parse(File src, boolean isPrediction) throws IOException {
+		int n = 0;
+		int[] docids = new int[1024];
+		int[] labels = new int[1024];
+		double[] probs = new double[1024];
+		try (BufferedReader br = new BufferedReader(new FileReader(src))) {
+			// skip the header
+			String line = br.readLine();
+			while ((line = br.readLine()) != null) {
+				if (line.length() == 0)
+					continue;
+				String[] tokens = line.split("\t");
+				if (n == docids.length) {
+					docids = Arrays.copyOf(docids, n * 2);
+					labels = Arrays.copyOf(labels, n * 2);
+					probs = Arrays.copyOf(probs, n * 2);
+				}
+				docids[n] = Integer.parseInt(tokens[0]);
+				if (isPrediction) {
+					labels[n] = Integer.parseInt(tokens[3]);
+					// stored as the probability of being sensitive, whatever the predicted label
+					double score = Double.parseDouble(tokens[4]);
+					probs[n] = (labels[n] == 0) ? 1 - score : score;
+				} else {
+					labels[n] = Integer.parseInt(tokens[2]);
+					probs[n] = labels[n];
+				}
+				n++;
+			}
+		}
+		return new ArrayTable(src.getPath(), docids, labels, probs, n);
+	}
+
+	/**
+	 * The file is written under a temporary name, then renamed, so that a
+	 * crash or a concurrent run never leaves a partial file behind.
+	 */
+	private static void write(ArrayTable t, File bin, File src) throws IOException {
+		long size = fileSize(t.dense, t.capacity);
+		File tmp = File.createTempFile(bin.getName(), ".tmp", bin.getAbsoluteFile().getParentFile());
+		try {
+			try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel ch = raf.getChannel()) {
+				raf.setLength(size);
+				MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				buf.putInt(MAGIC).putInt(VERSION).putInt(t.dense ? 1 : 0).putInt(t.capacity);
+				buf.putLong(src.length()).putLong(src.lastModified());
+				if (!t.dense)
+					buf.asIntBuffer().put(t.keys);
+				buf.position(buf.position() + (t.dense ? 0 : t.capacity * 4));
+				buf.asIntBuffer().put(t.labels);
+				buf.position(buf.position() + t.capacity * 4);
+				buf.asDoubleBuffer().put(t.probs);
+				buf.force();
+			}
+			Files.move(tmp.toPath(), bin.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			tmp.delete();
+			throw ex;
+		}
+	}
+
+	private static long fileSize(boolean dense, int capacity) {
+		return HEADER_SIZE + (long) capacity * (dense ? 12 : 16);
+	}
+
+	/**
+	 * @return The mapped table, or null if the binary file is stale, not
+	 *         recognized or truncated.
+	 */
+	private static Table map(File bin, File src) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(bin, "r"); FileChannel ch = raf.getChannel()) {
+			ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC || buf.getInt() != VERSION)
+				return null;
+			boolean dense = buf.getInt() == 1;
+			int capacity = buf.getInt();
+			if (capacity < 0 || ch.size() != fileSize(dense, capacity))
+				return null;
+			if (buf.getLong() != src.length() || buf.getLong() != src.lastModified())
+				return null;
+			IntBuffer keys = null;
+			if (!dense) {
+				keys = buf.slice().asIntBuffer();
+				buf.position(buf.position() + capacity * 4);
+			}
+			IntBuffer labels = buf.slice().asIntBuffer();
+			buf.position(buf.position() + capacity * 4);
+			DoubleBuffer probs = buf.slice().asDoubleBuffer();
+			return new MappedTable(src.getPath(), dense, capacity, keys, labels, probs);
+		}
+	}
+
+	/**
+	 * Lookup shared by the in-heap and the mapped tables. A dense table is
+	 * indexed directly by docid; a hashed table uses linear probing over a
+	 * power-of-two number of slots.
+	 */
+	abstract static class Table {
+		final String source;
+		final boolean dense;
+		final int capacity;
+
+		Table(String source, boolean dense, int capacity) {
+			this.source = source;
+			this.dense = dense;
+			this.capacity = capacity;
+		}
+
+		abstract int key(int slot);
+
+		abstract int label(int slot);
+
+		abstract double prob(int slot);
+
+		int slotOf(int docid) {
+			if (dense) {
+				if (docid >= 0 && docid < capacity && label(docid) != EMPTY)
+					return docid;
+			} else {
+				int mask = capacity - 1;
+				for (int s = hash(docid) & mask;; s = (s + 1) & mask) {
+					int k = key(s);
+					if (k == docid)
+						return s;
+					if (k == EMPTY)
+						break;
+				}
+			}
+			throw RankLibError.create("Error in SensitivityStore: docid " + docid + " is not in " + source);
+		}
+
+		static int hash(int docid) {
+			int h = docid * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	static class ArrayTable extends Table {
+		final int[] keys;
+		final int[] labels;
+		final double[] probs;
+
+		ArrayTable(String source, int[] docids, int[] lbls, double[] prbs, int n) {
+			super(source, isDense(docids, n), capacity(docids, n));
+			labels = new int[capacity];
+			probs = new double[capacity];
+			Arrays.fill(labels, EMPTY);
+			if (dense) {
+				keys = null;
+				for (int i = 0; i < n; i++) {
+					labels[docids[i]] = lbls[i];
+					probs[docids[i]] = prbs[i];
+				}
+			} else {
+				keys = new int[capacity];
+				Arrays.fill(keys, EMPTY);
+				int mask = capacity - 1;
+				for (int i = 0; i < n; i++) {
+					int s = hash(docids[i]) & mask;
+					while (keys[s] != EMPTY && keys[s] != docids[i])
+						s = (s + 1) & mask;
+					keys[s] = docids[i];
+					labels[s] = lbls[i];
+					probs[s] = prbs[i];
+				}
+			}
+		}
+
+		private static boolean isDense(int[] docids, int n) {
+			int min = Integer.MAX_VALUE;
+			int max = -1;
+			for (int i = 0; i < n; i++) {
+				min = Math.min(min, docids[i]);
+				max = Math.max(max, docids[i]);
+			}
+			// a direct-indexed array is worth it as long as it is not much larger than a hash table would be
+			return min >= 0 && max < 4L * n + 1024;
+		}
+
+		private static int capacity(int[] docids, int n) {
+			if (isDense(docids, n)) {
+				int max = -1;
+				for (int i = 0; i < n; i++)
+					max = Math.max(max, docids[i]);
+				return max + 1;
+			}
+			int c = 16;
+			while (c < 2 * n)
+				c <<= 1;
+			return c;
+		}
+
+		int key(int slot) {
+			return keys[slot];
+		}
+
+		int label(int slot) {
+			return labels[slot];
+		}
+
+		double prob(int slot) {
+			return probs[slot];
+		}
+	}
+
+	static class MappedTable extends Table {
+		final IntBuffer keys;
+		final IntBuffer labels;
+		final DoubleBuffer probs;
+
+		MappedTable(String source, boolean dense, int capacity, IntBuffer keys, IntBuffer labels, DoubleBuffer probs) {
+			super(source, dense, capacity);
+			this.keys = keys;
+			this.labels = labels;
+			this.probs = probs;
+		}
+
+		int key(int slot) {
+			return keys.get(slot);
+		}
+
+		int label(int slot) {
+			return labels.get(slot);
+		}
+
+		double prob(int slot) {
+			return probs.get(slot);
+		}
+	}
+}
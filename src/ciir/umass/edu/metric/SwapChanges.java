@@ -0,0 +1,152 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.metric;
+
+import ciir.umass.edu.learning.RankList;
+
+import java.util.Arrays;
+
+/**
+ * Reusable output buffer of {@link MetricScorer#swapChange(RankList, int[], int, SwapChanges)}.
+ *
+ * Only the changes of swapping i and j with i < rows() and i < j are stored: the rest of the
+ * n x n matrix is either symmetric or beyond the cut-off point. All arrays grow to the largest
+ * list seen and are reused afterwards, so a buffer should be owned by a single thread.
+ */
+public class SwapChanges {
+
+	protected RankList rl = null;
+	protected int[] idx = null;
+	protected int offset = 0;
+	protected int size = 0;
+	protected int rows = 0;
+
+	protected double[] changes = new double[0];
+	protected int[] rel = new int[0];
+	protected int[] labelCount = new int[0];
+	protected int maxLabel = 0;
+
+	//scratch space for the scorers
+	protected double[][] doubles = new double[2][0];
+	protected int[][] ints = new int[2][0];
+
+	/**
+	 * Prepare the buffer for a new list: @rl re-ordered by @idx, i.e. the document at position i is rl.get(idx[i]-offset).
+	 * @param idx null to keep the order of @rl.
+	 * @param rows The number of top positions whose swaps will be stored.
+	 */
+	public void reset(RankList rl, int[] idx, int offset, int rows)
+	{
+		this.rl = rl;
+		this.idx = idx;
+		this.offset = offset;
+		this.size = rl.size();
+		this.rows = Math.max(0, Math.min(rows, size));
+
+		if(changes.length < this.rows * size)
+			changes = new double[this.rows * size];
+		Arrays.fill(changes, 0, this.rows * size, 0);
+
+		if(rel.length < size)
+			rel = new int[size];
+		maxLabel = 0;
+		for(int i=0;i<size;i++)
+		{
+			rel[i] = rl.getRelevance(doc(i));
+			if(rel[i] > maxLabel)
+				maxLabel = rel[i];
+		}
+		if(labelCount.length < maxLabel+1)
+			labelCount = new int[maxLabel+1];
+		Arrays.fill(labelCount, 0, maxLabel+1, 0);
+		for(int i=0;i<size;i++)
+			labelCount[rel[i]]++;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+	public int rows()
+	{
+		return rows;
+	}
+	/**
+	 * @return The index (in the list given to {@link #reset}) of the document at position i.
+	 */
+	public int doc(int i)
+	{
+		return (idx == null) ? i : idx[i] - offset;
+	}
+	/**
+	 * @return The relevance label of the document at position i.
+	 */
+	public int getRelevance(int i)
+	{
+		return rel[i];
+	}
+	public int getMaxLabel()
+	{
+		return maxLabel;
+	}
+	/**
+	 * @return The number of documents in the list with this relevance label.
+	 */
+	public int getLabelCount(int label)
+	{
+		return (label > maxLabel) ? 0 : labelCount[label];
+	}
+
+	public void set(int i, int j, double change)
+	{
+		changes[i * size + j] = change;
+	}
+	/**
+	 * @return The change of swapping the documents at positions i and j (0 if it was not computed).
+	 */
+	public double get(int i, int j)
+	{
+		if(i > j)
+		{
+			int t = i;
+			i = j;
+			j = t;
+		}
+		return (i < rows) ? changes[i * size + j] : 0;
+	}
+
+	/**
+	 * @return A scratch array of at least @size elements. Its content is not cleared.
+	 */
+	public double[] getDoubleBuffer(int which)
+	{
+		if(doubles[which].length < size)
+			doubles[which] = new double[size];
+		return doubles[which];
+	}
+	public int[] getIntBuffer(int which)
+	{
+		if(ints[which].length < size)
+			ints[which] = new int[size];
+		return ints[which];
+	}
+
+	/**
+	 * @return The full (symmetric) n x n matrix, as returned by {@link MetricScorer#swapChange(RankList)}.
+	 */
+	public double[][] toMatrix()
+	{
+		double[][] m = new double[size][size];
+		for(int i=0;i<rows;i++)
+			for(int j=i+1;j<size;j++)
+				m[j][i] = m[i][j] = changes[i * size + j];
+		return m;
+	}
+}
@@ -135,7 +135,18 @@ public class MergeSorter {
 	{
 		int len = end - begin + 1;
 		int[] idx = new int[len];
-		int[] tmp = new int[len];
+		sort(list, begin, end, asc, idx, new int[len], new int[len/2+3]);
+		return idx;
+	}
+	/**
+	 * Same as sort(list, begin, end, asc), but the result is written into @idx and no memory is allocated.
+	 * @param idx Receives the sorted indexes in its first (end-begin+1) elements.
+	 * @param tmp At least as long as @idx.
+	 * @param ph At least (end-begin+1)/2+3 long.
+	 */
+	public static void sort(double[] list, int begin, int end, boolean asc, int[] idx, int[] tmp, int[] ph)
+	{
+		int len = end - begin + 1;
 		for(int i=begin;i<=end;i++)
 			idx[i-begin] = i;
 		
@@ -144,13 +155,12 @@ public class MergeSorter {
 		int j=0;
 		int k=0;
 		int start= 0;
-		int[] ph = new int[len/2+3];
 		ph[0] = 0;
 		int p=1;
 		do {
 			start = i-1;
-			while(i < idx.length && ((asc && list[begin+i] >= list[begin+i-1]) || (!asc && list[begin+i] <= list[begin+i-1]))) i++;
-			if(i == idx.length)
+			while(i < len && ((asc && list[begin+i] >= list[begin+i-1]) || (!asc && list[begin+i] <= list[begin+i-1]))) i++;
+			if(i == len)
 			{
 				System.arraycopy(idx, start, tmp, k, i-start);
 				k = i;
@@ -158,20 +168,20 @@ public class MergeSorter {
 			else
 			{
 				j=i+1;
-				while(j < idx.length && ((asc && list[begin+j] >= list[begin+j-1]) || (!asc && list[begin+j] <= list[begin+j-1]))) j++;
+				while(j < len && ((asc && list[begin+j] >= list[begin+j-1]) || (!asc && list[begin+j] <= list[begin+j-1]))) j++;
 				merge(list, idx, start, i-1, i, j-1, tmp, k, asc);
 				i = j+1;
 				k=j;				
 			}
 			ph[p++] = k;
-		}while(k < idx.length);
-		System.arraycopy(tmp, 0, idx, 0, idx.length);
+		}while(k < len);
+		System.arraycopy(tmp, 0, idx, 0, len);
 		
 		//subsequent iterations
 		while(p > 2)
 		{
 			if(p % 2 == 0)
-				ph[p++] = idx.length;
+				ph[p++] = len;
 			k=0;
 			int np = 1;
 			for(int w=0;w<p-1;w+=2)
@@ -181,9 +191,8 @@ public class MergeSorter {
 				ph[np++] = k;				
 			}
 			p = np;
-			System.arraycopy(tmp, 0, idx, 0, idx.length);
+			System.arraycopy(tmp, 0, idx, 0, len);
 		}		
-		return idx;
 	}
 	private static void merge(double[] list, int[] idx, int s1, int e1, int s2, int e2, int[] tmp, int l, boolean asc)
 	{
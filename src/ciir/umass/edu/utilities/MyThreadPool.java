@@ -9,6 +9,7 @@
 
 package ciir.umass.edu.utilities;
 
+import java.util.Arrays;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -21,6 +22,9 @@ import java.util.concurrent.TimeUnit;
  */
 public class MyThreadPool extends ThreadPoolExecutor {
 
+	//number of chunks per thread when partitioning by cost
+	public static int CHUNKS_PER_THREAD = 4;
+	
 	private final Semaphore semaphore;
 	private int size = 0;
 	
@@ -32,8 +36,13 @@ public class MyThreadPool extends ThreadPoolExecutor {
 	}
 	
 	private static MyThreadPool singleton = null;
+	//returned by getInstance() in threads running a task with runSequential()
+	private static final ThreadLocal<MyThreadPool> sequential = new ThreadLocal<MyThreadPool>();
 	public static MyThreadPool getInstance()
 	{
+		MyThreadPool local = sequential.get();
+		if(local != null)
+			return local;
 		if(singleton == null)
 			init(Runtime.getRuntime().availableProcessors());
 		return singleton;
@@ -43,6 +52,22 @@ public class MyThreadPool extends ThreadPoolExecutor {
 	{
 		singleton = new MyThreadPool(poolSize);
 	}
+	/**
+	 * Run @task in the calling thread, with getInstance() returning a single-thread pool while it runs: all the work of @task is done 
+	 * in this thread. This is how independent tasks that would use the pool themselves (e.g. the bags of a Random Forest) are run on 
+	 * the threads of the pool, without waiting for the pool they are part of.
+	 */
+	public static void runSequential(Runnable task)
+	{
+		sequential.set(new MyThreadPool(1));
+		try {
+			task.run();
+		}
+		finally {
+			sequential.get().shutdown();
+			sequential.remove();
+		}
+	}
 	public int size()
 	{
 		return size;
@@ -63,6 +88,34 @@ public class MyThreadPool extends ThreadPoolExecutor {
 		return workers;
 	}
 	
+	/**
+	 * Same as execute(worker, nTasks), but for tasks of uneven cost (e.g. queries, whose cost grows with the number of document pairs). 
+	 * The tasks are split into chunks of roughly equal total cost, several per thread, and the most expensive chunks are submitted first 
+	 * so that threads that are done early pick up the remaining ones.
+	 * @param cost The estimated cost of each task.
+	 * @return The workers, in the order of the tasks they processed.
+	 */
+	public WorkerThread[] execute(WorkerThread worker, long[] cost)
+	{
+		int[] partition = partition(cost, size * CHUNKS_PER_THREAD);
+		double[] chunkCost = new double[partition.length-1];
+		for(int i=0;i<partition.length-1;i++)
+			for(int j=partition[i];j<partition[i+1];j++)
+				chunkCost[i] += cost[j];
+		int[] order = MergeSorter.sort(chunkCost, false);
+		WorkerThread[] workers = new WorkerThread[partition.length-1];
+		for(int i=0;i<order.length;i++)
+		{
+			int c = order[i];
+			WorkerThread w = worker.clone();
+			w.set(partition[c], partition[c+1]-1);
+			workers[c] = w;
+			execute(w);
+		}
+		await();
+		return workers;
+	}
+	
 	public void await()
 	{
 		for(int i=0;i<size;i++)
@@ -78,6 +131,34 @@ public class MyThreadPool extends ThreadPoolExecutor {
 		for(int i=0;i<size;i++)
 			semaphore.release();
 	}
+	/**
+	 * Partition the list into (at most) nChunks contiguous, non-empty chunks of roughly equal total cost.
+	 */
+	public int[] partition(long[] cost, int nChunks)
+	{
+		if(cost.length == 0)
+			return new int[]{0};
+		nChunks = Math.min(cost.length, nChunks);
+		long total = 0;
+		for(int i=0;i<cost.length;i++)
+			total += cost[i];
+		int[] partition = new int[nChunks+1];
+		int p = 1;
+		long acc = 0;
+		for(int i=0;i<cost.length-1 && p<nChunks;i++)
+		{
+			acc += cost[i];
+			//a chunk ends as soon as it reaches its share of the cost that is left
+			if((double)acc * (nChunks-p+1) >= (double)total)
+			{
+				partition[p++] = i+1;
+				total -= acc;
+				acc = 0;
+			}
+		}
+		partition[p++] = cost.length;
+		return (p == partition.length) ? partition : Arrays.copyOf(partition, p);
+	}
 	public int[] partition(int listSize)
 	{
 		int nChunks = Math.min(listSize, size);
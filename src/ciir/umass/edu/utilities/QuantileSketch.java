@@ -0,0 +1,206 @@
+/*===============================================================================
+ * Copyright (c) 2010-2012 University of Massachusetts.  All Rights Reserved.
+ *
+ * Use of the RankLib package is subject to the terms of the software license set
+ * forth in the LICENSE file included with this software, and also available at
+ * http://people.cs.umass.edu/~vdang/ranklib_license.html
+ *===============================================================================
+ */
+
+package ciir.umass.edu.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantile sketch of a list of float values (a KLL-style stack of compactors, all of the same capacity). Each level h
+ * holds values that stand for 2^h input values each. When a level is full, it is sorted and every other value is promoted to the
+ * next level, starting alternately from the first and the second one (so the result does not depend on any random number). The
+ * rank error is in O(log(n/k)/k) for a capacity of k.
+ *
+ * The distinct values are also tracked exactly until there are more than @maxDistinct of them.
+ */
+public class QuantileSketch {
+
+	private int capacity = 0;
+	private float[][] levels = new float[0][];
+	private int[] sizes = new int[0];
+	private boolean[] oddOffset = new boolean[0];
+	private long count = 0;
+	private float min = Float.POSITIVE_INFINITY;
+	private float max = Float.NEGATIVE_INFINITY;
+
+	//distinct values seen so far (open addressing on the bits of the value), null once there are too many of them
+	private int maxDistinct = 0;
+	private float[] distinct = null;
+	private boolean[] used = null;
+	private int nDistinct = 0;
+
+	/**
+	 * @param capacity Number of values kept at each level (even).
+	 * @param maxDistinct Number of distinct values to track exactly (-1 for no limit).
+	 */
+	public QuantileSketch(int capacity, int maxDistinct)
+	{
+		this.capacity = Math.max(2, capacity + (capacity % 2));
+		this.maxDistinct = (maxDistinct < 0) ? Integer.MAX_VALUE : maxDistinct;
+		//most features have few distinct values: start small, the table grows as needed
+		distinct = new float[16];
+		used = new boolean[16];
+	}
+
+	public void add(float v)
+	{
+		if(Float.isNaN(v))
+			return;
+		if(v == 0)
+			v = 0F;//-0 and 0 are the same value
+		count++;
+		if(v < min)
+			min = v;
+		if(v > max)
+			max = v;
+		if(distinct != null)
+			addDistinct(v);
+		push(0, v);
+	}
+	public long count()
+	{
+		return count;
+	}
+	public float min()
+	{
+		return min;
+	}
+	public float max()
+	{
+		return max;
+	}
+
+	/**
+	 * @return All the distinct values in ascending order, or null if there are more than @maxDistinct of them.
+	 */
+	public float[] distinctValues()
+	{
+		if(distinct == null)
+			return null;
+		float[] values = new float[nDistinct];
+		int n = 0;
+		for(int i=0;i<distinct.length;i++)
+			if(used[i])
+				values[n++] = distinct[i];
+		Arrays.sort(values);
+		return values;
+	}
+
+	/**
+	 * @return The (approximate) i/nBins-quantiles for i in [0, nBins), i.e. the minimum followed by the value of rank i*n/nBins for
+	 * i >= 1. Duplicates are removed, so there may be fewer than nBins of them.
+	 */
+	public float[] quantiles(int nBins)
+	{
+		if(count == 0)
+			return new float[0];
+		int n = 0;
+		for(int h=0;h<levels.length;h++)
+			n += sizes[h];
+		float[] values = new float[n];
+		long[] weights = new long[n];
+		n = 0;
+		for(int h=0;h<levels.length;h++)
+			for(int i=0;i<sizes[h];i++)
+			{
+				values[n] = levels[h][i];
+				weights[n++] = 1L << h;
+			}
+		int[] idx = MergeSorter.sort(values, true);
+		long total = 0;
+		for(int i=0;i<n;i++)
+			total += weights[i];
+
+		float[] q = new float[nBins];
+		int nq = 0;
+		q[nq++] = min;
+		long cumulative = 0;
+		int j = 0;
+		for(int b=1;b<nBins;b++)
+		{
+			double rank = (double)b * total / nBins;
+			while(j < n-1 && cumulative + weights[idx[j]] < rank)
+				cumulative += weights[idx[j++]];
+			float v = values[idx[j]];
+			if(v > q[nq-1])
+				q[nq++] = v;
+		}
+		return Arrays.copyOf(q, nq);
+	}
+
+	private void push(int h, float v)
+	{
+		if(h == levels.length)
+		{
+			levels = Arrays.copyOf(levels, h+1);
+			levels[h] = new float[capacity];
+			sizes = Arrays.copyOf(sizes, h+1);
+			oddOffset = Arrays.copyOf(oddOffset, h+1);
+		}
+		levels[h][sizes[h]++] = v;
+		if(sizes[h] == capacity)
+			compact(h);
+	}
+	private void compact(int h)
+	{
+		float[] level = levels[h];
+		Arrays.sort(level, 0, capacity);
+		int offset = oddOffset[h] ? 1 : 0;
+		oddOffset[h] = !oddOffset[h];
+		sizes[h] = 0;
+		for(int i=offset;i<capacity;i+=2)
+			push(h+1, level[i]);
+	}
+	private void addDistinct(float v)
+	{
+		int mask = distinct.length - 1;
+		int s = slot(v, mask);
+		while(used[s])
+		{
+			if(distinct[s] == v)
+				return;
+			s = (s + 1) & mask;
+		}
+		if(nDistinct == maxDistinct)
+		{
+			//too many: stop tracking them
+			distinct = null;
+			used = null;
+			return;
+		}
+		used[s] = true;
+		distinct[s] = v;
+		nDistinct++;
+		if(2 * nDistinct > distinct.length)
+			rehash();
+	}
+	private void rehash()
+	{
+		float[] oldValues = distinct;
+		boolean[] oldUsed = used;
+		distinct = new float[oldValues.length * 2];
+		used = new boolean[oldValues.length * 2];
+		int mask = distinct.length - 1;
+		for(int i=0;i<oldValues.length;i++)
+		{
+			if(!oldUsed[i])
+				continue;
+			int s = slot(oldValues[i], mask);
+			while(used[s])
+				s = (s + 1) & mask;
+			used[s] = true;
+			distinct[s] = oldValues[i];
+		}
+	}
+	private static int slot(float v, int mask)
+	{
+		int h = Float.floatToIntBits(v) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+}